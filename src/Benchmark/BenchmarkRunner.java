@@ -0,0 +1,449 @@
+package Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executa os benchmarks do índice, das mensagens RMI e das transferências.
+ *
+ * Cada combinação de parâmetros roda em JVMs novas (forks), como no JMH, para
+ * que o JIT e o heap de um benchmark não influenciem o próximo. Em cada fork
+ * as iterações de aquecimento são descartadas e as de medição viram amostras
+ * de throughput. O resultado é a média das amostras de todos os forks, com o
+ * intervalo de confiança de 99,9%.
+ *
+ * Com -o os resultados são gravados em CSV, e com -b são comparados com um
+ * CSV anterior: uma queda maior que a tolerância, fora dos intervalos de
+ * confiança, é uma regressão e o runner termina com código 1.
+ *
+ * Uso: BenchmarkRunner [-f forks] [-wi aquecimento] [-i iterações] [-r segundos]
+ *                      [-p nome=v1,v2] [-jvm "args"] [-o resultados.csv]
+ *                      [-b base.csv] [-t tolerância%] [-l] [filtro ...]
+ */
+public class BenchmarkRunner {
+    private static final String DEFAULT_JVM_ARGS = "-Xms2g -Xmx2g -XX:+UseParallelGC";
+
+    /**
+     * Um benchmark e os valores de cada parâmetro. Os parâmetros napster.*
+     * são propriedades do sistema da JVM da medição, os outros vão para o setup.
+     */
+    private static class Definition {
+        final String name;
+        final Supplier<Workload> workload;
+        final String unit;
+        final double unitSize;
+        final LinkedHashMap<String, String[]> params = new LinkedHashMap<>();
+
+        Definition(String name, Supplier<Workload> workload, String unit, double unitSize, String... params) {
+            this.name = name;
+            this.workload = workload;
+            this.unit = unit;
+            this.unitSize = unitSize;
+            for (String param : params) {
+                int separator = param.indexOf('=');
+                this.params.put(param.substring(0, separator), param.substring(separator + 1).split(","));
+            }
+        }
+    }
+
+    private static final List<Definition> BENCHMARKS = Arrays.asList(
+            new Definition("index.search", IndexBenchmark::new, "ops/s", 1, "op=search", "peers=1000,10000,50000", "threads=1,4"),
+            new Definition("index.searchPeers", IndexBenchmark::new, "ops/s", 1, "op=searchPeers", "peers=1000,10000,50000", "threads=1,4"),
+            new Definition("index.join", IndexBenchmark::new, "ops/s", 1, "op=join", "peers=1000,10000,50000", "threads=1,4"),
+            new Definition("index.update", IndexBenchmark::new, "ops/s", 1, "op=update", "peers=1000,10000,50000", "threads=1,4"),
+            new Definition("message.napsterMessage", MessageBenchmark::new, "ops/s", 1, "type=message", "size=10,100,1000"),
+            new Definition("message.searchResult", MessageBenchmark::new, "ops/s", 1, "type=result", "size=10,100,1000"),
+            new Definition("transfer.loopback", TransferBenchmark::new, "MB/s", 1024 * 1024, "size=1024,16384,65536", "content=random",
+                    "napster.zerocopy=true,false"),
+            new Definition("transfer.compression", TransferBenchmark::new, "MB/s", 1024 * 1024, "size=16384", "content=text",
+                    "napster.compression=none,fast,deflate"));
+
+    /**
+     * Resultado de uma combinação de parâmetros.
+     */
+    private static class Result {
+        final String benchmark;
+        final String params;
+        final double score;
+        final double error;
+        final String unit;
+        final int samples;
+
+        Result(String benchmark, String params, double score, double error, String unit, int samples) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.samples = samples;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--fork")) {
+            fork(args);
+            return;
+        }
+
+        int forks = 2;
+        int warmups = 3;
+        int iterations = 5;
+        int seconds = 2;
+        double tolerance = 10;
+        String jvmArgs = DEFAULT_JVM_ARGS;
+        String output = null;
+        String baseline = null;
+        boolean list = false;
+        Map<String, String[]> overrides = new HashMap<>();
+        List<String> filters = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-f": forks = Integer.parseInt(args[++i]); break;
+                    case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                    case "-i": iterations = Integer.parseInt(args[++i]); break;
+                    case "-r": seconds = Integer.parseInt(args[++i]); break;
+                    case "-t": tolerance = Double.parseDouble(args[++i]); break;
+                    case "-jvm": jvmArgs = args[++i]; break;
+                    case "-o": output = args[++i]; break;
+                    case "-b": baseline = args[++i]; break;
+                    case "-l": list = true; break;
+                    case "-p": {
+                        String param = args[++i];
+                        overrides.put(param.substring(0, param.indexOf('=')), param.substring(param.indexOf('=') + 1).split(","));
+                        break;
+                    }
+                    default: filters.add(args[i]); break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.out.println("Uso: BenchmarkRunner [-f forks] [-wi aquecimento] [-i iterações] [-r segundos] [-p nome=v1,v2] [-jvm \"args\"]"
+                    + " [-o resultados.csv] [-b base.csv] [-t tolerância%] [-l] [filtro ...]");
+            return;
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Definition definition : BENCHMARKS) {
+            if (!filters.isEmpty() && filters.stream().noneMatch(definition.name::contains)) {
+                continue;
+            }
+
+            for (Map<String, String> params : combinations(definition, overrides)) {
+                if (list) {
+                    System.out.println(definition.name + " " + format(params));
+                    continue;
+                }
+                results.add(measure(definition, params, forks, warmups, iterations, seconds, jvmArgs));
+            }
+        }
+        if (list) {
+            return;
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-24s %-52s %14s   %-10s %s", "Benchmark", "Parâmetros", "Score", "± Erro", "Unidade"));
+        for (Result result : results) {
+            System.out.println(String.format(Locale.ROOT, "%-24s %-52s %14.2f ± %-10.2f %s",
+                    result.benchmark, result.params, result.score, result.error, result.unit));
+        }
+
+        if (output != null) {
+            write(new File(output), results, forks, warmups, iterations, seconds, jvmArgs);
+            System.out.println("Resultados gravados em " + output);
+        }
+        if (baseline != null && compare(readResults(new File(baseline)), results, tolerance) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Roda os forks de uma combinação e junta as amostras.
+     */
+    private static Result measure(Definition definition, Map<String, String> params, int forks, int warmups, int iterations,
+                                  int seconds, String jvmArgs) throws Exception {
+        System.out.println("# " + definition.name + " " + format(params));
+
+        List<Double> samples = new ArrayList<>();
+        for (int fork = 1; fork <= forks; fork++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (param.getKey().startsWith("napster.")) {
+                    command.add("-D" + param.getKey() + "=" + param.getValue());
+                }
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BenchmarkRunner.class.getName());
+            command.add("--fork");
+            command.add(definition.name);
+            command.add(String.valueOf(warmups));
+            command.add(String.valueOf(iterations));
+            command.add(String.valueOf(seconds));
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (!param.getKey().startsWith("napster.")) {
+                    command.add(param.getKey() + "=" + param.getValue());
+                }
+            }
+
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields[0].equals("INFO")) {
+                        System.out.println("  Fork " + fork + ": " + line.substring(5));
+                    } else if (fields[0].equals("WARMUP") || fields[0].equals("ITERATION")) {
+                        double score = Long.parseLong(fields[2]) / definition.unitSize / (Long.parseLong(fields[3]) / 1e9);
+                        boolean warmup = fields[0].equals("WARMUP");
+                        System.out.println(String.format(Locale.ROOT, "  Fork %d, %s %s: %.2f %s", fork,
+                                warmup ? "aquecimento" : "iteração", fields[1], score, definition.unit));
+                        if (!warmup) {
+                            samples.add(score);
+                        }
+                    }
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("O fork de " + definition.name + " terminou com código " + process.exitValue());
+            }
+        }
+
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= samples.size();
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = samples.size() > 1
+                ? studentT999(samples.size() - 1) * Math.sqrt(variance / (samples.size() - 1)) / Math.sqrt(samples.size())
+                : Double.NaN;
+
+        return new Result(definition.name, format(params), mean, error, definition.unit, samples.size());
+    }
+
+    /**
+     * Lado do fork: prepara o workload e imprime cada iteração no stdout
+     * original, com o stdout do código medido descartado (o servidor imprime
+     * uma linha por requisição).
+     */
+    private static void fork(String[] args) throws Exception {
+        Definition definition = null;
+        for (Definition candidate : BENCHMARKS) {
+            if (candidate.name.equals(args[1])) {
+                definition = candidate;
+            }
+        }
+        if (definition == null) {
+            throw new IllegalArgumentException("Benchmark desconhecido: " + args[1]);
+        }
+        int warmups = Integer.parseInt(args[2]);
+        int iterations = Integer.parseInt(args[3]);
+        long nanos = Integer.parseInt(args[4]) * 1_000_000_000L;
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 5; i < args.length; i++) {
+            params.put(args[i].substring(0, args[i].indexOf('=')), args[i].substring(args[i].indexOf('=') + 1));
+        }
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        Workload workload = definition.workload.get();
+        workload.setup(params);
+        if (workload.describe() != null) {
+            report.println("INFO " + workload.describe());
+        }
+
+        int threads = Math.max(1, Integer.parseInt(params.getOrDefault("threads", "1")));
+        for (int i = 1; i <= warmups + iterations; i++) {
+            long[] result = iteration(workload, threads, nanos);
+            report.println((i <= warmups ? "WARMUP " + i : "ITERATION " + (i - warmups)) + " " + result[0] + " " + result[1]);
+            report.flush();
+        }
+
+        workload.teardown();
+        System.exit(0);
+    }
+
+    /**
+     * Roda o workload em todas as threads até o tempo da iteração acabar.
+     *
+     * @return as unidades processadas e a duração em nanossegundos.
+     */
+    private static long[] iteration(Workload workload, int threads, long nanos) throws Exception {
+        AtomicLong units = new AtomicLong();
+        Exception[] failure = { null };
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(42 + t);
+            workers[t] = new Thread(() -> {
+                try {
+                    long done = 0;
+                    do {
+                        done += workload.run(random);
+                    } while (System.nanoTime() - start < nanos);
+                    units.addAndGet(done);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }, "benchmark-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return new long[] { units.get(), elapsed };
+    }
+
+    /**
+     * Produto cartesiano dos valores dos parâmetros, com os valores de -p no lugar dos padrões.
+     */
+    private static List<Map<String, String>> combinations(Definition definition, Map<String, String[]> overrides) {
+        List<Map<String, String>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (Map.Entry<String, String[]> param : definition.params.entrySet()) {
+            String[] values = overrides.getOrDefault(param.getKey(), param.getValue());
+            List<Map<String, String>> next = new ArrayList<>();
+            for (Map<String, String> combination : combinations) {
+                for (String value : values) {
+                    Map<String, String> copy = new LinkedHashMap<>(combination);
+                    copy.put(param.getKey(), value);
+                    next.add(copy);
+                }
+            }
+            combinations = next;
+        }
+
+        return combinations;
+    }
+
+    private static String format(Map<String, String> params) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            text.append(text.length() > 0 ? ";" : "").append(param.getKey()).append('=').append(param.getValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Quantil 0,9995 da distribuição t de Student, para o intervalo de 99,9%.
+     * Entre dois graus de liberdade da tabela usa o menor, que dá um intervalo maior.
+     */
+    private static double studentT999(int degrees) {
+        int[] df = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 12, 15, 20, 30, 60, 120 };
+        double[] t = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59, 4.32, 4.07, 3.85, 3.65, 3.46, 3.37 };
+        if (degrees > 120) {
+            return 3.29;
+        }
+        for (int i = df.length - 1; i >= 0; i--) {
+            if (degrees >= df[i]) {
+                return t[i];
+            }
+        }
+        return t[0];
+    }
+
+    /**
+     * Grava os resultados em CSV, com o ambiente da medição nas linhas de comentário.
+     */
+    private static void write(File file, List<Result> results, int forks, int warmups, int iterations, int seconds,
+                              String jvmArgs) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("# java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") + "), "
+                    + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " CPUs");
+            writer.println("# forks=" + forks + " aquecimento=" + warmups + " iterações=" + iterations + " segundos=" + seconds
+                    + " jvm=" + jvmArgs);
+            writer.println("benchmark,params,score,error,unit,samples");
+            for (Result result : results) {
+                writer.println(String.format(Locale.ROOT, "%s,%s,%.4f,%.4f,%s,%d",
+                        result.benchmark, result.params, result.score, result.error, result.unit, result.samples));
+            }
+        }
+    }
+
+    private static Map<String, Result> readResults(File file) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (line.startsWith("#") || fields.length < 6 || fields[0].equals("benchmark")) {
+                    continue;
+                }
+                results.put(fields[0] + " " + fields[1], new Result(fields[0], fields[1], Double.parseDouble(fields[2]),
+                        Double.parseDouble(fields[3]), fields[4], Integer.parseInt(fields[5])));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Compara com a base. Só é regressão uma queda maior que a tolerância em
+     * que os intervalos de confiança não se sobrepõem, para não acusar ruído.
+     *
+     * @return a quantidade de regressões.
+     */
+    private static int compare(Map<String, Result> baseline, List<Result> results, double tolerance) {
+        System.out.println();
+        System.out.println("Comparação com a base (tolerância de " + tolerance + "%):");
+
+        int regressions = 0;
+        for (Result result : results) {
+            Result base = baseline.get(result.benchmark + " " + result.params);
+            if (base == null) {
+                System.out.println("  " + result.benchmark + " " + result.params + ": sem base");
+                continue;
+            }
+
+            double change = (result.score - base.score) / base.score * 100;
+            double resultError = Double.isNaN(result.error) ? 0 : result.error;
+            double baseError = Double.isNaN(base.error) ? 0 : base.error;
+            boolean regression = change < -tolerance && result.score + resultError < base.score - baseError;
+            if (regression) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ROOT, "  %s %s: %.2f -> %.2f %s (%+.1f%%)%s", result.benchmark, result.params,
+                    base.score, result.score, result.unit, change, regression ? "  REGRESSÃO" : ""));
+        }
+
+        System.out.println(regressions == 0 ? "Nenhuma regressão." : regressions + " regressões.");
+        return regressions;
+    }
+}
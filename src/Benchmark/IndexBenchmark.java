@@ -0,0 +1,107 @@
+package Benchmark;
+
+import NapsterService.NapsterImpl;
+import NapsterService.NapsterIndex;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Operações do NapsterImpl chamadas direto, sem RMI, num índice com
+ * <peers> peers de <files> arquivos cada.
+ *
+ * Parâmetros:
+ * - op: search (SEARCH com a lista em String), searchPeers (SEARCH tipado),
+ *   join (um peer registrado entra de novo com os mesmos arquivos) ou update
+ *   (UPDATE de um arquivo novo seguido do REMOVE dele, para o índice não crescer);
+ * - peers e files: tamanho do catálogo;
+ * - threads: quantas threads chamam o serviço ao mesmo tempo.
+ *
+ * Os nomes seguem a mesma distribuição enviesada do IndexFootprint: poucos
+ * arquivos populares e uma cauda longa, com peers * files / 10 nomes distintos.
+ */
+public class IndexBenchmark extends Workload {
+    private String op;
+    private NapsterImpl napster;
+    private String[][] peerFiles;
+    private String[][] peerHashes;
+    private String[] names;
+    private String[] hashes;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        this.op = params.getOrDefault("op", "search");
+        int peers = intParam(params, "peers", 10000);
+        int files = intParam(params, "files", 20);
+        int distinct = Math.max(1, peers * files / 10);
+
+        // Os peers do catálogo não mandam heartbeat durante a medição
+        System.setProperty("napster.lease.seconds", String.valueOf(Integer.MAX_VALUE / 1000));
+        this.napster = new NapsterImpl(new NapsterIndex());
+
+        this.names = new String[distinct];
+        this.hashes = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            this.names[i] = "musica-" + i + ".mp3";
+            this.hashes[i] = String.format("%064x", i);
+        }
+
+        Random random = new Random(1);
+        this.peerFiles = new String[peers][files];
+        this.peerHashes = new String[peers][files];
+        for (int peer = 0; peer < peers; peer++) {
+            for (int j = 0; j < files; j++) {
+                int name = this.pick(random);
+                this.peerFiles[peer][j] = this.names[name];
+                this.peerHashes[peer][j] = this.hashes[name];
+            }
+            this.napster.join(this.peerFiles[peer], this.peerHashes[peer], ip(peer), 5000);
+        }
+    }
+
+    @Override
+    public long run(Random random) throws Exception {
+        switch (this.op) {
+            case "search":
+                this.consume(this.napster.search(this.names[this.pick(random)], "10.255.0.1", 1));
+                break;
+            case "searchPeers":
+                this.consume(this.napster.searchPeers(this.names[this.pick(random)], 0, 50, "10.255.0.1", 1));
+                break;
+            case "join": {
+                int peer = random.nextInt(this.peerFiles.length);
+                this.consume(this.napster.join(this.peerFiles[peer], this.peerHashes[peer], ip(peer), 5000));
+                break;
+            }
+            case "update": {
+                int peer = random.nextInt(this.peerFiles.length);
+                String[] filename = { "novo-" + random.nextInt(1 << 20) + ".mp3" };
+                this.consume(this.napster.updateBatch(filename, new String[] { "" }, ip(peer), 5000));
+                this.consume(this.napster.removeBatch(filename, ip(peer), 5000));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("op desconhecida: " + this.op);
+        }
+
+        return 1;
+    }
+
+    @Override
+    public String describe() {
+        int pairs = 0;
+        for (String[] files : this.peerFiles) {
+            pairs += files.length;
+        }
+        return this.peerFiles.length + " peers, " + this.names.length + " nomes, " + pairs + " pares (arquivo, peer)";
+    }
+
+    private int pick(Random random) {
+        double u = random.nextDouble();
+        return (int) (this.names.length * u * u);
+    }
+
+    private static String ip(int peer) {
+        return "10." + (peer >> 16 & 255) + "." + (peer >> 8 & 255) + "." + (peer & 255);
+    }
+}
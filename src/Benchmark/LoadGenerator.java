@@ -0,0 +1,344 @@
+package Benchmark;
+
+import Monitoring.Histogram;
+import NapsterService.BinaryClient;
+import NapsterService.NapsterImpl;
+import NapsterService.NapsterIndex;
+import NapsterService.NapsterMessage;
+import NapsterService.NapsterService;
+import NapsterService.SearchResult;
+import Server.BinaryServer;
+
+import java.io.IOException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gerador de carga que compara o RMI com o BinaryProtocol no mesmo índice.
+ *
+ * Para cada protocolo, <conexões> threads chamam o servidor em loop fechado
+ * (a próxima requisição sai quando a resposta chega), cada uma com a sua
+ * conexão binária; no RMI todas usam o mesmo stub, como os peers. Depois do
+ * aquecimento, a latência de cada requisição vai para um Histogram, e no
+ * final são impressos as requisições por segundo e os percentis.
+ *
+ * Sem -h, o gerador sobe o servidor na própria JVM (RMI na porta -r e binário
+ * na porta -b) com um catálogo de <peers> peers de <files> arquivos. Com -h,
+ * usa um Server já rodando com napster.binary.port, e cadastra o catálogo
+ * nele; o servidor deve ter um napster.lease.seconds maior que a medição.
+ *
+ * Operações (-op), as mesmas do IndexBenchmark:
+ * - search: SEARCH tipado (searchPeers) de 50 peers de um nome do catálogo;
+ * - join: um peer do catálogo entra de novo com os mesmos arquivos;
+ * - update: UPDATE de um arquivo novo seguido do REMOVE dele (duas requisições).
+ *
+ * Uso: LoadGenerator [-h host] [-r porta RMI] [-b porta binária] [-op search|join|update]
+ *                    [-c conexões] [-w aquecimento] [-d segundos] [-peers n] [-files n]
+ *                    [-p rmi,binary]
+ */
+public class LoadGenerator {
+    /**
+     * As chamadas usadas na medição, iguais no NapsterService e no BinaryClient.
+     */
+    private interface Connection extends AutoCloseable {
+        NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws IOException;
+
+        NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws IOException;
+
+        NapsterMessage removeBatch(String[] filenames, String ip, int port) throws IOException;
+
+        SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static Connection rmi(NapsterService napster) {
+        return new Connection() {
+            @Override
+            public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+                return napster.join(filenames, hashes, ip, port);
+            }
+
+            @Override
+            public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+                return napster.updateBatch(filenames, hashes, ip, port);
+            }
+
+            @Override
+            public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws IOException {
+                return napster.removeBatch(filenames, ip, port);
+            }
+
+            @Override
+            public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws IOException {
+                return napster.searchPeers(filename, offset, limit, ip, port);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static Connection binary(BinaryClient client) {
+        return new Connection() {
+            @Override
+            public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+                return client.join(filenames, hashes, ip, port);
+            }
+
+            @Override
+            public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+                return client.updateBatch(filenames, hashes, ip, port);
+            }
+
+            @Override
+            public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws IOException {
+                return client.removeBatch(filenames, ip, port);
+            }
+
+            @Override
+            public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws IOException {
+                return client.searchPeers(filename, offset, limit, ip, port);
+            }
+
+            @Override
+            public void close() throws IOException {
+                client.close();
+            }
+        };
+    }
+
+    /**
+     * Resultado da medição de um protocolo.
+     */
+    private static class Result {
+        final Histogram latency = new Histogram();
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final String host;
+    private final int rmiPort;
+    private final int binaryPort;
+    private final String op;
+    private final String[][] peerFiles;
+    private final String[][] peerHashes;
+    private final String[] names;
+
+    private NapsterService napster;
+
+    private LoadGenerator(String host, int rmiPort, int binaryPort, String op, int peers, int files) {
+        this.host = host;
+        this.rmiPort = rmiPort;
+        this.binaryPort = binaryPort;
+        this.op = op;
+
+        // Mesma distribuição do IndexBenchmark: poucos nomes populares e uma cauda longa
+        int distinct = Math.max(1, peers * files / 10);
+        this.names = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            this.names[i] = "musica-" + i + ".mp3";
+        }
+
+        Random random = new Random(1);
+        this.peerFiles = new String[peers][files];
+        this.peerHashes = new String[peers][files];
+        for (int peer = 0; peer < peers; peer++) {
+            for (int j = 0; j < files; j++) {
+                int name = this.pick(random);
+                this.peerFiles[peer][j] = this.names[name];
+                this.peerHashes[peer][j] = String.format("%064x", name);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = null;
+        int rmiPort = 1099;
+        int binaryPort = 1100;
+        String op = "search";
+        int connections = 16;
+        int warmup = 5;
+        int seconds = 10;
+        int peers = 10000;
+        int files = 20;
+        String[] protocols = { "rmi", "binary" };
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-h": host = args[++i]; break;
+                    case "-r": rmiPort = Integer.parseInt(args[++i]); break;
+                    case "-b": binaryPort = Integer.parseInt(args[++i]); break;
+                    case "-op": op = args[++i]; break;
+                    case "-c": connections = Integer.parseInt(args[++i]); break;
+                    case "-w": warmup = Integer.parseInt(args[++i]); break;
+                    case "-d": seconds = Integer.parseInt(args[++i]); break;
+                    case "-peers": peers = Integer.parseInt(args[++i]); break;
+                    case "-files": files = Integer.parseInt(args[++i]); break;
+                    case "-p": protocols = args[++i].split(","); break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (!op.equals("search") && !op.equals("join") && !op.equals("update")) {
+                throw new IllegalArgumentException(op);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.out.println("Uso: LoadGenerator [-h host] [-r porta RMI] [-b porta binária] [-op search|join|update] [-c conexões]"
+                    + " [-w aquecimento] [-d segundos] [-peers n] [-files n] [-p rmi,binary]");
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(host != null ? host : "127.0.0.1", rmiPort, binaryPort, op, peers, files);
+        if (host == null) {
+            generator.startServer();
+        }
+        generator.connect();
+        generator.load();
+
+        List<String> lines = new ArrayList<>();
+        for (String protocol : protocols) {
+            System.out.println("# " + protocol + " " + op + ", " + connections + " conexões, " + warmup + " s de aquecimento, " + seconds + " s de medição");
+            Result result = generator.measure(protocol, connections, warmup, seconds);
+            Histogram latency = result.latency;
+            lines.add(String.format(Locale.ROOT, "%-8s %-8s %9d %12.0f %10.3f %10.3f %10.3f %10.3f %8d",
+                    protocol, op, connections, result.requests.sum() / (double) seconds, millis(latency.getQuantile(0.5)),
+                    millis(latency.getQuantile(0.99)), millis(latency.getQuantile(0.999)), millis(latency.getMax()), result.errors.sum()));
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-8s %-8s %9s %12s %10s %10s %10s %10s %8s",
+                "Protocolo", "Op", "Conexões", "Req/s", "p50 (ms)", "p99 (ms)", "p999 (ms)", "max (ms)", "Erros"));
+        lines.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    /**
+     * Sobe o índice nesta JVM, com o RMI e o BinaryServer, como o Server faz.
+     */
+    private void startServer() throws Exception {
+        // Os peers do catálogo não mandam heartbeat durante a medição, e cada requisição não deve gerar uma linha de log
+        System.setProperty("napster.lease.seconds", String.valueOf(Integer.MAX_VALUE / 1000));
+        if (System.getProperty("napster.log.level") == null) {
+            System.setProperty("napster.log.level", "WARN");
+        }
+
+        NapsterImpl napster = new NapsterImpl(new NapsterIndex());
+        Registry registry = LocateRegistry.createRegistry(this.rmiPort);
+        registry.bind("rmi://" + this.host + "/napster", napster);
+        new BinaryServer(napster, this.binaryPort, Runtime.getRuntime().availableProcessors()).start();
+    }
+
+    private void connect() throws Exception {
+        this.napster = (NapsterService) LocateRegistry.getRegistry(this.host, this.rmiPort).lookup("rmi://" + this.host + "/napster");
+    }
+
+    /**
+     * Cadastra o catálogo pelo RMI.
+     */
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        for (int peer = 0; peer < this.peerFiles.length; peer++) {
+            this.napster.join(this.peerFiles[peer], this.peerHashes[peer], ip(peer), 5000);
+        }
+        System.out.println("Catálogo com " + this.peerFiles.length + " peers e " + this.names.length + " nomes cadastrado em "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private Result measure(String protocol, int connections, int warmup, int seconds) throws Exception {
+        Result result = new Result();
+        long measureStart = System.nanoTime() + warmup * 1_000_000_000L;
+        long end = measureStart + seconds * 1_000_000_000L;
+
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            int seed = i;
+            Connection connection = protocol.equals("binary") ? binary(new BinaryClient(this.host, this.binaryPort)) : rmi(this.napster);
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                try (Connection c = connection) {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        this.run(c, random, result, now >= measureStart);
+                    }
+                } catch (IOException e) {
+                    result.errors.increment();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + protocol + "-" + i);
+            threads.add(thread);
+        }
+
+        threads.forEach(Thread::start);
+        done.await();
+        return result;
+    }
+
+    /**
+     * Executa uma operação, gravando a latência de cada requisição se já passou do aquecimento.
+     */
+    private void run(Connection connection, Random random, Result result, boolean measured) {
+        switch (this.op) {
+            case "search":
+                this.call(result, measured, () -> connection.searchPeers(this.names[this.pick(random)], 0, 50, "10.255.0.1", 1));
+                break;
+            case "join": {
+                int peer = random.nextInt(this.peerFiles.length);
+                this.call(result, measured, () -> connection.join(this.peerFiles[peer], this.peerHashes[peer], ip(peer), 5000));
+                break;
+            }
+            default: {
+                int peer = random.nextInt(this.peerFiles.length);
+                String[] filename = { "novo-" + random.nextInt(1 << 20) + ".mp3" };
+                this.call(result, measured, () -> connection.updateBatch(filename, new String[] { "" }, ip(peer), 5000));
+                this.call(result, measured, () -> connection.removeBatch(filename, ip(peer), 5000));
+                break;
+            }
+        }
+    }
+
+    private interface Call {
+        Object call() throws IOException;
+    }
+
+    private void call(Result result, boolean measured, Call call) {
+        long start = System.nanoTime();
+        boolean failed;
+        try {
+            Object response = call.call();
+            failed = response instanceof NapsterMessage && ((NapsterMessage) response).getMessage().endsWith("_ERROR");
+        } catch (IOException e) {
+            failed = true;
+        }
+
+        if (measured) {
+            result.latency.record(System.nanoTime() - start);
+            result.requests.increment();
+            if (failed) {
+                result.errors.increment();
+            }
+        }
+    }
+
+    private int pick(Random random) {
+        double u = random.nextDouble();
+        return (int) (this.names.length * u * u);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String ip(int peer) {
+        return "10." + (peer >> 16 & 255) + "." + (peer >> 8 & 255) + "." + (peer & 255);
+    }
+}
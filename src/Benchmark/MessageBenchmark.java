@@ -0,0 +1,77 @@
+package Benchmark;
+
+import NapsterService.NapsterMessage;
+import NapsterService.SearchResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Custo de serializar e desserializar uma resposta do SEARCH, como o RMI faz
+ * a cada chamada.
+ *
+ * Parâmetros:
+ * - type: message (NapsterMessage com os peers em "<ip>:<porta>\n", como no
+ *   SEARCH antigo) ou result (SearchResult, 6 bytes por peer);
+ * - size: quantidade de peers na resposta.
+ */
+public class MessageBenchmark extends Workload {
+    private Serializable message;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private int serializedSize;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        int size = intParam(params, "size", 100);
+        Random random = new Random(1);
+
+        if (params.getOrDefault("type", "message").equals("result")) {
+            SearchResult result = new SearchResult("musica.mp3", size, 0, size);
+            for (int i = 0; i < size; i++) {
+                result.add(random.nextInt(), null, 1024 + random.nextInt(60000));
+            }
+            this.message = result;
+        } else {
+            StringBuilder peers = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                peers.append("10.").append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.')
+                        .append(random.nextInt(256)).append(':').append(1024 + random.nextInt(60000)).append('\n');
+            }
+            this.message = new NapsterMessage("SEARCH", "SEARCH_OK", new String[] { peers.toString() });
+        }
+
+        this.serializedSize = this.roundTrip();
+    }
+
+    @Override
+    public long run(Random random) throws Exception {
+        this.consume(this.roundTrip());
+        return 1;
+    }
+
+    @Override
+    public String describe() {
+        return this.serializedSize + " bytes serializados";
+    }
+
+    /**
+     * Um stream novo por mensagem, como o RMI faz para cada valor de retorno.
+     */
+    private int roundTrip() throws Exception {
+        this.buffer.reset();
+        try (ObjectOutputStream output = new ObjectOutputStream(this.buffer)) {
+            output.writeObject(this.message);
+        }
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(this.buffer.toByteArray()))) {
+            this.consume(input.readObject());
+        }
+
+        return this.buffer.size();
+    }
+}
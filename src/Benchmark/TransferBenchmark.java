@@ -0,0 +1,120 @@
+package Benchmark;
+
+import Client.Client;
+import Client.PeerServer;
+import Client.SegmentedDownload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Download de um arquivo de um PeerServer em localhost, pelo mesmo caminho
+ * do comando DOWNLOAD (SegmentedDownload de um lado, HandleDownloadThread do
+ * outro), medido em bytes por segundo.
+ *
+ * Parâmetros:
+ * - size: tamanho do arquivo em KB;
+ * - content: random (não comprime, então vai sem compressão) ou text (comprime bem).
+ *
+ * A estratégia de envio vem das propriedades do peer, que o runner passa
+ * para a JVM da medição: napster.zerocopy (transferTo ou cópia em blocos),
+ * napster.compression e napster.pipeline.
+ */
+public class TransferBenchmark extends Workload {
+    private static final String FILENAME = "benchmark.bin";
+
+    private File source;
+    private File target;
+    private InetSocketAddress peer;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        long size = intParam(params, "size", 16 * 1024) * 1024L;
+        boolean text = params.getOrDefault("content", "random").equals("text");
+
+        this.source = Files.createTempDirectory("napster-benchmark-source").toFile();
+        this.target = Files.createTempDirectory("napster-benchmark-target").toFile();
+        writeFile(new File(this.source, FILENAME), size, text);
+
+        int port = freePort();
+        Client.ClientPeer clientPeer = new Client.ClientPeer(this.source.getPath(), "127.0.0.1", port);
+        Thread server = new Thread(PeerServer.fromProperties(clientPeer), "benchmark-peer-server");
+        server.setDaemon(true);
+        server.start();
+
+        this.peer = new InetSocketAddress("127.0.0.1", port);
+        awaitListening(this.peer);
+    }
+
+    @Override
+    public long run(Random random) throws Exception {
+        File file = new File(this.target, FILENAME);
+        Files.deleteIfExists(file.toPath());
+
+        return new SegmentedDownload(FILENAME, Collections.singletonList(this.peer), file).run();
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        for (File directory : new File[] { this.source, this.target }) {
+            File[] files = directory.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(directory.toPath());
+        }
+    }
+
+    /**
+     * Arquivo com bytes aleatórios ou com linhas de log repetitivas, sempre com a mesma semente.
+     */
+    private static void writeFile(File file, long size, boolean text) throws IOException {
+        Random random = new Random(1);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                if (text) {
+                    StringBuilder lines = new StringBuilder(block.length);
+                    while (lines.length() < block.length) {
+                        lines.append("2024-01-01 12:00:").append(random.nextInt(60)).append(" INFO peer 10.0.0.")
+                                .append(random.nextInt(256)).append(" baixou o segmento ").append(random.nextInt(1000)).append('\n');
+                    }
+                    System.arraycopy(lines.toString().getBytes(StandardCharsets.UTF_8), 0, block, 0, block.length);
+                } else {
+                    random.nextBytes(block);
+                }
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(InetSocketAddress address) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 1000);
+                return;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package Benchmark;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Uma operação medida pelo BenchmarkRunner.
+ *
+ * O runner chama setup uma vez, fora da medição, e depois chama run em
+ * loop, em uma ou mais threads, somando as unidades retornadas (operações ou
+ * bytes). Cada thread recebe o seu próprio Random, sempre com a mesma
+ * semente, para que duas execuções façam as mesmas operações.
+ */
+public abstract class Workload {
+    /**
+     * Impede que o JIT descarte um resultado que ninguém usa.
+     */
+    private volatile int sink;
+
+    /**
+     * Prepara o estado da medição.
+     *
+     * @param params parâmetros do benchmark, como peers=1000 ou threads=4
+     */
+    public void setup(Map<String, String> params) throws Exception {
+    }
+
+    /**
+     * Executa uma operação.
+     *
+     * @param random gerador da thread, que só deve ser usado por ela
+     * @return quantas unidades a operação processou (1 para uma operação, ou a quantidade de bytes)
+     */
+    public abstract long run(Random random) throws Exception;
+
+    public void teardown() throws Exception {
+    }
+
+    /**
+     * @return informações sobre o estado preparado pelo setup (tamanho de uma mensagem, por exemplo), ou null.
+     */
+    public String describe() {
+        return null;
+    }
+
+    protected final void consume(Object value) {
+        this.sink += System.identityHashCode(value);
+    }
+
+    protected final void consume(long value) {
+        this.sink += (int) value;
+    }
+
+    protected static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
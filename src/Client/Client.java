@@ -1,16 +1,27 @@
 package Client;
 
+import Monitoring.Log;
+import Monitoring.Meter;
+import Monitoring.Metrics;
+import Monitoring.MetricsExporter;
+import NapsterService.NapsterCluster;
 import NapsterService.NapsterService;
 import NapsterService.NapsterMessage;
+import NapsterService.SearchResult;
 
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.ArrayList;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Classe que representa um peer.
@@ -23,11 +34,18 @@ public class Client {
         int port;
         String ip;
         private String directory;
-        private ArrayList<String> filenames;
+        private FileCatalog catalog;
+        private ContentHashes contentHashes;
+
+        /**
+         * Enxames dos downloads em andamento, pelo hash de conteúdo.
+         */
+        private final Map<String, Swarm> swarms = new ConcurrentHashMap<>();
 
         public ClientPeer(String directory, String ip, int port) {
             this.directory = directory;
-            this.filenames = this.fetchFilenames();
+            this.catalog = new FileCatalog(new File(directory));
+            this.contentHashes = new ContentHashes(new File(directory));
             this.ip = ip;
             this.port = port;
         }
@@ -45,77 +63,411 @@ public class Client {
         }
 
         public String[] getFilenames() {
-            return this.filenames.toArray(new String[this.filenames.size()]);
+            return this.catalog.getFilenames();
         }
 
         public boolean hasFile(String filename) {
-            return this.filenames.contains(filename);
+            return this.catalog.contains(filename);
         }
 
+        /**
+         * Coloca no catálogo um arquivo criado pelo próprio peer, avisando os Listeners do catálogo na hora.
+         */
         public void addFile(String filename) {
-            this.filenames.add(filename);
+            this.catalog.add(filename);
+        }
+
+        /**
+         * Catálogo dos arquivos do diretório, que avisa quando arquivos são criados, apagados ou alterados.
+         */
+        public FileCatalog getCatalog() {
+            return this.catalog;
         }
 
         public File getFile(String filename) {
             return new File(this.directory + "/" + filename);
         }
 
-        private ArrayList<String> fetchFilenames() {
-            File dir = new File(this.directory);
-            if (!dir.exists()) {
-                dir.mkdirs();
-                return new ArrayList<>();
+        public ContentHashes getContentHashes() {
+            return this.contentHashes;
+        }
+
+        /**
+         * Hash de conteúdo de cada arquivo, calculado só para os arquivos que mudaram desde o último cálculo.
+         */
+        public String[] getContentHashes(String[] filenames) {
+            return this.contentHashes.contentHashes(filenames);
+        }
+
+        /**
+         * Descobre o arquivo local pedido por outro peer, pelo nome ou pelo hash de conteúdo.
+         *
+         * @return o nome do arquivo, ou null se o peer não tem o conteúdo pedido.
+         */
+        public String resolve(String target) {
+            // Arquivos internos (parciais, cache de hashes) não são enviados
+            if (target.startsWith(ContentHashes.INTERNAL_PREFIX)) {
+                return null;
+            }
+            if (target.startsWith(PeerRequest.CONTENT_PREFIX)) {
+                return this.contentHashes.findByContent(target.substring(PeerRequest.CONTENT_PREFIX.length()));
             }
-            File[] files = dir.listFiles();
 
-            ArrayList<String> filenames = new ArrayList<>();
-            for (int i = 0; i < files.length; i++) {
-                filenames.add(files[i].getName());
+            return target;
+        }
+
+        /**
+         * @return o enxame do conteúdo pedido por outro peer ("content:<hash>"), se o peer está baixando esse conteúdo, ou null.
+         */
+        public Swarm getSwarm(String target) {
+            if (!target.startsWith(PeerRequest.CONTENT_PREFIX)) {
+                return null;
             }
+            return this.swarms.get(target.substring(PeerRequest.CONTENT_PREFIX.length()));
+        }
+
+        void addSwarm(Swarm swarm) {
+            this.swarms.put(swarm.getContentHash(), swarm);
+        }
 
-            return filenames;
+        void removeSwarm(Swarm swarm) {
+            this.swarms.remove(swarm.getContentHash(), swarm);
         }
     }
 
     /**
-     * Classe para representar uma thread que lida com o download de um arquivo.
+     * Classe para representar a tarefa que lida com o download de um arquivo.
+     * Ela é executada pelo PeerServer.
+     *
+     * Quando o socket veio de um ServerSocketChannel o arquivo é enviado com
+     * FileChannel.transferTo (sendfile), sem copiar os bytes para o heap. Caso
+     * contrário, ou se a propriedade napster.zerocopy for false, usa o envio
+     * antigo em blocos de 1024 bytes.
+     *
+     * Se a primeira requisição for KEEPALIVE, a mesma tarefa atende todas as
+     * requisições seguintes da conexão, sem uma nova thread por requisição.
+     *
+     * Com limite de banda (Throttle do PeerServer) o arquivo é enviado em
+     * pedaços de Throttle.QUANTUM bytes, esperando o limite antes de cada um.
+     *
+     * Um conteúdo que o peer ainda está baixando (Swarm) é enviado do arquivo
+     * parcial, só nos chunks que já foram baixados.
      */
-    public static class HandleDownloadThread extends Thread {
+    public static class HandleDownloadThread implements Runnable {
+        private static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("napster.zerocopy", "true"));
+
+        /**
+         * Tempo que uma conexão persistente fica aberta sem requisições, da propriedade napster.keepalive.seconds.
+         */
+        static final int KEEPALIVE_SECONDS = Integer.getInteger("napster.keepalive.seconds", 15);
+
+        /**
+         * Intervalo em que uma conexão persistente ociosa confere se há outros peers esperando na fila.
+         */
+        private static final int IDLE_CHECK_MILLIS = 1000;
+
         private Socket client;
         private ClientPeer clientPeer;
+        private PeerServer server;
+        private Throttle throttle;
+
+        /**
+         * Bytes enviados para o peer do outro lado, criado na primeira requisição atendida.
+         */
+        private Meter uploaded;
+
         public HandleDownloadThread(Socket client, ClientPeer clientPeer) {
-            super();
+            this(client, clientPeer, null);
+        }
+
+        /**
+         * @param server servidor que atende a conexão, para liberar conexões persistentes quando há fila
+         */
+        public HandleDownloadThread(Socket client, ClientPeer clientPeer, PeerServer server) {
             this.client = client;
             this.clientPeer = clientPeer;
+            this.server = server;
+            this.throttle = server != null ? server.newThrottle() : new Throttle(null, 0, null);
         }
+
         public void run() {
             try {
-                InputStream input = this.client.getInputStream();
-                byte[] buffer = new byte[1024];
-                int bytesRead = input.read(buffer);
-                String filename = new String(buffer, 0, bytesRead);
+                BufferedInputStream input = new BufferedInputStream(this.client.getInputStream(), 8 * 1024);
+                OutputStream output = this.client.getOutputStream();
+                PeerRequest request = PeerRequest.read(input);
 
-                File file = this.clientPeer.getFile(filename);
-                if (!file.exists()) {
+                if (request.getType() == PeerRequest.Type.KEEPALIVE) {
+                    this.serveKeepAlive(input, output);
+                } else if (!this.serve(request, output)) {
                     throw new Exception("Esse arquivo não existe.");
                 }
-                FileInputStream fileInputStream = new FileInputStream(file);
-                OutputStream output = this.client.getOutputStream();
+            } catch (Exception e) {
+                Log.warn("Falha ao realizar download: {}", e.getMessage());
+            } finally {
+                try {
+                    this.client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Atende as requisições de uma conexão persistente, na ordem em que chegaram.
+         *
+         * A conexão é fechada depois de KEEPALIVE_SECONDS sem requisições, ou
+         * quando ela fica ociosa e há outros peers esperando na fila do servidor.
+         */
+        private void serveKeepAlive(BufferedInputStream input, OutputStream output) throws IOException {
+            PeerRequest.writeOk(output, KEEPALIVE_SECONDS);
+            if (this.server != null) {
+                this.server.keepAliveOpened();
+            }
 
-                // Envia o arquivo em blocos de 1024 bytes.
-                byte[] fileBuffer = new byte[1024];
-                int fileBytesRead;
-                while ((fileBytesRead = fileInputStream.read(fileBuffer)) != -1) {
-                    output.write(fileBuffer, 0, fileBytesRead);
+            boolean served = false;
+            while (this.awaitRequest(input, served)) {
+                served = true;
+                this.client.setSoTimeout(KEEPALIVE_SECONDS * 1000);
+                PeerRequest request = PeerRequest.readNext(input);
+                if (request == null) {
+                    return;
                 }
+                if (request.getType() == PeerRequest.Type.KEEPALIVE || request.getType() == PeerRequest.Type.LEGACY) {
+                    PeerRequest.writeError(output, "Requisição inválida numa conexão persistente.");
+                    return;
+                }
+                if (!this.serve(request, output)) {
+                    Log.warn("Falha ao realizar download: Esse arquivo não existe.");
+                }
+            }
+        }
 
-                fileInputStream.close();
-                output.close();
-                this.client.close();
-            } catch (Exception e) {
-                System.out.println("Falha ao realizar download: " + e.getMessage());
+        /**
+         * Espera a próxima requisição de uma conexão persistente.
+         *
+         * @param served false na primeira requisição: uma conexão nova sempre é
+         *               atendida, mesmo que outras estejam chegando ao servidor agora
+         * @return false se a conexão deve ser fechada: o outro peer fechou, o
+         * tempo ocioso acabou ou há peers esperando pelo servidor.
+         */
+        private boolean awaitRequest(BufferedInputStream input, boolean served) throws IOException {
+            long idleMillis = 0;
+            this.client.setSoTimeout(IDLE_CHECK_MILLIS);
+            while (true) {
+                if (input.available() > 0) {
+                    return true;
+                }
+                if (served && this.server != null && this.server.getQueued() > 0) {
+                    return false;
+                }
+
+                try {
+                    input.mark(1);
+                    if (input.read() == -1) {
+                        return false;
+                    }
+                    input.reset();
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    idleMillis += IDLE_CHECK_MILLIS;
+                    if (idleMillis >= KEEPALIVE_SECONDS * 1000L) {
+                        return false;
+                    }
+                }
             }
         }
+
+        /**
+         * Atende uma requisição sem fechar a conexão.
+         *
+         * @return false se o arquivo pedido não existe.
+         */
+        private boolean serve(PeerRequest request, OutputStream output) throws IOException {
+            String filename = this.clientPeer.resolve(request.getFilename());
+
+            File file = filename != null ? this.clientPeer.getFile(filename) : null;
+            if (file == null || !file.exists()) {
+                Swarm swarm = this.clientPeer.getSwarm(request.getFilename());
+                if (swarm != null && request.getType() != PeerRequest.Type.LEGACY) {
+                    return this.servePartial(request, swarm, output);
+                }
+                if (request.getType() != PeerRequest.Type.LEGACY) {
+                    PeerRequest.writeError(output, "Esse arquivo não existe.");
+                }
+                return false;
+            }
+            if (this.server != null) {
+                this.server.requestServed();
+            }
+
+            if (request.getType() == PeerRequest.Type.HASHES) {
+                this.sendHashes(filename, output);
+                return true;
+            }
+            if (request.getType() == PeerRequest.Type.HAVE) {
+                BitSet chunks = new BitSet();
+                chunks.set(0, ContentHashes.chunkCount(file.length()));
+                PeerRequest.writeHave(output, file.length(), chunks);
+                return true;
+            }
+
+            try (RandomAccessFile fileInput = new RandomAccessFile(file, "r")) {
+                this.send(request, filename, fileInput, output);
+            }
+
+            return true;
+        }
+
+        /**
+         * Atende uma requisição do conteúdo que o peer ainda está baixando, só com os chunks já baixados.
+         */
+        private boolean servePartial(PeerRequest request, Swarm swarm, OutputStream output) throws IOException {
+            PartialFile partial = swarm.getPartial();
+            if (partial == null) {
+                // O download ainda está buscando o tamanho e os hashes do arquivo
+                if (request.getType() == PeerRequest.Type.HAVE) {
+                    PeerRequest.writeOk(output, 0);
+                } else {
+                    PeerRequest.writeError(output, "Nenhum chunk baixado.");
+                }
+                return true;
+            }
+            if (this.server != null) {
+                this.server.requestServed();
+            }
+
+            long size = partial.getSize();
+            switch (request.getType()) {
+                case HAVE:
+                    PeerRequest.writeHave(output, size, partial.getDone());
+                    return true;
+                case HASHES: {
+                    PeerRequest.writeOk(output, size);
+                    BufferedOutputStream buffered = new BufferedOutputStream(this.throttle.wrap(output), 64 * 1024);
+                    for (byte[] chunk : swarm.getChunkHashes()) {
+                        buffered.write(chunk);
+                    }
+                    buffered.flush();
+                    return true;
+                }
+                case RANGE: {
+                    long end = Math.min(request.getOffset() + request.getLength(), size);
+                    if (end > request.getOffset() && !partial.isDone((int) (request.getOffset() / ContentHashes.CHUNK_SIZE),
+                            (int) ((end - 1) / ContentHashes.CHUNK_SIZE))) {
+                        PeerRequest.writeError(output, "Chunk ainda não baixado.");
+                        return true;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+
+            try (RandomAccessFile fileInput = new RandomAccessFile(partial.getServedFile(), "r")) {
+                this.send(request, partial.getTarget().getName(), fileInput, output);
+            }
+
+            return true;
+        }
+
+        /**
+         * Envia o intervalo pedido do arquivo (ou o arquivo inteiro, numa requisição LEGACY).
+         */
+        private void send(PeerRequest request, String filename, RandomAccessFile fileInput, OutputStream output) throws IOException {
+            long size = fileInput.length();
+
+            long offset = 0;
+            long length = size;
+            TransferEncoding encoding = TransferEncoding.NONE;
+            if (request.getType() != PeerRequest.Type.LEGACY) {
+                offset = Math.min(request.getOffset(), size);
+                length = request.getType() == PeerRequest.Type.STAT ? 0 : Math.min(request.getLength(), size - offset);
+                encoding = TransferEncoding.choose(request.getEncodings(), filename, fileInput, offset, length);
+                PeerRequest.writeOk(output, size, encoding);
+            }
+
+            long start = System.nanoTime();
+            long bytesSent;
+            String path;
+            SocketChannel channel = this.client.getChannel();
+            if (encoding != TransferEncoding.NONE) {
+                bytesSent = encoding.send(fileInput, offset, length, new BufferedOutputStream(this.throttle.wrap(output), 64 * 1024));
+                path = encoding.getToken() + ", " + length + " bytes originais";
+            } else if (ZERO_COPY && channel != null) {
+                bytesSent = sendZeroCopy(fileInput.getChannel(), offset, length, channel, this.throttle);
+                path = "zero-copy";
+            } else {
+                bytesSent = sendStream(fileInput, offset, length, this.throttle.wrap(output));
+                path = "stream";
+            }
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            this.uploaded().mark(bytesSent);
+
+            if (request.getType() != PeerRequest.Type.STAT) {
+                Log.info("Arquivo {} enviado: {} bytes em {} ms ({} KB/s, {})", filename, bytesSent, elapsedMillis,
+                        bytesSent / 1024 * 1000 / elapsedMillis, path);
+            }
+        }
+
+        private Meter uploaded() {
+            if (this.uploaded == null) {
+                this.uploaded = Metrics.meter("napster_upload_bytes", "Bytes enviados para cada peer", "peer", this.client.getInetAddress().getHostAddress());
+            }
+            return this.uploaded;
+        }
+
+        /**
+         * Envia o tamanho do arquivo e o hash de cada chunk, calculados só se o arquivo mudou.
+         */
+        private void sendHashes(String filename, OutputStream output) throws IOException {
+            ContentHashes.Entry entry = this.clientPeer.getContentHashes().get(filename);
+
+            PeerRequest.writeOk(output, entry.getSize());
+            BufferedOutputStream buffered = new BufferedOutputStream(this.throttle.wrap(output), 64 * 1024);
+            for (byte[] chunk : entry.getChunks()) {
+                buffered.write(chunk);
+            }
+            buffered.flush();
+        }
+
+        /**
+         * Envia o intervalo do arquivo direto do page cache para o socket.
+         *
+         * O transferTo pode enviar menos bytes do que o pedido, por isso o loop.
+         * Com limite de banda cada transferTo envia no máximo Throttle.QUANTUM
+         * bytes, e os bytes enviados são descontados do limite antes do próximo.
+         */
+        private static long sendZeroCopy(FileChannel fileChannel, long offset, long length, SocketChannel channel, Throttle throttle) throws IOException {
+            long step = throttle.isUnlimited() ? Long.MAX_VALUE : Throttle.QUANTUM;
+            long sent = 0;
+            while (sent < length) {
+                long transferred = fileChannel.transferTo(offset + sent, Math.min(step, length - sent), channel);
+                if (transferred <= 0 && offset + sent >= fileChannel.size()) {
+                    // O arquivo diminuiu depois de aberto: para como o envio por stream no fim do arquivo
+                    break;
+                }
+                sent += transferred;
+                throttle.acquire(transferred);
+            }
+
+            return sent;
+        }
+
+        /**
+         * Envia o intervalo do arquivo em blocos de 1024 bytes.
+         */
+        private static long sendStream(RandomAccessFile fileInput, long offset, long length, OutputStream output) throws IOException {
+            byte[] fileBuffer = new byte[1024];
+            int fileBytesRead;
+            long sent = 0;
+            fileInput.seek(offset);
+            while (sent < length && (fileBytesRead = fileInput.read(fileBuffer, 0, (int) Math.min(fileBuffer.length, length - sent))) != -1) {
+                output.write(fileBuffer, 0, fileBytesRead);
+                sent += fileBytesRead;
+            }
+            output.flush();
+
+            return sent;
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -134,11 +486,17 @@ public class Client {
         // Inicializa a Classe que vai conter o ip, porta, nome do peer e vai fazer o gerenciamento dos arquivos
         ClientPeer client = new ClientPeer(directory, ip, port);
 
+        // Servidor do peer (que vai lidar as requisições de download de outros peers)
+        PeerServer server = PeerServer.fromProperties(client);
+
+        // Métricas por JMX e, com napster.metrics.port, em http://<ip>:<porta>/metrics
+        MetricsExporter.start();
+
         // Thread que vai executar a interface do peer
-        Thread interfaceThread = new Thread(interfaceThread(client));
+        Thread interfaceThread = new Thread(interfaceThread(client, server));
 
-        // Thread que vai executar o servidor do peer (que vai lidar as requisições de download de outros peers)
-        Thread serverThread = new Thread(serverThread(client));
+        // Thread que vai executar o servidor do peer
+        Thread serverThread = new Thread(server);
 
         interfaceThread.start();
         serverThread.start();
@@ -146,12 +504,21 @@ public class Client {
 
     /**
     * DOWNLOAD
+    *
+    * O download roda no pool do NapsterClient, então a interface já pode
+    * receber o próximo comando. O resultado é mostrado quando ele termina.
     */
-    private static void download(NapsterService napster, ClientPeer client, String[] args) {
+    private static void download(NapsterClient napster, String[] args) {
         String filename;
         String ip;
         int port;
 
+        // DOWNLOAD <filename>: baixa de todos os peers que possuem o arquivo
+        if (args.length == 2) {
+            announce(args[1], napster.download(args[1]));
+            return;
+        }
+
         // Verifica se o comando foi digitado corretamente
         try {
             filename = args[1];
@@ -160,89 +527,81 @@ public class Client {
         } catch (Exception e) {
             System.out.println("Erro de sintaxe.");
             System.out.println("Tem certeza que você digitou tudo certo?");
-            System.out.println("O comando DOWNLOAD precisa seguir o segunite formato: DOWNLOAD <filename> <ip> <port>");
+            System.out.println("O comando DOWNLOAD precisa seguir o segunite formato: DOWNLOAD <filename> [<ip> <port>]");
             return;
         }
 
-        try {
-            // Cria um socket para se conectar com o outro peer
-            Socket socket = new Socket(ip, port);
-
-            // Envia o nome do arquivo que queremos baixar para outro peer
-            OutputStream output = socket.getOutputStream();
-            output.write(filename.getBytes());
-            output.flush();
-
-            // Recebe o arquivo do outro peer e escreve no disco
-            File file = client.getFile(filename);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            InputStream input = socket.getInputStream();
-
-            // divide o arquivo em blocos de 1024 bytes para lidar com arquivos grandes
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-
-            // enquanto tiver bytes para ler, escreve na stream de saída
-            while ((bytesRead = input.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
-            }
+        // Baixa só do peer informado, com RANGE, para que o download possa continuar se a conexão cair
+        announce(filename, napster.download(filename, ip, port));
+    }
 
-            fileOutputStream.close();
-            input.close();
-            socket.close();
-            System.out.println("Arquivo " + filename + " baixado com sucesso na pasta " + client.getDirectory());
+    /**
+     * DOWNLOADALL: busca vários arquivos numa única chamada RMI, baixa cada um
+     * de todos os peers que o possuem e envia os UPDATEs juntos no final.
+     */
+    private static void downloadMany(NapsterClient napster, String[] args) {
+        if (args.length < 2) {
+            System.out.println("Erro de sintaxe.");
+            System.out.println("O comando DOWNLOADALL precisa seguir o segunite formato: DOWNLOADALL <filename> [<filename> ...]");
+            return;
+        }
 
-            // faz a requisição de UPDATE para o servidor, atualizando a sua lista de arquivos
-            update(napster, client, filename);
-        } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+        String[] filenames = Arrays.copyOfRange(args, 1, args.length);
+        List<CompletableFuture<File>> downloads = napster.downloadAll(filenames);
+        for (int i = 0; i < filenames.length; i++) {
+            announce(filenames[i], downloads.get(i));
         }
+        CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> napster.flush());
     }
 
     /**
-     * UPDATE
+     * Mostra que o download começou e, quando ele terminar, o resultado.
      */
-    private static void update(NapsterService napster, ClientPeer client, String filename) {
-        String ip = client.getIp();
-        int port = client.getPort();
-
-        try {
-            // Faz a requisição de UPDATE para o servidor
-            napster.update(filename, ip, port);
-        } catch (RemoteException e) {
-            System.out.println("Error: " + e.getMessage());
-        }
+    private static void announce(String filename, CompletableFuture<File> download) {
+        System.out.println("Baixando " + filename + " em segundo plano.");
+        download.whenComplete((file, error) -> {
+            if (error != null) {
+                System.out.println("Error: " + filename + ": " + error.getMessage());
+            } else {
+                System.out.println("Arquivo " + filename + " baixado com sucesso na pasta " + file.getParent());
+            }
+        });
     }
 
     /**
      * JOIN
      */
-    private static void join(NapsterService napster, ClientPeer client) {
-        // Pega a lista de arquivos do peer
-        String[] filenames = client.getFilenames();
-
+    private static void join(NapsterClient napster, ClientPeer client) {
         String ip = client.getIp();
         int port = client.getPort();
 
         try {
-            // Faz a requisição de JOIN para o servidor
-            NapsterMessage message = napster.join(filenames, ip, port);
+            // Faz a requisição de JOIN para o servidor, com os arquivos do peer e o hash de conteúdo de cada um
+            NapsterMessage message = await(napster.join());
 
             String response = message.getMessage();
-            String filenamesString = "";
-            for (String filename : filenames) {
-                filenamesString += filename + " ";
-            }
             if (response.equals("JOIN_OK")) {
                 // Se o servidor respondeu com JOIN_OK, então o peer foi adicionado com sucesso
-                System.out.println("Sou o peer " + ip + ":" + port + " com os arquivos " + filenamesString);
+                System.out.println("Sou o peer " + ip + ":" + port + " com os arquivos " + String.join(" ", client.getFilenames()) + " ");
             } else {
                 System.out.println("Error: " + response);
             }
-        } catch (RemoteException e) {
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * LEAVE
+     */
+    private static void leave(NapsterClient napster, ClientPeer client) {
+        try {
+            // Faz a requisição de LEAVE para o servidor, que tira o peer da lista de todos os arquivos
+            NapsterMessage message = await(napster.leave());
+            if (message.getMessage().equals("LEAVE_OK")) {
+                System.out.println("Peer " + client.getIp() + ":" + client.getPort() + " saiu do sistema");
+            }
+        } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
@@ -250,46 +609,114 @@ public class Client {
     /**
      * SEARCH
      */
-    private static void search(NapsterService napster, ClientPeer client, String[] args) {
+    private static void search(NapsterClient napster, String[] args) {
         String filename;
+        int offset = 0;
+        int limit = 0;
 
         // Verifica se o comando foi digitado corretamente
         try {
             filename = args[1];
-        } catch (ArrayIndexOutOfBoundsException e) {
+            if (args.length > 2) {
+                offset = Integer.parseInt(args[2]);
+            }
+            if (args.length > 3) {
+                limit = Integer.parseInt(args[3]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
             System.out.println("Erro de sintaxe.");
             System.out.println("Tem certeza que você digitou tudo certo?");
-            System.out.println("O comando SEARCH precisa seguir o segunite formato: SEARCH <filename>");
+            System.out.println("O comando SEARCH precisa seguir o segunite formato: SEARCH <filename> [<offset> <limit>]");
             return;
         }
 
-        String ip = client.getIp();
-        int port = client.getPort();
+        try {
+            // Faz a requisição de SEARCH para o servidor, recebendo a lista tipada de peers que possuem o arquivo
+            SearchResult result = await(napster.search(filename, offset, limit));
+
+            StringBuilder peers = new StringBuilder();
+            for (int i = 0; i < result.size(); i++) {
+                peers.append(result.getIp(i)).append(':').append(result.getPort(i)).append('\n');
+            }
+            System.out.println("peers com arquivo solicitado (" + result.size() + " de " + result.getTotal() + "):\n" + peers);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * FIND
+     */
+    private static void find(NapsterClient napster, String[] args) {
+        String query;
+        String mode = "AUTO";
+        int offset = 0;
+        int limit = 20;
+
+        // Verifica se o comando foi digitado corretamente
+        try {
+            query = args[1];
+            if (args.length > 2) {
+                mode = args[2];
+            }
+            if (args.length > 3) {
+                offset = Integer.parseInt(args[3]);
+            }
+            if (args.length > 4) {
+                limit = Integer.parseInt(args[4]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.out.println("Erro de sintaxe.");
+            System.out.println("Tem certeza que você digitou tudo certo?");
+            System.out.println("O comando FIND precisa seguir o segunite formato: FIND <texto> [AUTO|PREFIX|SUBSTRING|FUZZY] [<offset> <limit>]");
+            return;
+        }
 
         try {
-            // Faz a requisição de SEARCH para o servidor
-            NapsterMessage message = napster.search(filename, ip, port);
+            // Faz a requisição de FIND para o servidor, que retorna os nomes de arquivo mais parecidos
+            NapsterMessage message = await(napster.find(query, mode, offset, limit));
 
-            String response = message.getMessage();
-            if (response.equals("SEARCH_OK")) {
-                // Se o servidor respondeu com SEARCH_OK, então foi recebido uma lista de peers que possuem o arquivo
-                System.out.println("peers com arquivo solicitado:\n" + message.getArgs()[0]);
+            if (message.getMessage().equals("FIND_OK")) {
+                System.out.println("arquivos encontrados:\n" + String.join("\n", message.getArgs()));
             } else {
-                System.out.println("Error: " + response);
+                System.out.println("Error: " + message.getArgs()[0]);
             }
-        } catch (RemoteException e) {
+        } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
 
+    /**
+     * Espera a resposta de uma chamada do NapsterClient.
+     *
+     * @throws IOException a falha da chamada, como uma RemoteException.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Comando para listar os comandos disponíveis e como usá-los
      */
     private static void help() {
         System.out.println("Comandos disponíveis:");
-        System.out.println("- SEARCH <filename>: busca por um arquivo no sistema");
+        System.out.println("- SEARCH <filename> [<offset> <limit>]: busca por um arquivo no sistema");
+        System.out.println("- FIND <texto> [AUTO|PREFIX|SUBSTRING|FUZZY] [<offset> <limit>]: busca nomes de arquivo parecidos com o texto");
         System.out.println("- JOIN: se registra no sistema");
+        System.out.println("- LEAVE: sai do sistema, sem fechar o cliente");
         System.out.println("- DOWNLOAD <filename> <ip> <port>: baixa um arquivo de um peer");
+        System.out.println("- DOWNLOAD <filename>: baixa um arquivo de vários peers ao mesmo tempo, escolhidos pela carga de cada um");
+        System.out.println("- DOWNLOADALL <filename> [<filename> ...]: baixa vários arquivos, buscando todos de uma vez");
+        System.out.println("  Um DOWNLOAD interrompido continua de onde parou quando o mesmo arquivo é baixado de novo.");
+        System.out.println("  Os downloads rodam em segundo plano, até napster.downloads.concurrent ao mesmo tempo.");
+        System.out.println("- STATS: mostra as estatísticas do servidor do peer");
         System.out.println("- EXIT: sai do sistema");
         System.out.println("- HELP: mostra os comandos disponíveis");
     }
@@ -297,16 +724,16 @@ public class Client {
     /*
      * Thread que fica esperando o usuário digitar os comandos (interface)
      */
-    private static Runnable interfaceThread (ClientPeer client) {
+    private static Runnable interfaceThread (ClientPeer peer, PeerServer server) {
         return new Runnable() {
             @Override
             public void run() throws RuntimeException {
                 try {
-                    // Cria um registro para se conectar com o servidor
-                    Registry registry = LocateRegistry.getRegistry();
+                    // Pega o objeto remoto do servidor, ou o roteador dos shards se napster.servers tiver mais de um servidor
+                    NapsterService napster = NapsterCluster.connect(System.getProperty("napster.servers", "127.0.0.1:1099"));
 
-                    // Pega o objeto remoto do servidor
-                    NapsterService napster = (NapsterService) registry.lookup("rmi://127.0.0.1/napster");
+                    // Faz as chamadas e os downloads em segundo plano, com o limite de downloads e de banda das propriedades
+                    NapsterClient client = NapsterClient.fromProperties(napster, peer, server);
 
                     // Mostra os comandos disponíveis
                     help();
@@ -319,6 +746,7 @@ public class Client {
 
                         switch (command) {
                             case "EXIT":
+                                leave(client, peer);
                                 System.out.println("Fechando o cliente.");
                                 System.exit(0);
                                 break;
@@ -326,13 +754,28 @@ public class Client {
                                 help();
                                 break;
                             case "SEARCH":
-                                search(napster, client, args);
+                                search(client, args);
+                                break;
+                            case "FIND":
+                                find(client, args);
                                 break;
                             case "JOIN":
-                                join(napster, client);
+                                join(client, peer);
+                                break;
+                            case "LEAVE":
+                                leave(client, peer);
                                 break;
                             case "DOWNLOAD":
-                                download(napster, client, args);
+                                download(client, args);
+                                break;
+                            case "DOWNLOADALL":
+                                downloadMany(client, args);
+                                break;
+                            case "STATS":
+                                System.out.println(server.stats());
+                                System.out.println(TransferEncoding.stats());
+                                System.out.println(PeerConnections.shared().stats());
+                                System.out.println("Downloads: " + client.getActiveDownloads() + " ativos, " + client.getQueuedDownloads() + " na fila");
                                 break;
                             default:
                                 System.out.println("Comando inválido.");
@@ -346,32 +789,4 @@ public class Client {
             }
         };
     }
-
-    /*
-     * Thread que fica esperando por conexões de outros peers para download
-     */
-    private static Runnable serverThread (ClientPeer client) {
-        return new Runnable() {
-            @Override
-            public void run() throws RuntimeException {
-                try {
-                    System.out.println("O Servidor do peer está pronto.");
-
-                    // Cria um SocketServer para o peer
-                    ServerSocket server = new ServerSocket(client.getPort());
-
-                    // Fica esperando por conexões
-                    while (true) {
-                        Socket clientSocket = server.accept();
-
-                        // Caso receba uma conexão, cria uma thread para tratar o download
-                        HandleDownloadThread thread = new HandleDownloadThread(clientSocket, client);
-                        thread.start();
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        };
-    }
-}
+}
\ No newline at end of file
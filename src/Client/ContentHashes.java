@@ -0,0 +1,312 @@
+package Client;
+
+import Monitoring.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Classe para calcular e guardar os hashes de conteúdo dos arquivos de um peer.
+ *
+ * Cada arquivo é dividido em chunks de CHUNK_SIZE bytes e cada chunk tem o
+ * seu SHA-256. O hash do arquivo é o SHA-256 da concatenação dos hashes dos
+ * chunks, então quem conhece o hash do arquivo consegue validar a lista de
+ * chunks recebida de qualquer peer, e depois cada chunk baixado.
+ *
+ * Os hashes ficam em cache, em memória e no arquivo .napster-hashes do
+ * diretório, e só são recalculados se o tamanho ou a data de modificação do
+ * arquivo mudarem. Os chunks são calculados em paralelo.
+ */
+public class ContentHashes {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int HASH_SIZE = 32;
+
+    /**
+     * Maior tamanho de arquivo cujo número de chunks cabe num int.
+     */
+    public static final long MAX_SIZE = (long) Integer.MAX_VALUE * CHUNK_SIZE;
+
+    /**
+     * Prefixo dos arquivos internos do peer, que não são compartilhados.
+     */
+    public static final String INTERNAL_PREFIX = ".napster";
+    private static final String CACHE_FILE = INTERNAL_PREFIX + "-hashes";
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * Hashes de um arquivo, válidos para o tamanho e a data de modificação guardados.
+     */
+    public static class Entry {
+        private final long size;
+        private final long modified;
+        private final String contentHash;
+        private final byte[][] chunks;
+
+        Entry(long size, long modified, byte[][] chunks) {
+            this.size = size;
+            this.modified = modified;
+            this.chunks = chunks;
+            this.contentHash = rootHash(chunks);
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public String getContentHash() {
+            return this.contentHash;
+        }
+
+        public byte[][] getChunks() {
+            return this.chunks;
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byContent = new ConcurrentHashMap<>();
+
+    public ContentHashes(File directory) {
+        this.directory = directory;
+        this.load();
+    }
+
+    /**
+     * Retorna os hashes do arquivo, calculando de novo só se ele mudou.
+     */
+    public Entry get(String filename) throws IOException {
+        File file = new File(this.directory, filename);
+        long size = file.length();
+        long modified = file.lastModified();
+        if (!file.isFile()) {
+            throw new IOException("Esse arquivo não existe.");
+        }
+
+        Entry entry = this.entries.get(filename);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            return entry;
+        }
+
+        entry = new Entry(size, modified, hashChunks(file, size));
+        this.put(filename, entry);
+        return entry;
+    }
+
+    /**
+     * Calcula (ou pega do cache) o hash de conteúdo de cada arquivo, em paralelo.
+     *
+     * @return os hashes na mesma ordem de filenames, com null para os arquivos que não puderam ser lidos.
+     */
+    public String[] contentHashes(String[] filenames) {
+        String[] hashes = Arrays.stream(filenames).parallel().map(filename -> {
+            try {
+                return this.get(filename).getContentHash();
+            } catch (IOException | UncheckedIOException e) {
+                Log.warn("Falha ao calcular o hash de {}: {}", filename, e.getMessage());
+                return null;
+            }
+        }).toArray(String[]::new);
+
+        this.save();
+        return hashes;
+    }
+
+    /**
+     * Guarda os hashes de um arquivo que acabou de ser baixado e validado, sem lê-lo de novo.
+     */
+    public void put(String filename, byte[][] chunks) {
+        File file = new File(this.directory, filename);
+        this.put(filename, new Entry(file.length(), file.lastModified(), chunks));
+        this.save();
+    }
+
+    /**
+     * Procura um arquivo local com o hash de conteúdo informado.
+     *
+     * @return o nome do arquivo, ou null se o peer não tem esse conteúdo.
+     */
+    public String findByContent(String contentHash) {
+        Set<String> filenames = this.byContent.get(contentHash);
+        if (filenames == null) {
+            return null;
+        }
+
+        // Confere se o arquivo não mudou nem foi apagado desde que o hash foi calculado
+        for (String filename : filenames) {
+            try {
+                if (this.get(filename).getContentHash().equals(contentHash)) {
+                    return filename;
+                }
+            } catch (IOException e) {
+                this.remove(filename);
+            }
+        }
+
+        return null;
+    }
+
+    private void put(String filename, Entry entry) {
+        Entry previous = this.entries.put(filename, entry);
+        if (previous != null) {
+            this.removeContent(previous.contentHash, filename);
+        }
+        this.byContent.computeIfAbsent(entry.contentHash, key -> ConcurrentHashMap.newKeySet()).add(filename);
+    }
+
+    private void remove(String filename) {
+        Entry previous = this.entries.remove(filename);
+        if (previous != null) {
+            this.removeContent(previous.contentHash, filename);
+        }
+    }
+
+    private void removeContent(String contentHash, String filename) {
+        this.byContent.computeIfPresent(contentHash, (key, filenames) -> {
+            filenames.remove(filename);
+            return filenames.isEmpty() ? null : filenames;
+        });
+    }
+
+    /**
+     * Calcula o hash de cada chunk do arquivo, em paralelo.
+     */
+    private static byte[][] hashChunks(File file, long size) throws IOException {
+        int count = chunkCount(size);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return IntStream.range(0, count).parallel().mapToObj(i -> {
+                long offset = (long) i * CHUNK_SIZE;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - offset));
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) == -1) {
+                            throw new IOException("O arquivo diminuiu durante a leitura.");
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                buffer.flip();
+                MessageDigest digest = newDigest();
+                digest.update(buffer);
+                return digest.digest();
+            }).toArray(byte[][]::new);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Hash do arquivo: SHA-256 da concatenação dos hashes dos chunks, em hexadecimal.
+     */
+    public static String rootHash(byte[][] chunks) {
+        MessageDigest digest = newDigest();
+        for (byte[] chunk : chunks) {
+            digest.update(chunk);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private void load() {
+        File cache = new File(this.directory, CACHE_FILE);
+        if (!cache.exists()) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+            if (input.readInt() != CACHE_VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String filename = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                byte[][] chunks = new byte[input.readInt()][HASH_SIZE];
+                for (byte[] chunk : chunks) {
+                    input.readFully(chunk);
+                }
+                this.put(filename, new Entry(size, modified, chunks));
+            }
+        } catch (IOException e) {
+            Log.warn("Cache de hashes inválido, os hashes serão recalculados: {}", e.getMessage());
+            this.entries.clear();
+            this.byContent.clear();
+        }
+    }
+
+    /**
+     * Grava o cache num arquivo temporário e o renomeia por cima do anterior.
+     */
+    private synchronized void save() {
+        File cache = new File(this.directory, CACHE_FILE);
+        File tmp = new File(this.directory, CACHE_FILE + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            output.writeInt(CACHE_VERSION);
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(this.entries.entrySet());
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> item : snapshot) {
+                Entry entry = item.getValue();
+                output.writeUTF(item.getKey());
+                output.writeLong(entry.size);
+                output.writeLong(entry.modified);
+                output.writeInt(entry.chunks.length);
+                for (byte[] chunk : entry.chunks) {
+                    output.write(chunk);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o cache de hashes: {}", e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o cache de hashes: {}", e.getMessage());
+        }
+    }
+}
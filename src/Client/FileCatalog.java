@@ -0,0 +1,442 @@
+package Client;
+
+import Monitoring.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catálogo dos arquivos compartilhados por um peer, mantido em dia sem listar o diretório de novo.
+ *
+ * Um WatchService avisa quando arquivos são criados, apagados ou alterados no
+ * diretório. Cada arquivo só é conferido depois de SETTLE_MILLIS sem eventos,
+ * para que um arquivo ainda sendo copiado não seja publicado pela metade, e
+ * então os Listeners recebem só a diferença: arquivo novo, arquivo apagado, ou
+ * os dois para um arquivo alterado (o hash de conteúdo mudou). Se o sistema
+ * operacional perde eventos (OVERFLOW), o diretório é listado de novo e
+ * comparado com o catálogo.
+ *
+ * O catálogo é gravado no manifesto .napster-manifest, com o tamanho e a data
+ * de modificação de cada arquivo e a data de modificação do diretório. Ao
+ * iniciar, se o diretório não mudou desde a gravação (nenhum arquivo foi
+ * criado, apagado ou renomeado), o manifesto é usado sem listar o diretório,
+ * o que faz diferença com centenas de milhares de arquivos. Senão o diretório
+ * é listado e o manifesto é gravado de novo.
+ *
+ * Os arquivos internos do peer (o próprio manifesto, o cache de hashes, os
+ * downloads parciais) também mudam a data do diretório. Por isso a data é
+ * escrita no manifesto já gravado, sem recriá-lo, sempre que o diretório fica
+ * um tempo sem eventos.
+ */
+public class FileCatalog {
+    private static final String MANIFEST_FILE = ContentHashes.INTERNAL_PREFIX + "-manifest";
+    private static final int MANIFEST_VERSION = 1;
+    private static final long SETTLE_MILLIS = 500;
+
+    /**
+     * Interface para ser avisado das mudanças do catálogo. Os métodos são
+     * chamados pela thread do WatchService ou por quem chamou add.
+     */
+    public interface Listener {
+        void onAdded(String filename);
+
+        void onRemoved(String filename);
+    }
+
+    /**
+     * Tamanho e data de modificação de um arquivo, para saber se ele mudou.
+     */
+    private static class Entry {
+        private final long size;
+        private final long modified;
+
+        Entry(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean sameAs(Entry other) {
+            return other != null && this.size == other.size && this.modified == other.modified;
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Se true o catálogo mudou depois da última gravação do manifesto.
+     */
+    private volatile boolean dirty;
+
+    /**
+     * Se true a data do diretório mudou por causa de arquivos internos e deve ser atualizada no manifesto.
+     */
+    private boolean restamp;
+    private WatchService watcher;
+
+    /**
+     * Arquivos com eventos recentes e o instante do último evento. Só usado pela thread do WatchService.
+     */
+    private final Map<String, Long> settling = new HashMap<>();
+
+    public FileCatalog(File directory) {
+        this.directory = directory;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        // O WatchService é registrado antes de ler o diretório, para não perder as mudanças feitas durante a leitura
+        try {
+            this.watcher = directory.toPath().getFileSystem().newWatchService();
+            directory.toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Log.warn("Não foi possível observar o diretório {}, mudanças feitas depois não serão vistas: {}", directory, e.getMessage());
+            this.watcher = null;
+        }
+
+        this.load();
+
+        if (this.watcher != null) {
+            Thread thread = new Thread(this::watch, "file-catalog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public String[] getFilenames() {
+        return this.files.keySet().toArray(new String[0]);
+    }
+
+    public boolean contains(String filename) {
+        return this.files.containsKey(filename);
+    }
+
+    public int size() {
+        return this.files.size();
+    }
+
+    /**
+     * Adiciona um arquivo que o próprio peer acabou de criar (um download), sem esperar o WatchService.
+     */
+    public void add(String filename) {
+        this.check(filename);
+    }
+
+    /**
+     * Confere um arquivo no disco e avisa os Listeners se ele é novo, foi apagado ou mudou.
+     *
+     * @return true se o catálogo mudou.
+     */
+    private synchronized boolean check(String filename) {
+        if (filename.startsWith(ContentHashes.INTERNAL_PREFIX)) {
+            return false;
+        }
+
+        Entry current = stat(this.directory.toPath().resolve(filename));
+        Entry previous = current != null ? this.files.put(filename, current) : this.files.remove(filename);
+        if (current != null && current.sameAs(previous)) {
+            return false;
+        }
+        if (current == null && previous == null) {
+            return false;
+        }
+
+        this.dirty = true;
+        for (Listener listener : this.listeners) {
+            // Um arquivo alterado sai e volta, com o novo hash de conteúdo
+            if (previous != null) {
+                listener.onRemoved(filename);
+            }
+            if (current != null) {
+                listener.onAdded(filename);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return o tamanho e a data de modificação do arquivo, ou null se ele não existe ou não é um arquivo comum.
+     */
+    private static Entry stat(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Data de modificação do diretório, que muda quando um arquivo é criado, apagado ou renomeado nele.
+     */
+    private long directoryModified() {
+        try {
+            return Files.getLastModifiedTime(this.directory.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Carrega o catálogo do manifesto, se o diretório não mudou, ou listando o diretório.
+     */
+    private void load() {
+        long start = System.nanoTime();
+        long modified = this.directoryModified();
+        if (modified != -1 && this.readManifest(modified)) {
+            Log.info("Catálogo: {} arquivos lidos do manifesto em {} ms.", this.files.size(), (System.nanoTime() - start) / 1_000_000);
+            return;
+        }
+
+        this.files.clear();
+        for (Map.Entry<String, Entry> file : this.list().entrySet()) {
+            this.files.put(file.getKey(), file.getValue());
+        }
+        this.writeManifest();
+        this.restamp = true;
+        Log.info("Catálogo: {} arquivos listados em {} ms.", this.files.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Lista o diretório, ignorando os arquivos internos do peer (cache de hashes, downloads parciais).
+     */
+    private Map<String, Entry> list() {
+        Map<String, Entry> listed = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath())) {
+            for (Path path : stream) {
+                String filename = path.getFileName().toString();
+                if (filename.startsWith(ContentHashes.INTERNAL_PREFIX)) {
+                    continue;
+                }
+                Entry entry = stat(path);
+                if (entry != null) {
+                    listed.put(filename, entry);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Falha ao listar o diretório {}: {}", this.directory, e.getMessage());
+        }
+
+        return listed;
+    }
+
+    /**
+     * Loop da thread do WatchService.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                boolean idle = this.settling.isEmpty() && !this.dirty && !this.restamp;
+                key = idle ? this.watcher.take() : this.watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key != null) {
+                this.collect(key);
+                continue;
+            }
+
+            int changed = this.settle();
+            if (changed > 0) {
+                Log.info("Catálogo: {} arquivos mudaram no diretório, enviando as mudanças.", changed);
+            }
+            if (!this.settling.isEmpty()) {
+                continue;
+            }
+
+            if (this.dirty) {
+                this.dirty = false;
+                this.writeManifest();
+                this.restamp = true;
+            }
+            if (this.restamp) {
+                // A data do diretório é lida antes de conferir se chegaram eventos novos, senão o manifesto poderia
+                // ficar com a data de uma mudança que ele não contém
+                long modified = this.directoryModified();
+                WatchKey pending = this.watcher.poll();
+                if (pending != null) {
+                    this.collect(pending);
+                    continue;
+                }
+                this.restamp = false;
+                this.stampManifest(modified);
+            }
+        }
+    }
+
+    /**
+     * Anota os arquivos dos eventos recebidos, que serão conferidos quando pararem de mudar.
+     */
+    private void collect(WatchKey key) {
+        long now = System.currentTimeMillis();
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            String filename = ((Path) event.context()).getFileName().toString();
+            if (filename.startsWith(ContentHashes.INTERNAL_PREFIX)) {
+                this.restamp = true;
+            } else {
+                this.settling.put(filename, now);
+            }
+        }
+        key.reset();
+
+        if (overflow) {
+            this.rescan();
+        }
+    }
+
+    /**
+     * Confere os arquivos que estão sem eventos há pelo menos SETTLE_MILLIS.
+     *
+     * @return quantos arquivos mudaram.
+     */
+    private int settle() {
+        long now = System.currentTimeMillis();
+        int changed = 0;
+        Iterator<Map.Entry<String, Long>> iterator = this.settling.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (now - entry.getValue() < SETTLE_MILLIS) {
+                continue;
+            }
+            iterator.remove();
+            if (this.check(entry.getKey())) {
+                changed++;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Eventos foram perdidos: lista o diretório e confere todos os arquivos novos, apagados ou conhecidos.
+     */
+    private void rescan() {
+        Log.warn("Catálogo: eventos do diretório perdidos, listando o diretório de novo.");
+        long now = System.currentTimeMillis();
+        Set<String> names = new HashSet<>(this.list().keySet());
+        names.addAll(this.files.keySet());
+        for (String filename : names) {
+            this.settling.put(filename, now);
+        }
+    }
+
+    /**
+     * Lê o manifesto, se ele foi gravado com a data de modificação atual do diretório.
+     *
+     * @return false se o manifesto não existe, é inválido ou o diretório mudou.
+     */
+    private boolean readManifest(long directoryModified) {
+        File manifest = new File(this.directory, MANIFEST_FILE);
+        if (!manifest.exists()) {
+            return false;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest), 256 * 1024))) {
+            if (input.readInt() != MANIFEST_VERSION || input.readLong() != directoryModified) {
+                return false;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String filename = input.readUTF();
+                this.files.put(filename, new Entry(input.readLong(), input.readLong()));
+            }
+            return true;
+        } catch (IOException e) {
+            Log.warn("Manifesto inválido, o diretório será listado: {}", e.getMessage());
+            this.files.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Grava o manifesto num arquivo temporário e o renomeia por cima do anterior.
+     *
+     * A data do diretório fica inválida (-1) até stampManifest, então um
+     * manifesto gravado no meio de mudanças nunca é usado sem listar o diretório.
+     */
+    private synchronized void writeManifest() {
+        File manifest = new File(this.directory, MANIFEST_FILE);
+        File tmp = new File(this.directory, MANIFEST_FILE + ".tmp");
+
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(this.files.entrySet());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 256 * 1024))) {
+            output.writeInt(MANIFEST_VERSION);
+            output.writeLong(-1);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> item : snapshot) {
+                output.writeUTF(item.getKey());
+                output.writeLong(item.getValue().size);
+                output.writeLong(item.getValue().modified);
+            }
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o manifesto: {}", e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // O diretório foi apagado
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o manifesto: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Escreve a data do diretório no manifesto já gravado. Alterar um arquivo
+     * existente não muda a data do diretório, ao contrário de recriá-lo.
+     */
+    private synchronized void stampManifest(long directoryModified) {
+        try (RandomAccessFile manifest = new RandomAccessFile(new File(this.directory, MANIFEST_FILE), "rw")) {
+            manifest.seek(Integer.BYTES);
+            manifest.writeLong(directoryModified);
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o manifesto: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package Client;
+
+import Monitoring.Log;
+import NapsterService.NapsterMessage;
+import NapsterService.NapsterService;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que mantém o lease do peer no Servidor Napster.
+ *
+ * Depois do JOIN, envia um heartbeat a cada um terço do lease. Se o servidor
+ * responder que o peer não existe (o lease venceu ou o servidor reiniciou),
+ * faz JOIN de novo com os arquivos atuais.
+ *
+ * Cada heartbeat informa quantos uploads o peer está atendendo (ativos e na
+ * fila do PeerServer), para que o servidor mande menos clientes para peers
+ * ocupados.
+ */
+public class Heartbeat {
+    private final NapsterService napster;
+    private final Client.ClientPeer client;
+    private final PeerServer server;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    public Heartbeat(NapsterService napster, Client.ClientPeer client, PeerServer server) {
+        this.napster = napster;
+        this.client = client;
+        this.server = server;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Começa (ou reinicia) os heartbeats para um lease com a duração informada.
+     */
+    public synchronized void start(long leaseSeconds) {
+        this.stop();
+
+        long periodMillis = Math.max(1000, leaseSeconds * 1000 / 3);
+        this.task = this.scheduler.scheduleWithFixedDelay(this::beat, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.task != null) {
+            this.task.cancel(false);
+            this.task = null;
+        }
+    }
+
+    private void beat() {
+        String ip = this.client.getIp();
+        int port = this.client.getPort();
+
+        try {
+            NapsterMessage message = this.napster.heartbeat(ip, port, this.server.getActive() + this.server.getQueued());
+            if (message.getMessage().equals("HEARTBEAT_OK")) {
+                return;
+            }
+
+            // O servidor esqueceu o peer, então registra de novo
+            String[] filenames = this.client.getFilenames();
+            NapsterMessage join = this.napster.join(filenames, this.client.getContentHashes(filenames), ip, port);
+            if (!join.getMessage().equals("JOIN_OK")) {
+                Log.warn("Error: {}", join.getMessage());
+            }
+        } catch (RemoteException e) {
+            Log.warn("Falha ao enviar heartbeat: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package Client;
+
+import Monitoring.Log;
+import Monitoring.Metrics;
+import NapsterService.NapsterMessage;
+import NapsterService.NapsterService;
+import NapsterService.SearchResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * API assíncrona de um peer, para usar o Napster de outro programa.
+ *
+ * Cada operação retorna um CompletableFuture na hora. As chamadas RMI rodam
+ * num pool de RMI_THREADS threads, e os downloads num pool de maxDownloads
+ * threads: os downloads pedidos além desse limite esperam na fila, então um
+ * programa pode pedir centenas de downloads de uma vez. Todos os downloads
+ * dividem o mesmo limite de banda.
+ *
+ * Um download completa com o arquivo baixado, ou com a IOException que o fez
+ * falhar. Pedir um arquivo que já está sendo baixado retorna o mesmo future.
+ *
+ * Depois do JOIN, as mudanças do catálogo do peer (arquivos baixados, criados,
+ * apagados ou alterados no diretório) são enviadas ao servidor em lotes
+ * (UpdateBatcher), sem repetir a lista inteira de arquivos.
+ *
+ * As propriedades napster.downloads.concurrent (padrão 4),
+ * napster.download.bandwidth e napster.download.connection.bandwidth (bytes
+ * por segundo no total e por peer, padrão 0, sem limite) configuram o cliente
+ * criado por fromProperties. O cache de SEARCH é configurado por
+ * napster.client.cache.ttl e napster.client.cache.size (SearchResultCache).
+ */
+public class NapsterClient implements AutoCloseable {
+    /**
+     * Quantidade máxima de peers usados em cada download, da propriedade
+     * napster.download.peers. Os peers vêm na ordem do ranking do servidor,
+     * então clientes diferentes usam peers diferentes.
+     */
+    public static final int MAX_DOWNLOAD_PEERS = Math.max(1, Integer.getInteger("napster.download.peers", 4));
+
+    private static final int RMI_THREADS = 8;
+
+    private final NapsterService napster;
+    private final Client.ClientPeer client;
+    private final Heartbeat heartbeat;
+    private final UpdateBatcher updates;
+    private final RateLimiter limiter;
+    private final long peerBandwidth;
+
+    private final ExecutorService rmi;
+    private final ThreadPoolExecutor transfers;
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final LongAdder completedDownloads = Metrics.counter("napster_downloads_total", "Downloads terminados", "result", "ok");
+    private final LongAdder failedDownloads = Metrics.counter("napster_downloads_total", "Downloads terminados", "result", "failed");
+    private final Map<String, CompletableFuture<File>> downloading = new ConcurrentHashMap<>();
+    private final SearchResultCache searches = SearchResultCache.fromProperties();
+
+    /**
+     * Se true o peer fez JOIN, então as mudanças do catálogo vão para o servidor.
+     */
+    private volatile boolean joined;
+
+    /**
+     * @param server        servidor do peer, cuja carga vai nos heartbeats
+     * @param maxDownloads  quantidade de downloads ao mesmo tempo
+     * @param bytesPerSecond banda máxima somando todos os downloads, ou 0 para não limitar
+     */
+    public NapsterClient(NapsterService napster, Client.ClientPeer client, PeerServer server, int maxDownloads, long bytesPerSecond) {
+        this(napster, client, server, maxDownloads, bytesPerSecond, 0);
+    }
+
+    /**
+     * @param peerBandwidth banda máxima recebida de cada peer em cada download, ou 0 para não limitar
+     */
+    public NapsterClient(NapsterService napster, Client.ClientPeer client, PeerServer server, int maxDownloads, long bytesPerSecond,
+            long peerBandwidth) {
+        this.napster = napster;
+        this.client = client;
+        this.heartbeat = new Heartbeat(napster, client, server);
+        this.updates = new UpdateBatcher(napster, client, 200, 256);
+        this.limiter = new RateLimiter(bytesPerSecond);
+        this.peerBandwidth = peerBandwidth;
+
+        this.rmi = Executors.newFixedThreadPool(RMI_THREADS, daemon("napster-rmi"));
+        this.transfers = new ThreadPoolExecutor(maxDownloads, maxDownloads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), daemon("napster-download"));
+
+        Metrics.gauge("napster_downloads_active", "Downloads transferindo agora", this::getActiveDownloads);
+        Metrics.gauge("napster_downloads_queued", "Downloads esperando um lugar no pool", this::getQueuedDownloads);
+
+        client.getCatalog().addListener(new FileCatalog.Listener() {
+            @Override
+            public void onAdded(String filename) {
+                NapsterClient.this.searches.invalidate(filename);
+                if (NapsterClient.this.joined) {
+                    NapsterClient.this.updates.add(filename);
+                }
+            }
+
+            @Override
+            public void onRemoved(String filename) {
+                NapsterClient.this.searches.invalidate(filename);
+                if (NapsterClient.this.joined) {
+                    NapsterClient.this.updates.remove(filename);
+                }
+            }
+        });
+    }
+
+    public static NapsterClient fromProperties(NapsterService napster, Client.ClientPeer client, PeerServer server) {
+        int maxDownloads = Math.max(1, Integer.getInteger("napster.downloads.concurrent", 4));
+        long bytesPerSecond = Long.getLong("napster.download.bandwidth", 0L);
+        long peerBandwidth = Long.getLong("napster.download.connection.bandwidth", 0L);
+
+        return new NapsterClient(napster, client, server, maxDownloads, bytesPerSecond, peerBandwidth);
+    }
+
+    /**
+     * JOIN com todos os arquivos do peer. Se o servidor aceitar, começa os heartbeats do lease.
+     */
+    public CompletableFuture<NapsterMessage> join() {
+        this.searches.clear();
+        return this.call(() -> {
+            // As mudanças feitas a partir daqui vão no lote seguinte, e as anteriores já estão na lista do JOIN
+            this.joined = true;
+            String[] filenames = this.client.getFilenames();
+            NapsterMessage message = this.napster.join(filenames, this.client.getContentHashes(filenames), this.client.getIp(), this.client.getPort());
+
+            if (!message.getMessage().equals("JOIN_OK")) {
+                this.joined = false;
+                return message;
+            }
+
+            // O segundo argumento é a duração do lease em segundos
+            if (message.getArgs().length > 1) {
+                this.heartbeat.start(Long.parseLong(message.getArgs()[1]));
+            }
+            return message;
+        });
+    }
+
+    /**
+     * LEAVE, depois de enviar os UPDATEs pendentes.
+     */
+    public CompletableFuture<NapsterMessage> leave() {
+        this.heartbeat.stop();
+        this.joined = false;
+        this.searches.clear();
+
+        return this.call(() -> {
+            this.updates.flush();
+            return this.napster.leave(this.client.getIp(), this.client.getPort());
+        });
+    }
+
+    /**
+     * UPDATE de vários arquivos numa única chamada, sem esperar o UpdateBatcher.
+     */
+    public CompletableFuture<NapsterMessage> update(String... filenames) {
+        return this.call(() -> this.napster.updateBatch(filenames, this.client.getContentHashes(filenames), this.client.getIp(), this.client.getPort()));
+    }
+
+    /**
+     * SEARCH de uma página dos peers que possuem o arquivo. Com o cache de
+     * buscas ligado, uma página repetida dentro do ttl não chama o servidor.
+     */
+    public CompletableFuture<SearchResult> search(String filename, int offset, int limit) {
+        SearchResult cached = this.searches.get(filename, offset, limit);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        long generation = this.searches.generation();
+        return this.call(() -> {
+            SearchResult result = this.napster.searchPeers(filename, offset, limit, this.client.getIp(), this.client.getPort());
+            this.searches.put(filename, offset, limit, result, generation);
+            return result;
+        });
+    }
+
+    /**
+     * FIND de nomes de arquivo parecidos com o texto.
+     */
+    public CompletableFuture<NapsterMessage> find(String query, String mode, int offset, int limit) {
+        return this.call(() -> this.napster.find(query, mode, offset, limit, this.client.getIp(), this.client.getPort()));
+    }
+
+    /**
+     * Baixa o arquivo dos primeiros MAX_DOWNLOAD_PEERS peers que possuem o conteúdo dele, com qualquer nome.
+     */
+    public CompletableFuture<File> download(String filename) {
+        return this.downloadOnce(filename, () -> this.call(() -> this.napster.searchContent(filename, 0, MAX_DOWNLOAD_PEERS + 1,
+                this.client.getIp(), this.client.getPort())).thenApply(this::source));
+    }
+
+    /**
+     * Baixa o arquivo só do peer informado.
+     */
+    public CompletableFuture<File> download(String filename, String ip, int port) {
+        return this.downloadOnce(filename, () -> this.call(() -> {
+            SearchResult result = this.napster.searchContent(filename, 0, 1, this.client.getIp(), this.client.getPort());
+            List<InetSocketAddress> peers = new ArrayList<>();
+            peers.add(new InetSocketAddress(ip, port));
+            return new Source(filename, result.getContentHash(), peers, false);
+        }));
+    }
+
+    /**
+     * Baixa vários arquivos, buscando os peers de todos numa única chamada RMI.
+     *
+     * @return um future por arquivo, na ordem dos nomes.
+     */
+    public List<CompletableFuture<File>> downloadAll(String... filenames) {
+        CompletableFuture<SearchResult[]> results = this.call(() -> this.napster.searchBatch(filenames, MAX_DOWNLOAD_PEERS + 1,
+                this.client.getIp(), this.client.getPort()));
+
+        List<CompletableFuture<File>> downloads = new ArrayList<>(filenames.length);
+        for (int i = 0; i < filenames.length; i++) {
+            int index = i;
+            downloads.add(this.downloadOnce(filenames[i], () -> results.thenApply(batch -> this.source(batch[index]))));
+        }
+
+        return downloads;
+    }
+
+    /**
+     * Envia agora os UPDATEs dos arquivos baixados que ainda estão na fila.
+     */
+    public CompletableFuture<Void> flush() {
+        return CompletableFuture.runAsync(this.updates::flush, this.rmi);
+    }
+
+    /**
+     * @return quantidade de downloads transferindo agora.
+     */
+    public int getActiveDownloads() {
+        return this.activeDownloads.get();
+    }
+
+    /**
+     * @return quantidade de downloads esperando um lugar no pool.
+     */
+    public int getQueuedDownloads() {
+        return this.transfers.getQueue().size();
+    }
+
+    public RateLimiter getRateLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Envia os UPDATEs pendentes e para os pools. Os downloads em andamento são interrompidos.
+     */
+    @Override
+    public void close() {
+        this.heartbeat.stop();
+        this.updates.flush();
+        this.transfers.shutdownNow();
+        this.rmi.shutdownNow();
+    }
+
+    /**
+     * De onde baixar um arquivo.
+     */
+    private static class Source {
+        private final String filename;
+        private final String contentHash;
+        private final List<InetSocketAddress> peers;
+
+        /**
+         * true para baixar também dos peers do enxame do conteúdo.
+         */
+        private final boolean swarm;
+
+        Source(String filename, String contentHash, List<InetSocketAddress> peers, boolean swarm) {
+            this.filename = filename;
+            this.contentHash = contentHash;
+            this.peers = peers;
+            this.swarm = swarm;
+        }
+    }
+
+    /**
+     * Chamada RMI que pode lançar exceção.
+     */
+    private interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private <T> CompletableFuture<T> call(RemoteCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, this.rmi);
+    }
+
+    /**
+     * Começa o download do arquivo, a não ser que ele já esteja sendo baixado.
+     *
+     * @param search busca dos peers, só chamada se o download começar
+     */
+    private CompletableFuture<File> downloadOnce(String filename, Supplier<CompletableFuture<Source>> search) {
+        CompletableFuture<File> download = new CompletableFuture<>();
+        CompletableFuture<File> existing = this.downloading.putIfAbsent(filename, download);
+        if (existing != null) {
+            return existing;
+        }
+
+        search.get()
+                .thenApplyAsync(this::transfer, this.transfers)
+                .whenComplete((file, error) -> {
+                    this.downloading.remove(filename, download);
+                    if (error != null) {
+                        download.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    } else {
+                        download.complete(file);
+                    }
+                });
+
+        return download;
+    }
+
+    /**
+     * Os primeiros MAX_DOWNLOAD_PEERS peers do resultado, menos o próprio peer.
+     */
+    private Source source(SearchResult result) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int i = 0; i < result.size() && peers.size() < MAX_DOWNLOAD_PEERS; i++) {
+            if (result.getIp(i).equals(this.client.getIp()) && result.getPort(i) == this.client.getPort()) {
+                continue;
+            }
+            peers.add(new InetSocketAddress(result.getIp(i), result.getPort(i)));
+        }
+
+        return new Source(result.getFilename(), result.getContentHash(), peers, true);
+    }
+
+    /**
+     * Baixa o arquivo numa thread do pool de downloads.
+     *
+     * Com o hash de conteúdo conhecido, o peer entra no enxame do conteúdo
+     * enquanto baixa: os chunks já baixados são enviados aos outros membros, e
+     * o arquivo pode ser baixado deles mesmo sem nenhum peer com o arquivo completo.
+     */
+    private File transfer(Source source) {
+        String filename = source.filename;
+        boolean swarm = Swarm.ENABLED && source.swarm && source.contentHash != null;
+        if (source.peers.isEmpty() && !swarm) {
+            throw new CompletionException(new IOException("Nenhum peer possui o arquivo " + filename));
+        }
+
+        try (Swarm members = swarm ? new Swarm(this.napster, this.client, source.contentHash) : null) {
+            return this.transfer(source, members);
+        }
+    }
+
+    private File transfer(Source source, Swarm swarm) {
+        String filename = source.filename;
+        this.activeDownloads.incrementAndGet();
+        SegmentedDownload download = new SegmentedDownload(filename, source.contentHash, source.peers, this.client.getFile(filename));
+        download.setRateLimiter(this.limiter);
+        download.setPeerBandwidth(this.peerBandwidth);
+        download.setSwarm(swarm);
+        try {
+            download.run();
+            this.completedDownloads.increment();
+        } catch (IOException e) {
+            this.failedDownloads.increment();
+            throw new CompletionException(e);
+        } finally {
+            this.activeDownloads.decrementAndGet();
+            this.report(download);
+        }
+
+        // Os hashes já foram conferidos no download, então não precisam ser calculados de novo
+        if (download.getChunkHashes() != null) {
+            this.client.getContentHashes().put(filename, download.getChunkHashes());
+        }
+
+        // coloca o arquivo no catálogo, que o envia na fila de UPDATE para o servidor
+        this.client.addFile(filename);
+
+        return this.client.getFile(filename);
+    }
+
+    /**
+     * Informa ao servidor a velocidade e as falhas de cada peer do download,
+     * que ele usa para ordenar os peers nas próximas buscas.
+     */
+    private void report(SegmentedDownload download) {
+        // Os peers do enxame não estão no índice com o arquivo: só os da busca são informados
+        Map<InetSocketAddress, SegmentedDownload.PeerStats> stats = new LinkedHashMap<>(download.getPeerStats());
+        stats.values().removeIf(SegmentedDownload.PeerStats::isSwarm);
+        String[] peers = new String[stats.size()];
+        long[] bytes = new long[stats.size()];
+        long[] millis = new long[stats.size()];
+        boolean[] failed = new boolean[stats.size()];
+
+        int i = 0;
+        for (Map.Entry<InetSocketAddress, SegmentedDownload.PeerStats> entry : stats.entrySet()) {
+            peers[i] = entry.getKey().getHostString() + ":" + entry.getKey().getPort();
+            bytes[i] = entry.getValue().getReceived();
+            millis[i] = entry.getValue().getMillis();
+            failed[i] = entry.getValue().isFailed();
+            i++;
+        }
+
+        try {
+            this.napster.report(peers, bytes, millis, failed, this.client.getIp(), this.client.getPort());
+        } catch (RemoteException e) {
+            Log.warn("Falha ao informar o resultado do download: {}", e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
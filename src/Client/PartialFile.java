@@ -0,0 +1,182 @@
+package Client;
+
+import Monitoring.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * Classe para representar um arquivo que ainda está sendo baixado.
+ *
+ * Os bytes vão para .napster-part-<nome>, e os segmentos que já foram
+ * escritos ficam marcados num bitmap no arquivo .napster-part-<nome>.ranges.
+ * Se o download for interrompido, a próxima tentativa do mesmo arquivo (mesmo
+ * tamanho e mesmo hash de conteúdo) só baixa os segmentos que faltam. Só
+ * quando todos os segmentos foram escritos o arquivo é renomeado para o nome
+ * final, então um arquivo parcial nunca aparece na lista de arquivos do peer
+ * nem é enviado no UPDATE.
+ *
+ * O bitmap é gravado no máximo uma vez por SAVE_INTERVAL_MILLIS, sempre depois
+ * de um force dos dados, então ele nunca marca um segmento que não está no
+ * disco. Uma queda perde no máximo os segmentos desse intervalo.
+ *
+ * Durante o download os segmentos já escritos podem ser enviados a outros
+ * peers do enxame (Swarm), lidos de getServedFile.
+ */
+public class PartialFile {
+    public static final String PREFIX = ContentHashes.INTERNAL_PREFIX + "-part-";
+
+    private static final int VERSION = 1;
+    private static final long SAVE_INTERVAL_MILLIS = 1000;
+
+    private final File target;
+    private final File data;
+    private final File ranges;
+    private final long size;
+    private final int segmentSize;
+    private final String contentHash;
+
+    private final BitSet done;
+    private int resumed;
+    private long lastSave;
+    private volatile boolean completed;
+
+    /**
+     * Abre o arquivo parcial do destino, continuando um download anterior se
+     * ele for do mesmo conteúdo, ou começando do zero caso contrário.
+     *
+     * @param contentHash hash de conteúdo, ou null se ele não é conhecido
+     */
+    public PartialFile(File target, long size, int segmentSize, String contentHash) {
+        this.target = target;
+        this.data = new File(target.getParentFile(), PREFIX + target.getName());
+        this.ranges = new File(target.getParentFile(), PREFIX + target.getName() + ".ranges");
+        this.size = size;
+        this.segmentSize = segmentSize;
+        this.contentHash = contentHash != null ? contentHash : "";
+        this.done = this.load();
+        this.resumed = this.done.cardinality();
+    }
+
+    public File getDataFile() {
+        return this.data;
+    }
+
+    public File getTarget() {
+        return this.target;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return o arquivo de onde ler os segmentos baixados: o parcial, ou o final depois de complete.
+     */
+    public File getServedFile() {
+        return this.completed ? this.target : this.data;
+    }
+
+    /**
+     * @return quantos segmentos já estavam baixados quando o arquivo foi aberto.
+     */
+    public int getResumed() {
+        return this.resumed;
+    }
+
+    public synchronized boolean isDone(int segment) {
+        return this.done.get(segment);
+    }
+
+    /**
+     * @return true se todos os segmentos de [from, to] já foram escritos.
+     */
+    public synchronized boolean isDone(int from, int to) {
+        return this.done.nextClearBit(from) > to;
+    }
+
+    /**
+     * @return uma cópia do bitmap dos segmentos já escritos.
+     */
+    public synchronized BitSet getDone() {
+        return (BitSet) this.done.clone();
+    }
+
+    /**
+     * Marca um segmento como escrito e grava o bitmap se o último foi gravado há mais de SAVE_INTERVAL_MILLIS.
+     */
+    public synchronized void markDone(int segment, FileChannel channel) {
+        this.done.set(segment);
+
+        long now = System.currentTimeMillis();
+        if (now - this.lastSave >= SAVE_INTERVAL_MILLIS) {
+            this.save(channel);
+            this.lastSave = now;
+        }
+    }
+
+    /**
+     * Grava os dados e depois o bitmap, para que a próxima tentativa continue daqui.
+     */
+    public synchronized void save(FileChannel channel) {
+        File tmp = new File(this.ranges.getPath() + ".tmp");
+        try {
+            channel.force(false);
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                output.writeInt(VERSION);
+                output.writeLong(this.size);
+                output.writeInt(this.segmentSize);
+                output.writeUTF(this.contentHash);
+                byte[] bitmap = this.done.toByteArray();
+                output.writeInt(bitmap.length);
+                output.write(bitmap);
+            }
+            Files.move(tmp.toPath(), this.ranges.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar o progresso do download: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Renomeia o arquivo completo para o nome final e apaga o bitmap.
+     */
+    public void complete() throws IOException {
+        Files.move(this.data.toPath(), this.target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        this.completed = true;
+        Files.deleteIfExists(this.ranges.toPath());
+    }
+
+    /**
+     * Lê o bitmap de um download anterior. Ele só vale se o arquivo parcial
+     * ainda existe e se o tamanho, o tamanho do segmento e o hash são os mesmos.
+     */
+    private BitSet load() {
+        if (!this.ranges.exists() || !this.data.exists() || this.data.length() != this.size) {
+            return new BitSet();
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.ranges)))) {
+            if (input.readInt() != VERSION || input.readLong() != this.size || input.readInt() != this.segmentSize
+                    || !input.readUTF().equals(this.contentHash)) {
+                return new BitSet();
+            }
+            byte[] bitmap = new byte[input.readInt()];
+            input.readFully(bitmap);
+            return BitSet.valueOf(bitmap);
+        } catch (IOException e) {
+            Log.warn("Progresso do download anterior inválido, baixando do começo: {}", e.getMessage());
+            return new BitSet();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de conexões persistentes com outros peers, por endereço.
+ *
+ * Cada conexão nova começa com KEEPALIVE. Depois de usada ela volta para o
+ * pool e é reaproveitada pelo próximo download do mesmo peer, sem um novo
+ * handshake TCP e sem uma nova thread no outro peer. Conexões paradas há mais
+ * tempo do que o peer as mantém abertas são descartadas ao sair do pool.
+ *
+ * Peers que não entendem KEEPALIVE (versões antigas) recebem uma conexão por
+ * requisição, como antes.
+ *
+ * A quantidade de conexões paradas por peer vem da propriedade
+ * napster.pool.idle (padrão 4), e napster.keepalive=false desliga o pool.
+ */
+public class PeerConnections {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Margem para não reaproveitar uma conexão que o outro peer está prestes a fechar.
+     */
+    private static final long EXPIRY_MARGIN_MILLIS = 2000;
+
+    private static final PeerConnections SHARED = new PeerConnections(
+            Integer.getInteger("napster.pool.idle", 4),
+            Boolean.parseBoolean(System.getProperty("napster.keepalive", "true")));
+
+    /**
+     * O peer fechou a conexão antes de começar a resposta. Numa conexão já
+     * usada isso quer dizer que ela expirou ou foi liberada pelo outro peer, e
+     * as requisições podem ser repetidas em outra conexão.
+     */
+    public static class ClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ClosedException() {
+            super("Conexão fechada pelo peer.");
+        }
+    }
+
+    /**
+     * Conexão com um peer, persistente ou não.
+     */
+    public static class Connection {
+        private final InetSocketAddress peer;
+        private final Socket socket;
+        private final BufferedInputStream input;
+        private final BufferedOutputStream output;
+        private final boolean persistent;
+        private long idleTimeoutMillis;
+        private long lastUsed;
+        private boolean reused;
+        private PeerRequest.Header header;
+
+        private Connection(InetSocketAddress peer, Socket socket, boolean persistent, long idleTimeoutMillis) throws IOException {
+            this.peer = peer;
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+            this.persistent = persistent;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        public InetSocketAddress getPeer() {
+            return this.peer;
+        }
+
+        /**
+         * @return true se a conexão aceita mais de uma requisição.
+         */
+        public boolean isPersistent() {
+            return this.persistent;
+        }
+
+        /**
+         * @return true se a conexão veio do pool ou já recebeu alguma resposta.
+         */
+        public boolean isReused() {
+            return this.reused;
+        }
+
+        /**
+         * Coloca a requisição no buffer de saída, sem enviar.
+         */
+        public void send(PeerRequest request) throws IOException {
+            request.writeTo(this.output);
+        }
+
+        /**
+         * Envia as requisições que estão no buffer.
+         */
+        public void flush() throws IOException {
+            this.output.flush();
+        }
+
+        /**
+         * Lê o cabeçalho da próxima resposta.
+         *
+         * @throws ClosedException se o peer fechou a conexão antes de responder.
+         */
+        public PeerRequest.Header readHeader() throws IOException {
+            try {
+                this.input.mark(1);
+                if (this.input.read() == -1) {
+                    throw new ClosedException();
+                }
+                this.input.reset();
+            } catch (SocketException e) {
+                throw new ClosedException();
+            }
+
+            this.header = PeerRequest.readHeader(this.input);
+            this.reused = true;
+            return this.header;
+        }
+
+        /**
+         * @return o cabeçalho da última resposta lida.
+         */
+        public PeerRequest.Header getHeader() {
+            return this.header;
+        }
+
+        public InputStream getInput() {
+            return this.input;
+        }
+
+        private void close() {
+            try {
+                this.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final int maxIdle;
+    private final boolean keepAlive;
+    private final ConcurrentHashMap<InetSocketAddress, ConcurrentLinkedDeque<Connection>> idle = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> withoutKeepAlive = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reusedCount = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public PeerConnections(int maxIdle, boolean keepAlive) {
+        this.maxIdle = maxIdle;
+        this.keepAlive = keepAlive;
+    }
+
+    public static PeerConnections shared() {
+        return SHARED;
+    }
+
+    /**
+     * Pega uma conexão parada do pool ou abre uma nova.
+     */
+    public Connection acquire(InetSocketAddress peer) throws IOException {
+        ConcurrentLinkedDeque<Connection> connections = this.idle.get(peer);
+        Connection connection;
+        while (connections != null && (connection = connections.pollFirst()) != null) {
+            if (System.currentTimeMillis() - connection.lastUsed < connection.idleTimeoutMillis - EXPIRY_MARGIN_MILLIS) {
+                connection.reused = true;
+                this.reusedCount.increment();
+                return connection;
+            }
+            this.expired.increment();
+            connection.close();
+        }
+
+        return this.open(peer);
+    }
+
+    /**
+     * Envia uma requisição e lê o cabeçalho da resposta, que fica em getHeader.
+     *
+     * Se uma conexão já usada foi fechada pelo peer antes de responder, a
+     * requisição é repetida em outra conexão.
+     */
+    public Connection request(InetSocketAddress peer, PeerRequest request) throws IOException {
+        while (true) {
+            Connection connection = this.acquire(peer);
+            try {
+                connection.send(request);
+                connection.flush();
+                connection.readHeader();
+                return connection;
+            } catch (ClosedException e) {
+                this.discard(connection);
+                if (!connection.isReused()) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                this.discard(connection);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Devolve a conexão para o pool. Só deve ser chamado depois que todas as
+     * respostas das requisições enviadas foram lidas.
+     */
+    public void release(Connection connection) {
+        if (!connection.persistent || connection.socket.isClosed()) {
+            connection.close();
+            return;
+        }
+
+        ConcurrentLinkedDeque<Connection> connections = this.idle.computeIfAbsent(connection.peer, key -> new ConcurrentLinkedDeque<>());
+        if (connections.size() >= this.maxIdle) {
+            connection.close();
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        connections.offerFirst(connection);
+    }
+
+    /**
+     * Fecha uma conexão que falhou ou ficou com respostas não lidas.
+     */
+    public void discard(Connection connection) {
+        connection.close();
+    }
+
+    private Connection open(InetSocketAddress peer) throws IOException {
+        boolean keepAlive = this.keepAlive && !this.withoutKeepAlive.contains(peer);
+        Socket socket = connect(peer);
+        this.opened.increment();
+        if (!keepAlive) {
+            return new Connection(peer, socket, false, 0);
+        }
+
+        Connection connection = new Connection(peer, socket, true, 0);
+        try {
+            connection.send(PeerRequest.keepAlive());
+            connection.flush();
+            connection.idleTimeoutMillis = PeerRequest.readHeader(connection.input).getSize() * 1000;
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            if (PeerServer.BUSY.equals(e.getMessage())) {
+                throw e;
+            }
+
+            // Versão antiga do peer: fecha a conexão sem responder ao KEEPALIVE
+            this.withoutKeepAlive.add(peer);
+            Socket retry = connect(peer);
+            this.opened.increment();
+            return new Connection(peer, retry, false, 0);
+        }
+    }
+
+    private static Socket connect(InetSocketAddress peer) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(peer, CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    public String stats() {
+        int idleConnections = 0;
+        for (ConcurrentLinkedDeque<Connection> connections : this.idle.values()) {
+            idleConnections += connections.size();
+        }
+
+        return "conexoes: abertas=" + this.opened.sum() + " reaproveitadas=" + this.reusedCount.sum()
+                + " expiradas=" + this.expired.sum() + " paradas=" + idleConnections
+                + " peers sem keep-alive=" + this.withoutKeepAlive.size();
+    }
+}
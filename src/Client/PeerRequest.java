@@ -0,0 +1,420 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Classe para representar uma requisição feita de um peer para outro.
+ *
+ * O protocolo original envia apenas o nome do arquivo, sem quebra de linha, e
+ * recebe o arquivo inteiro. Continua sendo aceito (LEGACY). As requisições
+ * novas são linhas terminadas em \n:
+ * - STAT <filename>: responde "OK <size>\n";
+ * - RANGE <filename> <offset> <length> [<codificações>]: responde "OK <size>\n"
+ *   seguido dos bytes de [offset, offset + length), limitados ao tamanho do
+ *   arquivo. Se quem pede aceita compressão ("fast,deflate", por exemplo), a
+ *   resposta pode ser "OK <size> <codificação>\n" seguida dos frames do
+ *   TransferEncoding;
+ * - HASHES <filename>: responde "OK <size>\n" seguido dos SHA-256 de cada
+ *   chunk do arquivo (ContentHashes), 32 bytes cada.
+ * - HAVE <filename>: responde "OK <size>\n" seguido de um bitmap dos chunks
+ *   que o peer tem, um bit por chunk (o bit i % 8 do byte i / 8). Um peer que
+ *   ainda está baixando o arquivo tem só uma parte dos chunks, e um que ainda
+ *   não sabe o tamanho responde "OK 0\n", sem bitmap.
+ *
+ * - KEEPALIVE: responde "OK <segundos>\n" e a conexão passa a ser persistente:
+ *   as requisições seguintes podem ser enviadas sem esperar as respostas
+ *   (pipelining), que chegam na mesma ordem. O peer fecha a conexão depois de
+ *   <segundos> sem requisições, ou quando outros peers estão esperando na fila.
+ *
+ * No lugar do nome pode ir "content:<hash>", e o peer procura um arquivo
+ * local com esse hash de conteúdo, qualquer que seja o nome dele. O nome pode
+ * ter espaços: os campos numéricos do RANGE são lidos do fim da linha.
+ *
+ * Em caso de erro a resposta é "ERROR <mensagem>\n".
+ */
+public class PeerRequest {
+    public enum Type {
+        LEGACY,
+        STAT,
+        RANGE,
+        HASHES,
+        HAVE,
+        KEEPALIVE
+    }
+
+    /**
+     * Prefixo do nome que pede o arquivo pelo hash de conteúdo.
+     */
+    public static final String CONTENT_PREFIX = "content:";
+
+    private static final int MAX_LINE = 4096;
+
+    /**
+     * Começo das requisições com verbo, para separá-las das de peers antigos.
+     */
+    private static final String[] VERBS = {"STAT ", "RANGE ", "HASHES ", "HAVE ", "KEEPALIVE"};
+
+    private final Type type;
+    private final String filename;
+    private final long offset;
+    private final long length;
+    private final String encodings;
+
+    private PeerRequest(Type type, String filename, long offset, long length, String encodings) {
+        this.type = type;
+        this.filename = filename;
+        this.offset = offset;
+        this.length = length;
+        this.encodings = encodings;
+    }
+
+    /**
+     * Cabeçalho "OK" de uma resposta: tamanho do arquivo e codificação do corpo.
+     */
+    public static class Header {
+        private final long size;
+        private final TransferEncoding encoding;
+
+        Header(long size, TransferEncoding encoding) {
+            this.size = size;
+            this.encoding = encoding;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public TransferEncoding getEncoding() {
+            return this.encoding;
+        }
+    }
+
+    public static PeerRequest stat(String filename) {
+        return new PeerRequest(Type.STAT, filename, 0, 0, null);
+    }
+
+    public static PeerRequest range(String filename, long offset, long length) {
+        return range(filename, offset, length, null);
+    }
+
+    /**
+     * @param encodings codificações aceitas, separadas por vírgula, ou null para receber sem compressão
+     */
+    public static PeerRequest range(String filename, long offset, long length, String encodings) {
+        return new PeerRequest(Type.RANGE, filename, offset, length, encodings);
+    }
+
+    public static PeerRequest hashes(String filename) {
+        return new PeerRequest(Type.HASHES, filename, 0, 0, null);
+    }
+
+    public static PeerRequest have(String filename) {
+        return new PeerRequest(Type.HAVE, filename, 0, 0, null);
+    }
+
+    public static PeerRequest keepAlive() {
+        return new PeerRequest(Type.KEEPALIVE, "", 0, 0, null);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return as codificações aceitas por quem pediu, ou null se ele não aceita compressão.
+     */
+    public String getEncodings() {
+        return this.encodings;
+    }
+
+    /**
+     * Escreve a requisição no formato de linha.
+     */
+    public void write(OutputStream output) throws IOException {
+        this.writeTo(output);
+        output.flush();
+    }
+
+    /**
+     * Escreve a requisição sem flush, para enviar várias de uma vez numa conexão persistente.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        String line;
+        switch (this.type) {
+            case STAT:
+                line = "STAT " + this.filename + "\n";
+                break;
+            case RANGE:
+                line = "RANGE " + this.filename + " " + this.offset + " " + this.length
+                        + (this.encodings != null ? " " + this.encodings : "") + "\n";
+                break;
+            case HASHES:
+                line = "HASHES " + this.filename + "\n";
+                break;
+            case HAVE:
+                line = "HAVE " + this.filename + "\n";
+                break;
+            case KEEPALIVE:
+                line = "KEEPALIVE\n";
+                break;
+            default:
+                line = this.filename;
+                break;
+        }
+        output.write(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lê uma requisição de outro peer.
+     *
+     * Um peer antigo envia só o nome do arquivo e fica esperando, então não dá
+     * para ler até o \n. Os bytes são lidos até formarem um verbo conhecido,
+     * uma linha inteira ou um começo que não é de nenhum verbo, já que uma
+     * leitura pode trazer só parte do verbo. Com um verbo, volta para o começo
+     * e lê a linha; senão é o nome do arquivo. Voltar com reset mantém no
+     * buffer as requisições que já chegaram atrás da primeira.
+     */
+    public static PeerRequest read(BufferedInputStream input) throws IOException {
+        byte[] buffer = new byte[1024];
+        input.mark(buffer.length);
+        int length = 0;
+        String first = "";
+        while (first.indexOf('\n') == -1 && !isVerb(first) && couldBeVerb(first)) {
+            int bytesRead = input.read(buffer, length, buffer.length - length);
+            if (bytesRead == -1) {
+                if (length == 0) {
+                    throw new IOException("Conexão fechada antes da requisição.");
+                }
+                break;
+            }
+            length += bytesRead;
+            first = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        if (!isVerb(first)) {
+            // O nome enviado por um peer antigo pode chegar em mais de um pacote
+            while (length < buffer.length && input.available() > 0) {
+                int bytesRead = input.read(buffer, length, Math.min(input.available(), buffer.length - length));
+                if (bytesRead == -1) {
+                    break;
+                }
+                length += bytesRead;
+            }
+            return new PeerRequest(Type.LEGACY, new String(buffer, 0, length, StandardCharsets.UTF_8), 0, -1, null);
+        }
+
+        input.reset();
+        return readNext(input);
+    }
+
+    private static boolean isVerb(String text) {
+        for (String verb : VERBS) {
+            if (text.startsWith(verb)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return se o texto ainda pode virar um verbo com os próximos bytes.
+     */
+    private static boolean couldBeVerb(String text) {
+        for (String verb : VERBS) {
+            if (verb.startsWith(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lê a próxima requisição de uma conexão persistente.
+     *
+     * @return a requisição, ou null se o outro peer fechou a conexão entre duas requisições.
+     */
+    public static PeerRequest readNext(BufferedInputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new IOException("Requisição incompleta.");
+            }
+            if (line.size() > MAX_LINE) {
+                throw new IOException("Requisição muito grande.");
+            }
+            line.write(b);
+        }
+
+        // Só tira o \r do fim: espaços no começo e no fim podem ser parte do nome
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return parse(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+    }
+
+    private static PeerRequest parse(String line) throws IOException {
+        int space = line.indexOf(' ');
+        String verb = space != -1 ? line.substring(0, space) : line;
+        String rest = space != -1 ? line.substring(space + 1) : "";
+        try {
+            switch (verb) {
+                case "STAT":
+                    return stat(filename(rest, line));
+                case "RANGE":
+                    // <nome> <offset> <length> [<codificações>]: as codificações nunca são um número
+                    String[] parts = rest.split(" ");
+                    int last = parts.length - 1;
+                    String encodings = null;
+                    if (!isNumber(parts[last])) {
+                        encodings = parts[last];
+                        last--;
+                    }
+                    long offset = Long.parseLong(parts[last - 1]);
+                    long length = Long.parseLong(parts[last]);
+                    if (offset < 0 || length < 0) {
+                        throw new IOException("Intervalo inválido: " + line);
+                    }
+                    String filename = String.join(" ", Arrays.copyOfRange(parts, 0, last - 1));
+                    return range(filename(filename, line), offset, length, encodings);
+                case "HASHES":
+                    return hashes(filename(rest, line));
+                case "HAVE":
+                    return have(filename(rest, line));
+                case "KEEPALIVE":
+                    return keepAlive();
+                default:
+                    throw new IOException("Requisição inválida: " + line);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new IOException("Requisição inválida: " + line);
+        }
+    }
+
+    private static String filename(String filename, String line) throws IOException {
+        if (filename.isEmpty()) {
+            throw new IOException("Requisição inválida: " + line);
+        }
+        return filename;
+    }
+
+    private static boolean isNumber(String token) {
+        if (token.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i)) && !(i == 0 && token.charAt(i) == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Escreve o cabeçalho de resposta de uma requisição STAT/RANGE.
+     */
+    public static void writeOk(OutputStream output, long size) throws IOException {
+        writeOk(output, size, TransferEncoding.NONE);
+    }
+
+    /**
+     * Escreve o cabeçalho de resposta de uma requisição RANGE com o corpo na codificação informada.
+     */
+    public static void writeOk(OutputStream output, long size, TransferEncoding encoding) throws IOException {
+        String suffix = encoding != TransferEncoding.NONE ? " " + encoding.getToken() : "";
+        output.write(("OK " + size + suffix + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Escreve a resposta de uma requisição HAVE.
+     *
+     * @param chunks chunks que o peer tem, entre os ContentHashes.chunkCount(size) do arquivo
+     */
+    public static void writeHave(OutputStream output, long size, BitSet chunks) throws IOException {
+        byte[] bitmap = Arrays.copyOf(chunks.toByteArray(), (ContentHashes.chunkCount(size) + 7) / 8);
+        output.write(("OK " + size + "\n").getBytes(StandardCharsets.UTF_8));
+        output.write(bitmap);
+        output.flush();
+    }
+
+    /**
+     * Lê o bitmap da resposta de uma requisição HAVE, depois do cabeçalho.
+     */
+    public static BitSet readHave(InputStream input, long size) throws IOException {
+        byte[] bitmap = new byte[(ContentHashes.chunkCount(size) + 7) / 8];
+        new DataInputStream(input).readFully(bitmap);
+
+        BitSet chunks = BitSet.valueOf(bitmap);
+        chunks.clear(ContentHashes.chunkCount(size), bitmap.length * 8);
+        return chunks;
+    }
+
+    public static void writeError(OutputStream output, String message) throws IOException {
+        output.write(("ERROR " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Lê o cabeçalho de resposta e retorna o tamanho total do arquivo.
+     */
+    public static long readOk(InputStream input) throws IOException {
+        return readHeader(input).getSize();
+    }
+
+    /**
+     * Lê o cabeçalho de resposta com a codificação do corpo.
+     *
+     * A leitura é feita byte a byte para não consumir o corpo da resposta.
+     */
+    public static Header readHeader(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Resposta incompleta.");
+            }
+            if (line.size() > MAX_LINE) {
+                throw new IOException("Resposta muito grande.");
+            }
+            line.write(b);
+        }
+
+        String header = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        if (header.startsWith("OK ")) {
+            String[] parts = header.substring(3).trim().split(" ");
+            try {
+                TransferEncoding encoding = parts.length > 1 ? TransferEncoding.fromToken(parts[1]) : TransferEncoding.NONE;
+                return new Header(Long.parseLong(parts[0]), encoding);
+            } catch (NumberFormatException e) {
+                throw new IOException("Resposta inválida: " + header);
+            }
+        }
+        if (header.startsWith("ERROR ")) {
+            throw new IOException(header.substring(6));
+        }
+
+        throw new IOException("Resposta inválida: " + header);
+    }
+}
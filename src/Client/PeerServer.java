@@ -0,0 +1,347 @@
+package Client;
+
+import Monitoring.Log;
+import Monitoring.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Servidor de um peer, que atende os downloads pedidos por outros peers.
+ *
+ * Substitui a criação de uma thread por conexão. Há três modos:
+ * - POOL: um pool fixo de threads;
+ * - VIRTUAL: uma virtual thread por conexão (JDK 21+, senão threads comuns);
+ * - SELECTOR: um Selector espera a requisição chegar, sem ocupar thread com
+ *   conexões ociosas, e só então entrega a conexão para o pool.
+ *
+ * Em todos os modos no máximo maxConnections downloads rodam ao mesmo tempo,
+ * e até queueCapacity conexões esperam na fila. As demais são recusadas com
+ * "ERROR busy", assim quem pediu tenta outro peer.
+ *
+ * Uma conexão persistente (KEEPALIVE) ocupa a mesma vaga enquanto estiver
+ * aberta, e é fechada quando fica ociosa com outras conexões na fila.
+ *
+ * No modo SELECTOR as conexões esperando a primeira requisição também contam
+ * no limite, e são fechadas se não mandarem nada no tempo do keep-alive.
+ *
+ * A banda de upload pode ser limitada no total (dividida entre as conexões
+ * ativas, ver Throttle) e por conexão.
+ *
+ * A configuração vem das propriedades napster.server.mode, napster.server.connections,
+ * napster.server.queue, napster.upload.bandwidth e napster.upload.connection.bandwidth
+ * (bytes por segundo, 0 para não limitar).
+ */
+public class PeerServer implements Runnable {
+    /**
+     * Mensagem de erro enviada quando a conexão é recusada.
+     */
+    public static final String BUSY = "busy";
+
+    public enum Mode {
+        POOL,
+        VIRTUAL,
+        SELECTOR
+    }
+
+    /**
+     * Intervalo em que o Selector procura conexões ociosas para fechar.
+     */
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final Client.ClientPeer clientPeer;
+    private final Mode mode;
+    private final int maxConnections;
+    private final int queueCapacity;
+
+    private final Semaphore slots;
+
+    /**
+     * Limite de upload somando todas as conexões.
+     */
+    private final RateLimiter uploadLimiter;
+    private final long connectionBandwidth;
+    private final LongAdder throttledNanos = new LongAdder();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong persistent = new AtomicLong();
+
+    private ExecutorService executor;
+
+    public PeerServer(Client.ClientPeer clientPeer, Mode mode, int maxConnections, int queueCapacity) {
+        this(clientPeer, mode, maxConnections, queueCapacity, 0, 0);
+    }
+
+    /**
+     * @param bandwidth           banda máxima de upload somando todas as conexões, ou 0 para não limitar
+     * @param connectionBandwidth banda máxima de upload de cada conexão, ou 0 para não limitar
+     */
+    public PeerServer(Client.ClientPeer clientPeer, Mode mode, int maxConnections, int queueCapacity, long bandwidth, long connectionBandwidth) {
+        this.clientPeer = clientPeer;
+        this.mode = mode;
+        this.maxConnections = maxConnections;
+        this.queueCapacity = queueCapacity;
+        this.slots = new Semaphore(maxConnections, true);
+        this.uploadLimiter = new RateLimiter(bandwidth);
+        this.connectionBandwidth = Math.max(0, connectionBandwidth);
+
+        Metrics.gauge("napster_uploads_active", "Uploads sendo atendidos agora", this::getActive);
+        Metrics.gauge("napster_uploads_queued", "Conexões esperando um lugar no servidor do peer", this::getQueued);
+        Metrics.gauge("napster_uploads_rejected", "Conexões recusadas com a fila cheia desde o início", this.rejected::get);
+        Metrics.gauge("napster_upload_throttled_seconds", "Tempo que os uploads esperaram o limite de banda, somando as conexões",
+                () -> this.throttledNanos.sum() / 1e9);
+    }
+
+    public static PeerServer fromProperties(Client.ClientPeer clientPeer) {
+        Mode mode = Mode.valueOf(System.getProperty("napster.server.mode", "POOL").toUpperCase());
+        int maxConnections = Integer.getInteger("napster.server.connections", 16);
+        int queueCapacity = Integer.getInteger("napster.server.queue", 64);
+        long bandwidth = Long.getLong("napster.upload.bandwidth", 0L);
+        long connectionBandwidth = Long.getLong("napster.upload.connection.bandwidth", 0L);
+
+        return new PeerServer(clientPeer, mode, maxConnections, queueCapacity, bandwidth, connectionBandwidth);
+    }
+
+    @Override
+    public void run() {
+        try {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(this.clientPeer.getPort()));
+
+            this.executor = this.mode == Mode.VIRTUAL ? newVirtualExecutor() : Executors.newFixedThreadPool(this.maxConnections);
+            Log.info("O Servidor do peer está pronto ({}, {} conexões, fila de {}).", this.mode, this.maxConnections, this.queueCapacity);
+
+            if (this.mode == Mode.SELECTOR) {
+                this.selectLoop(server);
+            } else {
+                this.acceptLoop(server);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Aceita conexões bloqueando e entrega cada uma para o executor.
+     */
+    private void acceptLoop(ServerSocketChannel server) throws IOException {
+        while (true) {
+            this.dispatch(server.accept());
+        }
+    }
+
+    /**
+     * Aceita conexões e espera a requisição de cada uma no Selector.
+     *
+     * A conexão só vai para o executor quando já tem dados para ler, então
+     * conexões abertas e ociosas não ocupam nenhuma thread. Cada chave guarda
+     * quando a conexão foi aceita, para fechar as que passam do keep-alive.
+     */
+    private void selectLoop(ServerSocketChannel server) throws IOException {
+        Selector selector = Selector.open();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        long idleTimeout = TimeUnit.SECONDS.toMillis(Client.HandleDownloadThread.KEEPALIVE_SECONDS);
+        long lastIdleCheck = System.currentTimeMillis();
+        List<SocketChannel> ready = new ArrayList<>();
+        while (true) {
+            selector.select(IDLE_CHECK_MILLIS);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isAcceptable()) {
+                    SocketChannel channel;
+                    while ((channel = server.accept()) != null) {
+                        this.accepted.incrementAndGet();
+                        if (!this.admit()) {
+                            reject(channel.socket());
+                            continue;
+                        }
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ, System.currentTimeMillis());
+                        this.idle.incrementAndGet();
+                    }
+                } else if (key.isReadable()) {
+                    key.cancel();
+                    ready.add((SocketChannel) key.channel());
+                    this.idle.decrementAndGet();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= IDLE_CHECK_MILLIS) {
+                lastIdleCheck = now;
+                this.closeIdle(selector, now - idleTimeout);
+            }
+
+            if (ready.isEmpty()) {
+                continue;
+            }
+
+            // O canal só sai do Selector no próximo select, antes disso não pode voltar a ser bloqueante
+            selector.selectNow();
+            for (SocketChannel channel : ready) {
+                channel.configureBlocking(true);
+                this.execute(channel.socket());
+            }
+            ready.clear();
+        }
+    }
+
+    /**
+     * Fecha as conexões do Selector aceitas antes de deadline que ainda não mandaram nenhuma requisição.
+     */
+    private void closeIdle(Selector selector, long deadline) {
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Long) || (Long) key.attachment() > deadline) {
+                continue;
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+            this.idle.decrementAndGet();
+            this.admitted.decrementAndGet();
+            this.completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Coloca a conexão na fila ou a recusa, se o limite já foi atingido.
+     */
+    private void dispatch(SocketChannel channel) {
+        this.accepted.incrementAndGet();
+        if (!this.admit()) {
+            reject(channel.socket());
+            return;
+        }
+        this.execute(channel.socket());
+    }
+
+    /**
+     * Reserva um lugar entre as maxConnections + queueCapacity conexões aceitas.
+     *
+     * @return false se não há lugar, e a conexão deve ser recusada.
+     */
+    private boolean admit() {
+        if (this.admitted.incrementAndGet() > this.maxConnections + this.queueCapacity) {
+            this.admitted.decrementAndGet();
+            this.rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Entrega uma conexão já admitida para o executor.
+     */
+    private void execute(Socket socket) {
+        this.executor.execute(() -> {
+            try {
+                this.slots.acquireUninterruptibly();
+                int running = this.active.incrementAndGet();
+                this.peakActive.accumulateAndGet(running, Math::max);
+                try {
+                    new Client.HandleDownloadThread(socket, this.clientPeer, this).run();
+                } finally {
+                    this.active.decrementAndGet();
+                    this.slots.release();
+                }
+            } finally {
+                this.admitted.decrementAndGet();
+                this.completed.incrementAndGet();
+            }
+        });
+    }
+
+    private static void reject(Socket socket) {
+        try {
+            OutputStream output = socket.getOutputStream();
+            PeerRequest.writeError(output, BUSY);
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Usa Executors.newVirtualThreadPerTaskExecutor por reflexão, já que o
+     * projeto compila para Java 8.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads não estão disponíveis nesta JVM, usando threads comuns.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int getActive() {
+        return this.active.get();
+    }
+
+    public int getQueued() {
+        return Math.max(0, this.admitted.get() - this.active.get() - this.idle.get());
+    }
+
+    /**
+     * @return os limites de upload de uma conexão nova.
+     */
+    Throttle newThrottle() {
+        return new Throttle(this.uploadLimiter, this.connectionBandwidth, this.throttledNanos);
+    }
+
+    void requestServed() {
+        this.requests.incrementAndGet();
+    }
+
+    void keepAliveOpened() {
+        this.persistent.incrementAndGet();
+    }
+
+    /**
+     * Estatísticas do servidor para dimensionar o limite e a fila.
+     */
+    public String stats() {
+        return "modo=" + this.mode
+                + " ativas=" + this.active.get() + "/" + this.maxConnections
+                + " fila=" + this.getQueued() + "/" + this.queueCapacity
+                + " ociosas=" + this.idle.get()
+                + " pico=" + this.peakActive.get()
+                + " aceitas=" + this.accepted.get()
+                + " recusadas=" + this.rejected.get()
+                + " concluidas=" + this.completed.get()
+                + " persistentes=" + this.persistent.get()
+                + " requisicoes=" + this.requests.get()
+                + " banda=" + (this.uploadLimiter.isUnlimited() ? "sem limite" : this.uploadLimiter.getBytesPerSecond() + " B/s")
+                + " banda_por_conexao=" + (this.connectionBandwidth == 0 ? "sem limite" : this.connectionBandwidth + " B/s")
+                + " espera_banda=" + this.throttledNanos.sum() / 1_000_000 + " ms";
+    }
+}
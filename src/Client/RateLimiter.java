@@ -0,0 +1,69 @@
+package Client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limite de banda (token bucket) compartilhado por várias threads.
+ *
+ * O balde enche bytesPerSecond bytes por segundo, até guardar um segundo de
+ * banda. Quem pede mais bytes do que o balde tem fica devendo e espera a
+ * dívida ser paga, então pedidos de um segmento inteiro também funcionam. Os
+ * pedidos são atendidos na ordem em que chegam.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+
+    /**
+     * Instante em que o balde estará vazio, já contando os pedidos feitos. Se
+     * está no passado, o balde tem os bytes desse intervalo, até um segundo.
+     */
+    private long emptyAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond banda máxima, ou 0 para não limitar
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return this.bytesPerSecond == 0;
+    }
+
+    /**
+     * Tira bytes do balde, esperando se eles ainda não estão disponíveis.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos = this.reserve(bytes);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Reserva bytes do balde sem esperar.
+     *
+     * @return quanto tempo, em nanossegundos, falta para os bytes estarem disponíveis.
+     */
+    public long reserve(long bytes) {
+        if (this.isUnlimited() || bytes <= 0) {
+            return 0;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (this.emptyAt < now - NANOS_PER_SECOND) {
+                this.emptyAt = now - NANOS_PER_SECOND;
+            }
+            this.emptyAt += bytes * NANOS_PER_SECOND / this.bytesPerSecond;
+
+            return this.emptyAt - now;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package Client;
+
+import Monitoring.Metrics;
+import NapsterService.SearchResult;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache LRU das páginas de SEARCH do cliente, para um SEARCH repetido não
+ * fazer a chamada RMI de novo.
+ *
+ * Cada página vale por ttl, porque o cliente não fica sabendo dos JOINs e
+ * LEAVEs dos outros peers. As mudanças do catálogo do próprio peer removem na
+ * hora as páginas do arquivo alterado, e o JOIN e o LEAVE do peer limpam o
+ * cache. Uma página buscada enquanto o cache era invalidado não é guardada.
+ *
+ * As propriedades napster.client.cache.ttl (segundos, padrão 0, desligado) e
+ * napster.client.cache.size (padrão 1024 páginas) configuram o cache. Acertos
+ * e erros são exportados nas métricas napster_search_cache_*{cache="client"}.
+ */
+class SearchResultCache {
+    private static final class Cached {
+        final String filename;
+        final SearchResult result;
+        final long expiresAt;
+
+        Cached(String filename, SearchResult result, long expiresAt) {
+            this.filename = filename;
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlNanos;
+    private final int capacity;
+    private final LinkedHashMap<String, Cached> entries;
+
+    /**
+     * Quantidade de invalidações até agora, para não guardar uma página
+     * buscada antes de uma delas.
+     */
+    private long generation;
+
+    private final LongAdder hits = Metrics.counter("napster_search_cache_requests_total", "Buscas atendidas pelo cache", "cache", "client", "result", "hit");
+    private final LongAdder misses = Metrics.counter("napster_search_cache_requests_total", "Buscas atendidas pelo cache", "cache", "client", "result", "miss");
+    private final LongAdder evictions = Metrics.counter("napster_search_cache_evictions_total", "Entradas removidas por falta de espaço", "cache", "client");
+    private final LongAdder invalidations = Metrics.counter("napster_search_cache_invalidations_total", "Entradas removidas por alterações no índice", "cache", "client");
+
+    /**
+     * @param ttlSeconds quanto tempo cada página vale, ou 0 para desligar o cache
+     * @param capacity   quantidade máxima de páginas
+     */
+    SearchResultCache(long ttlSeconds, int capacity) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+        this.capacity = this.ttlNanos > 0 ? Math.max(0, capacity) : 0;
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (this.size() <= SearchResultCache.this.capacity) {
+                    return false;
+                }
+                SearchResultCache.this.evictions.increment();
+                return true;
+            }
+        };
+
+        if (this.capacity > 0) {
+            Metrics.gauge("napster_search_cache_size", "Entradas no cache de buscas", this::size, "cache", "client");
+            Metrics.gauge("napster_search_cache_hit_ratio", "Fração das buscas atendidas pelo cache desde o início", this::hitRatio, "cache", "client");
+        }
+    }
+
+    static SearchResultCache fromProperties() {
+        return new SearchResultCache(Long.getLong("napster.client.cache.ttl", 0L), Integer.getInteger("napster.client.cache.size", 1024));
+    }
+
+    boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    /**
+     * @return a página guardada e ainda válida, ou null.
+     */
+    SearchResult get(String filename, int offset, int limit) {
+        if (!this.isEnabled()) {
+            return null;
+        }
+
+        String key = key(filename, offset, limit);
+        synchronized (this.entries) {
+            Cached cached = this.entries.get(key);
+            if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+                this.hits.increment();
+                return cached.result;
+            }
+            if (cached != null) {
+                this.entries.remove(key);
+            }
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * @return a geração atual, para passar ao put da página buscada a partir de agora.
+     */
+    long generation() {
+        synchronized (this.entries) {
+            return this.generation;
+        }
+    }
+
+    /**
+     * Guarda a página, se nada foi invalidado desde generation.
+     */
+    void put(String filename, int offset, int limit, SearchResult result, long generation) {
+        if (!this.isEnabled()) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            if (this.generation == generation) {
+                this.entries.put(key(filename, offset, limit), new Cached(filename, result, System.nanoTime() + this.ttlNanos));
+            }
+        }
+    }
+
+    /**
+     * Remove as páginas do arquivo.
+     */
+    void invalidate(String filename) {
+        if (!this.isEnabled()) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            this.generation++;
+            for (Iterator<Cached> it = this.entries.values().iterator(); it.hasNext(); ) {
+                if (it.next().filename.equals(filename)) {
+                    it.remove();
+                    this.invalidations.increment();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        if (!this.isEnabled()) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            this.generation++;
+            this.invalidations.add(this.entries.size());
+            this.entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return acertos / (acertos + erros) desde o início, ou 0 se não houve buscas.
+     */
+    double hitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    private static String key(String filename, int offset, int limit) {
+        return filename + '\n' + offset + '\n' + limit;
+    }
+}
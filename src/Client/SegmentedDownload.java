@@ -0,0 +1,851 @@
+package Client;
+
+import Monitoring.Log;
+import Monitoring.Meter;
+import Monitoring.Metrics;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe para baixar um arquivo de vários peers ao mesmo tempo.
+ *
+ * O arquivo é dividido em segmentos de tamanho fixo, que ficam numa fila
+ * compartilhada. Cada peer tem uma thread que pega o próximo segmento da fila,
+ * baixa com uma requisição RANGE e escreve na posição certa do arquivo, que
+ * já foi pré-alocado. Peers mais rápidos pegam mais segmentos, e quando a fila
+ * esvazia os peers livres também baixam os segmentos que ainda estão com os
+ * peers lentos (o que terminar primeiro vale).
+ *
+ * Quando o hash de conteúdo do arquivo é conhecido, os segmentos são os
+ * chunks do ContentHashes. A lista de hashes dos chunks é pedida a um peer e
+ * conferida com o hash do arquivo, e cada segmento só é escrito no disco
+ * depois de conferido com o hash do seu chunk. Um segmento inválido volta
+ * para a fila e o peer que o enviou é descartado, então só aquele pedaço é
+ * baixado de novo, de outro peer.
+ *
+ * Os segmentos são escritos num PartialFile, que guarda quais já foram
+ * baixados. Se o download falhar, baixar o mesmo arquivo de novo continua de
+ * onde parou, e o arquivo só ganha o nome final quando está completo.
+ *
+ * As conexões vêm do PeerConnections, então downloads seguidos do mesmo peer
+ * reaproveitam as conexões, e cada peer recebe várias requisições RANGE
+ * seguidas (pipelining) sem esperar a resposta de cada uma.
+ *
+ * Com um Swarm, o download também baixa dos peers que estão baixando o mesmo
+ * conteúdo, que o servidor informa a cada Swarm.ANNOUNCE_MILLIS. Cada um
+ * deles informa quais chunks já tem (requisição HAVE) e só recebe pedidos
+ * desses chunks. Os segmentos são escolhidos do chunk com menos peers para o
+ * com mais (rarest-first), com empate decidido ao acaso, para que os peers do
+ * enxame baixem chunks diferentes e possam trocá-los entre si.
+ */
+public class SegmentedDownload {
+    public static final int SEGMENT_SIZE = ContentHashes.CHUNK_SIZE;
+
+    /**
+     * Requisições enviadas sem esperar resposta numa conexão persistente, da propriedade napster.pipeline.
+     */
+    private static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger("napster.pipeline", 4));
+
+    /**
+     * Espera até perguntar de novo os chunks de um peer do enxame que não tem nenhum chunk pendente, da propriedade napster.swarm.have.
+     */
+    private static final long HAVE_MILLIS = Long.getLong("napster.swarm.have", 500);
+
+    /**
+     * Tempo sem nenhum segmento baixado até o download desistir, quando só restam peers do enxame, da propriedade napster.swarm.stall.
+     */
+    private static final long STALL_MILLIS = Long.getLong("napster.swarm.stall", 60) * 1000;
+
+    /**
+     * Segmento [offset, offset + length) do arquivo.
+     */
+    private static class Segment {
+        private final int index;
+        private final long offset;
+        private final int length;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        Segment(int index, long offset, int length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Chunks que um peer tem, do ponto de vista da thread dele.
+     */
+    private static class PeerState {
+        private final InetSocketAddress peer;
+        private final boolean partial;
+        private BitSet have = new BitSet();
+
+        /**
+         * true se os chunks do peer precisam ser perguntados de novo.
+         */
+        private boolean stale;
+
+        /**
+         * Segmento que o peer está enviando agora, o primeiro do pipeline, ou null.
+         */
+        private volatile Segment receiving;
+
+        PeerState(InetSocketAddress peer, boolean partial) {
+            this.peer = peer;
+            this.partial = partial;
+            this.stale = partial;
+        }
+    }
+
+    /**
+     * O que um peer enviou neste download, informado ao servidor para ordenar os peers nas próximas buscas.
+     */
+    public static class PeerStats {
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private volatile boolean failed;
+        private volatile boolean swarm;
+
+        /**
+         * @return os bytes deste peer que foram escritos no arquivo.
+         */
+        public long getWritten() {
+            return this.written.get();
+        }
+
+        /**
+         * @return os bytes recebidos deste peer, contando segmentos que outro peer terminou antes.
+         */
+        public long getReceived() {
+            return this.received.get();
+        }
+
+        /**
+         * @return o tempo gasto recebendo respostas deste peer.
+         */
+        public long getMillis() {
+            return this.nanos.get() / 1_000_000;
+        }
+
+        /**
+         * @return true se o peer falhou ou enviou dados inválidos.
+         */
+        public boolean isFailed() {
+            return this.failed;
+        }
+
+        /**
+         * @return true se o peer veio do enxame e ainda estava baixando o arquivo.
+         */
+        public boolean isSwarm() {
+            return this.swarm;
+        }
+    }
+
+    private final String filename;
+    private final String contentHash;
+    private final List<InetSocketAddress> peers;
+    private final File target;
+
+    /**
+     * Hash de cada chunk, já conferido com contentHash. Fica null se o hash de conteúdo não é conhecido.
+     */
+    private byte[][] chunkHashes;
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final LongAdder wireBytes = new LongAdder();
+    private PartialFile partial;
+
+    private final ConcurrentLinkedDeque<Segment> pending = new ConcurrentLinkedDeque<>();
+    private final ConcurrentLinkedDeque<Segment> inFlight = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final PeerConnections connections = PeerConnections.shared();
+    private final Map<InetSocketAddress, PeerStats> stats = Collections.synchronizedMap(new LinkedHashMap<>());
+    private RateLimiter limiter = new RateLimiter(0);
+    private long peerBandwidth;
+
+    private Swarm swarm;
+
+    /**
+     * Quantos peers com thread ativa têm cada chunk. Só é usado com um Swarm.
+     */
+    private AtomicIntegerArray availability;
+    private final Set<InetSocketAddress> swarmPeers = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> active = ConcurrentHashMap.newKeySet();
+    private final Set<PeerState> states = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger seeders = new AtomicInteger();
+    private final LongAdder swarmBytes = new LongAdder();
+    private volatile boolean stopped;
+
+    public SegmentedDownload(String filename, List<InetSocketAddress> peers, File target) {
+        this(filename, null, peers, target);
+    }
+
+    /**
+     * @param contentHash hash de conteúdo do arquivo, ou null para baixar pelo nome sem validar
+     */
+    public SegmentedDownload(String filename, String contentHash, List<InetSocketAddress> peers, File target) {
+        this.filename = filename;
+        this.contentHash = contentHash;
+        this.peers = new CopyOnWriteArrayList<>(peers);
+        this.target = target;
+        for (InetSocketAddress peer : peers) {
+            this.stats.put(peer, new PeerStats());
+        }
+    }
+
+    /**
+     * Limita a banda do download. O mesmo limitador pode ser usado por vários
+     * downloads, que então dividem a banda entre si.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Limita também a banda de cada peer, em bytes por segundo (0 para não limitar).
+     */
+    public void setPeerBandwidth(long peerBandwidth) {
+        this.peerBandwidth = Math.max(0, peerBandwidth);
+    }
+
+    /**
+     * Baixa também dos outros peers do enxame, e envia para eles os chunks já baixados.
+     * Só tem efeito quando o hash de conteúdo é conhecido.
+     */
+    public void setSwarm(Swarm swarm) {
+        this.swarm = this.contentHash != null ? swarm : null;
+    }
+
+    /**
+     * @return o hash de cada chunk do arquivo baixado, ou null se o download não foi validado.
+     */
+    public byte[][] getChunkHashes() {
+        return this.chunkHashes;
+    }
+
+    /**
+     * @return o resultado de cada peer, inclusive dos que falharam, também depois de um download que falhou.
+     */
+    public Map<InetSocketAddress, PeerStats> getPeerStats() {
+        return this.stats;
+    }
+
+    /**
+     * Baixa o arquivo e retorna o tamanho dele.
+     *
+     * @throws IOException se nenhum peer respondeu ou algum segmento não pôde
+     *                     ser baixado. Os segmentos baixados ficam guardados para a próxima tentativa.
+     */
+    public long run() throws IOException {
+        if (this.swarm != null) {
+            this.addSwarmPeers(this.swarm.announce());
+        }
+        long size = this.contentHash != null ? this.fetchHashes() : this.fetchSize();
+        this.partial = new PartialFile(this.target, size, SEGMENT_SIZE, this.contentHash);
+        if (this.swarm != null) {
+            this.availability = new AtomicIntegerArray(ContentHashes.chunkCount(size));
+            this.swarm.setPartial(this.partial, this.chunkHashes);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(this.partial.getDataFile(), "rw")) {
+            // Pré-aloca o arquivo para que cada segmento seja escrito na sua posição
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            FileChannel output = file.getChannel();
+
+            int index = 0;
+            for (long offset = 0; offset < size; offset += SEGMENT_SIZE, index++) {
+                if (!this.partial.isDone(index)) {
+                    this.pending.add(new Segment(index, offset, (int) Math.min(SEGMENT_SIZE, size - offset)));
+                }
+            }
+            this.remaining.set(this.pending.size());
+            if (this.partial.getResumed() > 0) {
+                Log.info("Continuando o download de {}: {} de {} segmentos já estavam baixados.", this.filename, this.partial.getResumed(), index);
+            }
+
+            long start = System.nanoTime();
+            ExecutorService workers = Executors.newCachedThreadPool();
+            Semaphore exited = new Semaphore(0);
+            for (InetSocketAddress peer : this.peers) {
+                this.start(workers, exited, peer, output);
+            }
+            try {
+                this.await(workers, exited, output);
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+                this.partial.save(output);
+                throw new IOException("Download interrompido.");
+            }
+            workers.shutdown();
+
+            if (this.remaining.get() > 0) {
+                this.partial.save(output);
+                throw new IOException(this.remaining.get() + " segmentos não puderam ser baixados. Baixe o arquivo de novo para continuar de onde parou.");
+            }
+            output.force(false);
+
+            long downloaded = 0;
+            for (InetSocketAddress peer : this.peers) {
+                downloaded += this.stats.get(peer).getWritten();
+            }
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            Log.info("Arquivo {} baixado de {} peers em {} ms ({} KB/s, {} bytes recebidos, {})", this.filename, this.peers.size(), elapsedMillis,
+                    downloaded / 1024 * 1000 / elapsedMillis, this.wireBytes.sum(),
+                    this.chunkHashes != null ? this.rejected.get() + " chunks inválidos descartados" : "sem validação");
+            for (InetSocketAddress peer : this.peers) {
+                Log.info("- {}: {} bytes{}", peer, this.stats.get(peer).getWritten(), this.swarmPeers.contains(peer) ? " (enxame)" : "");
+            }
+            if (!this.swarmPeers.isEmpty()) {
+                Log.info("Arquivo {}: {} bytes vieram de {} peers do enxame", this.filename, this.swarmBytes.sum(), this.swarmPeers.size());
+            }
+        }
+        this.partial.complete();
+
+        return size;
+    }
+
+    /**
+     * Inicia a thread que baixa do peer.
+     */
+    private void start(ExecutorService workers, Semaphore exited, InetSocketAddress peer, FileChannel output) {
+        PeerState state = new PeerState(peer, this.swarmPeers.contains(peer));
+        if (!state.partial) {
+            // Os peers da busca têm o arquivo completo
+            state.have.set(0, ContentHashes.chunkCount(this.partial.getSize()));
+            this.updateAvailability(new BitSet(), state.have);
+            this.seeders.incrementAndGet();
+        }
+
+        this.active.add(peer);
+        this.states.add(state);
+        workers.execute(() -> {
+            try {
+                this.work(state, output, this.stats.get(peer));
+            } finally {
+                this.updateAvailability(state.have, new BitSet());
+                if (!state.partial) {
+                    this.seeders.decrementAndGet();
+                }
+                this.states.remove(state);
+                this.active.remove(peer);
+                exited.release();
+            }
+        });
+    }
+
+    /**
+     * Espera as threads dos peers terminarem.
+     *
+     * Com um Swarm, anuncia o download de novo a cada Swarm.ANNOUNCE_MILLIS e
+     * inicia threads para os novos peers do enxame. Se só restam peers do
+     * enxame e nenhum segmento é baixado em STALL_MILLIS, o download para.
+     */
+    private void await(ExecutorService workers, Semaphore exited, FileChannel output) throws InterruptedException {
+        long lastAnnounce = System.currentTimeMillis();
+        long lastProgress = lastAnnounce;
+        int lastRemaining = this.remaining.get();
+        while (!this.active.isEmpty()) {
+            if (this.swarm == null) {
+                exited.acquire();
+                continue;
+            }
+            exited.tryAcquire(Swarm.ANNOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+
+            long now = System.currentTimeMillis();
+            if (this.remaining.get() != lastRemaining) {
+                lastRemaining = this.remaining.get();
+                lastProgress = now;
+            } else if (this.seeders.get() == 0 && now - lastProgress > STALL_MILLIS && !this.stopped) {
+                Log.warn("Download de {} parado: nenhum peer do enxame tem os chunks que faltam.", this.filename);
+                this.stopped = true;
+            }
+
+            if (this.remaining.get() > 0 && !this.stopped && now - lastAnnounce >= Swarm.ANNOUNCE_MILLIS) {
+                lastAnnounce = now;
+                for (InetSocketAddress peer : this.addSwarmPeers(this.swarm.announce())) {
+                    this.start(workers, exited, peer, output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Acrescenta ao download os membros do enxame que ainda não estão baixando, até Swarm.MAX_PEERS.
+     *
+     * @return os peers acrescentados.
+     */
+    private List<InetSocketAddress> addSwarmPeers(List<InetSocketAddress> members) {
+        int count = 0;
+        for (InetSocketAddress peer : this.active) {
+            if (this.swarmPeers.contains(peer)) {
+                count++;
+            }
+        }
+
+        List<InetSocketAddress> added = new ArrayList<>();
+        for (InetSocketAddress peer : members) {
+            if (count >= Swarm.MAX_PEERS) {
+                break;
+            }
+            // Peers da busca já têm o arquivo todo, e os ativos já têm uma thread
+            if (this.active.contains(peer) || (this.peers.contains(peer) && !this.swarmPeers.contains(peer))) {
+                continue;
+            }
+
+            this.swarmPeers.add(peer);
+            if (!this.peers.contains(peer)) {
+                this.peers.add(peer);
+            }
+            PeerStats stats = this.stats.computeIfAbsent(peer, p -> new PeerStats());
+            stats.swarm = true;
+            stats.failed = false;
+            added.add(peer);
+            count++;
+        }
+
+        return added;
+    }
+
+    /**
+     * Atualiza quantos peers têm cada chunk, trocando os chunks antigos do peer pelos novos.
+     */
+    private void updateAvailability(BitSet before, BitSet after) {
+        if (this.availability == null) {
+            return;
+        }
+
+        for (int i = after.nextSetBit(0); i >= 0 && i < this.availability.length(); i = after.nextSetBit(i + 1)) {
+            if (!before.get(i)) {
+                this.availability.incrementAndGet(i);
+            }
+        }
+        for (int i = before.nextSetBit(0); i >= 0 && i < this.availability.length(); i = before.nextSetBit(i + 1)) {
+            if (!after.get(i)) {
+                this.availability.decrementAndGet(i);
+            }
+        }
+    }
+
+    /**
+     * Pergunta ao peer do enxame quais chunks ele já tem.
+     *
+     * @throws IOException se o peer falhou ou está baixando um arquivo de outro tamanho.
+     */
+    private void refreshHave(PeerState state) throws IOException {
+        PeerConnections.Connection connection = this.connections.request(state.peer, PeerRequest.have(this.requestTarget()));
+        BitSet have;
+        try {
+            // Tamanho 0: o peer ainda não começou a baixar os chunks
+            long size = connection.getHeader().getSize();
+            if (size != 0 && size != this.partial.getSize()) {
+                throw new IOException("Tamanho do arquivo diferente: " + size);
+            }
+            have = size != 0 ? PeerRequest.readHave(connection.getInput(), size) : new BitSet();
+        } catch (IOException e) {
+            this.connections.discard(connection);
+            throw e;
+        }
+        this.connections.release(connection);
+
+        this.updateAvailability(state.have, have);
+        state.have = have;
+        state.stale = false;
+    }
+
+    /**
+     * Pergunta o tamanho do arquivo ao primeiro peer que responder.
+     */
+    private long fetchSize() throws IOException {
+        IOException last = new IOException("Nenhum peer possui o arquivo " + this.filename);
+        for (InetSocketAddress peer : this.peers) {
+            try {
+                PeerConnections.Connection connection = this.connections.request(peer, PeerRequest.stat(this.filename));
+                this.connections.release(connection);
+                return connection.getHeader().getSize();
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+
+        throw last;
+    }
+
+    /**
+     * Pede a lista de hashes dos chunks aos peers até uma conferir com o hash de conteúdo.
+     *
+     * Peers que enviam uma lista errada são descartados.
+     *
+     * @return o tamanho do arquivo.
+     */
+    private long fetchHashes() throws IOException {
+        IOException last = new IOException("Nenhum peer possui o arquivo " + this.filename);
+        for (InetSocketAddress peer : this.peers) {
+            PeerConnections.Connection connection = null;
+            try {
+                connection = this.connections.request(peer, PeerRequest.hashes(this.requestTarget()));
+                DataInputStream input = new DataInputStream(connection.getInput());
+                long size = connection.getHeader().getSize();
+                if (size < 0 || size > ContentHashes.MAX_SIZE) {
+                    throw new IOException("Tamanho do arquivo inválido: " + size);
+                }
+
+                // A lista cresce com os hashes recebidos, não com o tamanho anunciado pelo peer
+                int count = ContentHashes.chunkCount(size);
+                List<byte[]> received = new ArrayList<>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    byte[] chunk = new byte[ContentHashes.HASH_SIZE];
+                    input.readFully(chunk);
+                    received.add(chunk);
+                }
+                byte[][] chunks = received.toArray(new byte[0][]);
+                this.connections.release(connection);
+                if (ContentHashes.rootHash(chunks).equals(this.contentHash)) {
+                    this.chunkHashes = chunks;
+                    return size;
+                }
+                last = new IOException("Lista de hashes inválida.");
+            } catch (IOException e) {
+                if (connection != null) {
+                    this.connections.discard(connection);
+                }
+                last = e;
+            }
+
+            Log.warn("Peer {} descartado: {}", peer, last.getMessage());
+            this.stats.get(peer).failed = true;
+            this.peers.remove(peer);
+            this.swarmPeers.remove(peer);
+        }
+
+        throw last;
+    }
+
+    /**
+     * Nome enviado nas requisições: o hash de conteúdo, quando conhecido, para
+     * que peers com o mesmo conteúdo e outro nome também respondam.
+     */
+    private String requestTarget() {
+        return this.contentHash != null ? PeerRequest.CONTENT_PREFIX + this.contentHash : this.filename;
+    }
+
+    /**
+     * Loop de um peer: baixa segmentos até a fila acabar ou o peer falhar.
+     *
+     * Numa conexão persistente até PIPELINE_DEPTH requisições ficam enviadas
+     * ao mesmo tempo, e a cada resposta lida outra é enviada, então o peer não
+     * fica parado esperando a próxima requisição. As respostas chegam na ordem
+     * das requisições e são sempre lidas até o fim, mesmo que outro peer tenha
+     * terminado o segmento antes, para que a conexão possa voltar para o pool.
+     *
+     * Um peer do enxame sem nenhum chunk pendente não encerra a thread: ela
+     * espera HAVE_MILLIS e pergunta de novo quais chunks ele tem.
+     */
+    private void work(PeerState state, FileChannel output, PeerStats stats) {
+        InetSocketAddress peer = state.peer;
+        byte[] buffer = new byte[SEGMENT_SIZE];
+        ArrayDeque<Segment> outstanding = new ArrayDeque<>();
+        Throttle throttle = new Throttle(this.limiter, this.peerBandwidth, null);
+        Meter received = Metrics.meter("napster_download_bytes", "Bytes recebidos de cada peer", "peer", peer.getHostString() + ":" + peer.getPort());
+
+        while (this.remaining.get() > 0 && !this.stopped) {
+            PeerConnections.Connection connection;
+            try {
+                if (state.stale) {
+                    this.refreshHave(state);
+                }
+                connection = this.connections.acquire(peer);
+            } catch (IOException e) {
+                Log.warn("Peer {} falhou: {}", peer, e.getMessage());
+                stats.failed = true;
+                return;
+            }
+            int depth = connection.isPersistent() ? PIPELINE_DEPTH : 1;
+            boolean idle = false;
+
+            try {
+                while (true) {
+                    while (outstanding.size() < depth) {
+                        Segment segment = outstanding.isEmpty() ? this.next(state) : this.poll(state);
+                        if (segment == null) {
+                            break;
+                        }
+                        segment.attempts.incrementAndGet();
+                        this.inFlight.add(segment);
+                        outstanding.add(segment);
+                        connection.send(PeerRequest.range(this.requestTarget(), segment.offset, segment.length, TransferEncoding.accepted()));
+                    }
+                    if (outstanding.isEmpty()) {
+                        this.connections.release(connection);
+                        if (!state.partial) {
+                            return;
+                        }
+                        idle = true;
+                        break;
+                    }
+                    connection.flush();
+
+                    Segment segment = outstanding.peekFirst();
+                    state.receiving = segment;
+                    long start = System.nanoTime();
+                    this.receive(connection, segment, buffer, throttle);
+                    state.receiving = null;
+                    stats.nanos.addAndGet(System.nanoTime() - start);
+                    stats.received.addAndGet(segment.length);
+                    received.mark(segment.length);
+
+                    // Um chunk inválido ainda está em outstanding quando verify lança a exceção, e volta para a fila
+                    boolean valid = this.verify(segment, buffer);
+                    outstanding.removeFirst();
+                    this.inFlight.remove(segment);
+
+                    // Só o primeiro peer a terminar o segmento escreve no arquivo
+                    if (valid && segment.done.compareAndSet(false, true)) {
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, segment.length);
+                        long position = segment.offset;
+                        while (data.hasRemaining()) {
+                            position += output.write(data, position);
+                        }
+                        this.partial.markDone(segment.index, output);
+                        this.remaining.decrementAndGet();
+                        stats.written.addAndGet(segment.length);
+                        if (state.partial) {
+                            this.swarmBytes.add(segment.length);
+                        }
+                    }
+
+                    if (!connection.isPersistent()) {
+                        this.connections.release(connection);
+                        break;
+                    }
+                }
+            } catch (PeerConnections.ClosedException e) {
+                // O peer fechou uma conexão já usada antes de responder: tenta de novo numa conexão nova
+                state.receiving = null;
+                this.connections.discard(connection);
+                this.requeue(outstanding, connection.isReused());
+                if (!connection.isReused()) {
+                    Log.warn("Peer {} falhou: {}", peer, e.getMessage());
+                    stats.failed = true;
+                    return;
+                }
+            } catch (IOException e) {
+                // Devolve os segmentos para a fila e descarta o peer
+                state.receiving = null;
+                Log.warn("Peer {} falhou: {}", peer, e.getMessage());
+                stats.failed = true;
+                this.connections.discard(connection);
+                this.requeue(outstanding, false);
+                return;
+            }
+
+            if (idle) {
+                try {
+                    Thread.sleep(HAVE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                state.stale = true;
+            }
+        }
+    }
+
+    /**
+     * Devolve para a fila os segmentos pedidos que não foram respondidos.
+     *
+     * @param retry true se eles serão pedidos de novo sem culpa do peer, e não contam como tentativa
+     */
+    private void requeue(ArrayDeque<Segment> outstanding, boolean retry) {
+        Segment segment;
+        while ((segment = outstanding.pollLast()) != null) {
+            this.inFlight.remove(segment);
+            if (retry) {
+                segment.attempts.decrementAndGet();
+            }
+            if (!segment.done.get()) {
+                this.pending.addFirst(segment);
+            }
+        }
+    }
+
+    /**
+     * Próximo segmento a baixar. Com a fila vazia e menos segmentos faltando
+     * do que peers, duplica um segmento que outro peer está enviando agora,
+     * para não esperar o mais lento. Os segmentos que só estão na fila do
+     * pipeline de outro peer não são duplicados: a resposta é sempre lida até
+     * o fim, então a cópia seria só banda desperdiçada.
+     *
+     * @return null se não há mais o que baixar do peer. Um peer do enxame não
+     *         espera: ele pode ter novos chunks no próximo HAVE.
+     */
+    private Segment next(PeerState state) {
+        while (this.remaining.get() > 0 && !this.stopped) {
+            Segment segment = this.poll(state);
+            if (segment != null) {
+                return segment;
+            }
+
+            if (this.remaining.get() < this.active.size()) {
+                for (PeerState other : this.states) {
+                    Segment receiving = other.receiving;
+                    if (other != state && receiving != null && !receiving.done.get() && receiving.attempts.get() < 2
+                            && state.have.get(receiving.index)) {
+                        return receiving;
+                    }
+                }
+            }
+
+            // Nada para duplicar: se os outros peers também pararam, não há mais o que fazer
+            if (state.partial || (this.inFlight.isEmpty() && this.pending.isEmpty())) {
+                return null;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Próximo segmento da fila que o peer tem, sem esperar nem duplicar segmentos de outros peers.
+     *
+     * Com um Swarm, é o segmento com menos peers entre os pendentes
+     * (rarest-first), com empate decidido ao acaso.
+     */
+    private Segment poll(PeerState state) {
+        if (this.availability == null) {
+            Segment segment;
+            while ((segment = this.pending.poll()) != null) {
+                if (!segment.done.get()) {
+                    return segment;
+                }
+            }
+            return null;
+        }
+
+        while (true) {
+            Segment rarest = null;
+            int rarestCount = Integer.MAX_VALUE;
+            int ties = 0;
+            for (Segment segment : this.pending) {
+                if (segment.done.get()) {
+                    this.pending.remove(segment);
+                    continue;
+                }
+                if (!state.have.get(segment.index)) {
+                    continue;
+                }
+
+                int count = this.availability.get(segment.index);
+                if (count < rarestCount) {
+                    rarest = segment;
+                    rarestCount = count;
+                    ties = 1;
+                } else if (count == rarestCount && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                    rarest = segment;
+                }
+            }
+
+            // Outra thread pode ter pego o mesmo segmento
+            if (rarest == null || this.pending.remove(rarest)) {
+                return rarest;
+            }
+        }
+    }
+
+    /**
+     * Lê a resposta do segmento para o buffer, descomprimindo se o peer enviou com compressão.
+     *
+     * Os bytes lidos são descontados do limite de banda. Enquanto ele espera o
+     * peer não é lido, e o TCP segura o envio dele.
+     *
+     * @throws IOException se o peer falhou ou tem um arquivo de outro tamanho.
+     */
+    private void receive(PeerConnections.Connection connection, Segment segment, byte[] buffer, Throttle throttle) throws IOException {
+        PeerRequest.Header header = connection.readHeader();
+        InputStream input = connection.getInput();
+
+        // Um arquivo de outro tamanho com o mesmo nome mandaria menos bytes que o segmento
+        if (header.getSize() != this.partial.getSize()) {
+            throw new IOException("Tamanho do arquivo diferente: " + header.getSize());
+        }
+
+        if (header.getEncoding() != TransferEncoding.NONE) {
+            long received = TransferEncoding.receive(input, buffer, segment.length);
+            this.wireBytes.add(received);
+            throttle.acquire(received);
+            return;
+        }
+
+        int position = 0;
+        while (position < segment.length) {
+            int bytesRead = input.read(buffer, position, segment.length - position);
+            if (bytesRead == -1) {
+                throw new IOException("Conexão fechada no meio do segmento " + segment.offset);
+            }
+            position += bytesRead;
+            throttle.acquire(bytesRead);
+        }
+        this.wireBytes.add(segment.length);
+    }
+
+    /**
+     * Confere o segmento com o hash do chunk, se ele é conhecido.
+     *
+     * @return false se outro peer terminou o segmento antes.
+     * @throws IOException se o peer enviou um chunk inválido.
+     */
+    private boolean verify(Segment segment, byte[] buffer) throws IOException {
+        if (segment.done.get()) {
+            return false;
+        }
+        if (this.chunkHashes != null) {
+            MessageDigest digest = ContentHashes.newDigest();
+            digest.update(buffer, 0, segment.length);
+            if (!MessageDigest.isEqual(digest.digest(), this.chunkHashes[segment.index])) {
+                this.rejected.incrementAndGet();
+                throw new IOException("Chunk " + segment.index + " inválido.");
+            }
+        }
+
+        return true;
+    }
+}
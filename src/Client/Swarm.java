@@ -0,0 +1,101 @@
+package Client;
+
+import Monitoring.Log;
+import NapsterService.NapsterService;
+import NapsterService.SearchResult;
+
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Participação do peer no enxame de um conteúdo enquanto ele baixa o arquivo.
+ *
+ * Enquanto o enxame está aberto, o peer atende HAVE, HASHES e RANGE do
+ * conteúdo com os chunks que já baixou (PartialFile), antes de o arquivo
+ * estar completo, e o SegmentedDownload anuncia o peer ao servidor a cada
+ * ANNOUNCE_MILLIS, recebendo os outros membros para baixar deles também.
+ *
+ * As propriedades napster.swarm (padrão true), napster.swarm.interval
+ * (segundos entre anúncios, padrão 5) e napster.swarm.peers (peers do
+ * enxame usados em cada download, padrão 8) configuram o enxame.
+ */
+public class Swarm implements AutoCloseable {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("napster.swarm", "true"));
+    public static final long ANNOUNCE_MILLIS = Long.getLong("napster.swarm.interval", 5) * 1000;
+    public static final int MAX_PEERS = Math.max(0, Integer.getInteger("napster.swarm.peers", 8));
+
+    private final NapsterService napster;
+    private final Client.ClientPeer client;
+    private final String contentHash;
+
+    private volatile PartialFile partial;
+    private volatile byte[][] chunkHashes;
+
+    /**
+     * Abre o enxame do conteúdo: a partir daqui o peer responde as requisições dele.
+     */
+    public Swarm(NapsterService napster, Client.ClientPeer client, String contentHash) {
+        this.napster = napster;
+        this.client = client;
+        this.contentHash = contentHash;
+        client.addSwarm(this);
+    }
+
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    /**
+     * @return o arquivo sendo baixado, ou null se o download ainda não sabe o tamanho.
+     */
+    public PartialFile getPartial() {
+        return this.partial;
+    }
+
+    public byte[][] getChunkHashes() {
+        return this.chunkHashes;
+    }
+
+    /**
+     * Começa a enviar os chunks do arquivo parcial, já conferidos com os hashes.
+     */
+    void setPartial(PartialFile partial, byte[][] chunkHashes) {
+        this.chunkHashes = chunkHashes;
+        this.partial = partial;
+    }
+
+    /**
+     * Anuncia o peer no enxame.
+     *
+     * @return os outros membros, ou uma lista vazia se o servidor não respondeu.
+     */
+    List<InetSocketAddress> announce() {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        try {
+            SearchResult members = this.napster.swarm(this.contentHash, MAX_PEERS, this.client.getIp(), this.client.getPort());
+            for (int i = 0; i < members.size(); i++) {
+                peers.add(new InetSocketAddress(members.getIp(i), members.getPort(i)));
+            }
+        } catch (RemoteException e) {
+            Log.warn("Falha ao anunciar o download no enxame: {}", e.getMessage());
+        }
+
+        return peers;
+    }
+
+    /**
+     * Sai do enxame. Depois de um download completo o peer continua enviando o
+     * arquivo, agora pelo catálogo.
+     */
+    @Override
+    public void close() {
+        this.client.removeSwarm(this);
+        try {
+            this.napster.leaveSwarm(this.contentHash, this.client.getIp(), this.client.getPort());
+        } catch (RemoteException e) {
+            Log.warn("Falha ao sair do enxame: {}", e.getMessage());
+        }
+    }
+}
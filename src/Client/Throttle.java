@@ -0,0 +1,96 @@
+package Client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limites de banda de uma conexão: o limite só dela e o limite global,
+ * dividido com as outras conexões (upload ou download).
+ *
+ * Os bytes são pedidos em pedaços de no máximo QUANTUM bytes, e cada conexão
+ * só pede o próximo pedaço depois de usar o anterior. Como o RateLimiter
+ * atende os pedidos na ordem em que chegam, as conexões ativas se revezam no
+ * limite global: um peer rápido não fica com a banda toda, e a banda que uma
+ * conexão mais lenta não usa fica para as outras.
+ */
+public class Throttle {
+    public static final int QUANTUM = 16 * 1024;
+
+    private static final RateLimiter UNLIMITED = new RateLimiter(0);
+
+    private final RateLimiter global;
+    private final RateLimiter connection;
+    private final LongAdder waitNanos;
+
+    /**
+     * @param global     limite compartilhado com as outras conexões
+     * @param connection limite só desta conexão, em bytes por segundo, ou 0 para não limitar
+     * @param waitNanos  onde somar o tempo gasto esperando os limites, ou null
+     */
+    public Throttle(RateLimiter global, long connection, LongAdder waitNanos) {
+        this.global = global != null ? global : UNLIMITED;
+        this.connection = connection > 0 ? new RateLimiter(connection) : UNLIMITED;
+        this.waitNanos = waitNanos;
+    }
+
+    public boolean isUnlimited() {
+        return this.global.isUnlimited() && this.connection.isUnlimited();
+    }
+
+    /**
+     * Espera os dois limites liberarem os bytes, um pedaço de cada vez.
+     *
+     * O limite da conexão é esperado antes de reservar o global, para que uma
+     * conexão parada no próprio limite não segure a banda das outras.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (this.isUnlimited()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            for (long left = bytes; left > 0; left -= QUANTUM) {
+                long quantum = Math.min(QUANTUM, left);
+                this.connection.acquire(quantum);
+                this.global.acquire(quantum);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transferência interrompida.");
+        } finally {
+            if (this.waitNanos != null) {
+                this.waitNanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @return o stream que espera os limites antes de cada escrita, ou o próprio output se não há limite.
+     */
+    public OutputStream wrap(OutputStream output) {
+        if (this.isUnlimited()) {
+            return output;
+        }
+
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                Throttle.this.acquire(1);
+                this.out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int written = 0; written < len; written += QUANTUM) {
+                    int length = Math.min(QUANTUM, len - written);
+                    Throttle.this.acquire(length);
+                    this.out.write(b, off + written, length);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,272 @@
+package Client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão dos dados de uma requisição RANGE, negociada por download.
+ *
+ * Quem baixa envia as codificações que aceita, em ordem de preferência, e quem
+ * envia escolhe a primeira que também suporta, ou NONE se o arquivo não vale
+ * a pena comprimir: extensões de arquivos já comprimidos, ou uma amostra do
+ * começo do intervalo que não diminuiu pelo menos MIN_SAVING.
+ *
+ * Com compressão, o corpo da resposta é uma sequência de frames
+ * [tamanho original][tamanho no fio][bytes], cada um com até FRAME_SIZE bytes
+ * originais. Um frame que não diminuiu vai sem compressão, e nesse caso os
+ * dois tamanhos são iguais.
+ *
+ * Há dois níveis de compressão, os dois com o Deflater do JDK:
+ * - FAST: nível 1 (BEST_SPEED), para ganhar banda gastando pouca CPU;
+ * - DEFLATE: nível padrão (6), para links lentos.
+ *
+ * Os contadores estáticos somam os bytes originais, os bytes enviados e o
+ * tempo de CPU gasto comprimindo e descomprimindo, para o comando STATS.
+ */
+public enum TransferEncoding {
+    NONE("none", Deflater.NO_COMPRESSION),
+    FAST("fast", Deflater.BEST_SPEED),
+    DEFLATE("deflate", Deflater.DEFAULT_COMPRESSION);
+
+    public static final int FRAME_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MIN_SAVING = 0.10;
+
+    /**
+     * Extensões de arquivos que já são comprimidos.
+     */
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "lz4", "jar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a",
+            "mp4", "mkv", "avi", "mov", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt", "epub"));
+
+    private static final LongAdder RAW_BYTES = new LongAdder();
+    private static final LongAdder WIRE_BYTES = new LongAdder();
+    private static final LongAdder RECEIVED_RAW_BYTES = new LongAdder();
+    private static final LongAdder RECEIVED_WIRE_BYTES = new LongAdder();
+    private static final LongAdder COMPRESS_NANOS = new LongAdder();
+    private static final LongAdder DECOMPRESS_NANOS = new LongAdder();
+    private static final LongAdder SKIPPED = new LongAdder();
+
+    private final String token;
+    private final int level;
+
+    TransferEncoding(String token, int level) {
+        this.token = token;
+        this.level = level;
+    }
+
+    public String getToken() {
+        return this.token;
+    }
+
+    public static TransferEncoding fromToken(String token) throws IOException {
+        for (TransferEncoding encoding : values()) {
+            if (encoding.token.equals(token)) {
+                return encoding;
+            }
+        }
+
+        throw new IOException("Codificação desconhecida: " + token);
+    }
+
+    /**
+     * Codificações aceitas por este peer ao baixar, da propriedade
+     * napster.compression (lista separada por vírgulas, padrão "fast").
+     */
+    public static String accepted() {
+        return System.getProperty("napster.compression", FAST.token);
+    }
+
+    /**
+     * Escolhe a codificação de uma resposta.
+     *
+     * @param accepted lista enviada por quem baixa, ou null se ele não aceita compressão
+     */
+    public static TransferEncoding choose(String accepted, String filename, RandomAccessFile file, long offset, long length) throws IOException {
+        if (accepted == null || length == 0) {
+            return NONE;
+        }
+
+        TransferEncoding chosen = NONE;
+        for (String token : accepted.split(",")) {
+            try {
+                chosen = fromToken(token.trim());
+                break;
+            } catch (IOException ignored) {
+                // Codificação que este peer não conhece
+            }
+        }
+        if (chosen == NONE) {
+            return NONE;
+        }
+
+        int dot = filename.lastIndexOf('.');
+        if (dot != -1 && COMPRESSED_TYPES.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            SKIPPED.increment();
+            return NONE;
+        }
+
+        // Comprime uma amostra com o nível mais rápido para ver se vale a pena
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+        file.seek(offset);
+        file.readFully(sample);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] output = new byte[sample.length + 64];
+        deflater.setInput(sample);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished() && compressed < output.length) {
+            compressed += deflater.deflate(output, compressed, output.length - compressed);
+        }
+        deflater.end();
+
+        if (!deflater.finished() || compressed > sample.length * (1 - MIN_SAVING)) {
+            SKIPPED.increment();
+            return NONE;
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Envia [offset, offset + length) do arquivo em frames comprimidos.
+     *
+     * @return a quantidade de bytes enviados, sem contar os cabeçalhos dos frames.
+     */
+    public long send(RandomAccessFile file, long offset, long length, OutputStream output) throws IOException {
+        DataOutputStream frames = new DataOutputStream(output);
+        Deflater deflater = new Deflater(this.level, true);
+        byte[] raw = new byte[FRAME_SIZE];
+        byte[] compressed = new byte[FRAME_SIZE];
+        long sent = 0;
+        long cpuNanos = 0;
+
+        try {
+            file.seek(offset);
+            long position = 0;
+            while (position < length) {
+                int rawLength = (int) Math.min(FRAME_SIZE, length - position);
+                file.readFully(raw, 0, rawLength);
+
+                long start = System.nanoTime();
+                deflater.reset();
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished() && compressedLength < compressed.length) {
+                    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+                }
+                cpuNanos += System.nanoTime() - start;
+
+                frames.writeInt(rawLength);
+                if (deflater.finished() && compressedLength < rawLength) {
+                    frames.writeInt(compressedLength);
+                    frames.write(compressed, 0, compressedLength);
+                    sent += compressedLength;
+                } else {
+                    // O frame não diminuiu, vai sem compressão
+                    frames.writeInt(rawLength);
+                    frames.write(raw, 0, rawLength);
+                    sent += rawLength;
+                }
+                position += rawLength;
+            }
+            frames.flush();
+        } finally {
+            deflater.end();
+            RAW_BYTES.add(length);
+            WIRE_BYTES.add(sent);
+            COMPRESS_NANOS.add(cpuNanos);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Lê os frames de uma resposta comprimida para buffer[0, length).
+     *
+     * @return a quantidade de bytes recebidos, sem contar os cabeçalhos dos frames.
+     */
+    public static long receive(InputStream input, byte[] buffer, int length) throws IOException {
+        DataInputStream frames = new DataInputStream(input);
+        Inflater inflater = new Inflater(true);
+        byte[] compressed = new byte[FRAME_SIZE];
+        long received = 0;
+        long cpuNanos = 0;
+
+        try {
+            int position = 0;
+            while (position < length) {
+                int rawLength = frames.readInt();
+                int wireLength = frames.readInt();
+                if (rawLength <= 0 || rawLength > FRAME_SIZE || position + rawLength > length
+                        || wireLength <= 0 || wireLength > rawLength) {
+                    throw new IOException("Frame inválido.");
+                }
+
+                if (wireLength == rawLength) {
+                    frames.readFully(buffer, position, rawLength);
+                } else {
+                    frames.readFully(compressed, 0, wireLength);
+                    long start = System.nanoTime();
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, wireLength);
+                    int inflated = 0;
+                    while (inflated < rawLength && !inflater.finished()) {
+                        int n = inflater.inflate(buffer, position + inflated, rawLength - inflated);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += n;
+                    }
+                    cpuNanos += System.nanoTime() - start;
+                    if (inflated != rawLength) {
+                        throw new IOException("Frame comprimido inválido.");
+                    }
+                }
+                position += rawLength;
+                received += wireLength;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Frame comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+            RECEIVED_RAW_BYTES.add(length);
+            RECEIVED_WIRE_BYTES.add(received);
+            DECOMPRESS_NANOS.add(cpuNanos);
+        }
+
+        return received;
+    }
+
+    /**
+     * Totais de compressão deste peer desde que ele iniciou.
+     */
+    public static String stats() {
+        return "compressao enviada: " + saved(RAW_BYTES.sum(), WIRE_BYTES.sum()) + ", "
+                + COMPRESS_NANOS.sum() / 1_000_000 + " ms de CPU comprimindo, "
+                + SKIPPED.sum() + " envios sem compressão por tipo ou amostra\n"
+                + "compressao recebida: " + saved(RECEIVED_RAW_BYTES.sum(), RECEIVED_WIRE_BYTES.sum()) + ", "
+                + DECOMPRESS_NANOS.sum() / 1_000_000 + " ms de CPU descomprimindo";
+    }
+
+    private static String saved(long raw, long wire) {
+        return raw + " bytes originais, " + wire + " no fio, " + (raw - wire) + " economizados ("
+                + (raw > 0 ? String.format("%.1f", 100.0 * (raw - wire) / raw) : "0.0") + "%)";
+    }
+}
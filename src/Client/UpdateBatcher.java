@@ -0,0 +1,132 @@
+package Client;
+
+import Monitoring.Log;
+import NapsterService.NapsterMessage;
+import NapsterService.NapsterService;
+
+import java.rmi.RemoteException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe para juntar os UPDATEs pendentes de um peer numa única chamada RMI.
+ *
+ * Cada arquivo novo entra na fila, e a fila é enviada com updateBatch
+ * depois de delayMillis do primeiro arquivo pendente, quando chega a
+ * maxBatch arquivos ou quando flush() é chamado. O hash de conteúdo de cada
+ * arquivo vai junto.
+ *
+ * Os arquivos apagados entram numa fila de REMOVE, enviada com removeBatch
+ * antes dos UPDATEs. Um arquivo alterado entra nas duas, então o servidor
+ * tira o hash antigo antes de receber o novo.
+ */
+public class UpdateBatcher {
+    private final NapsterService napster;
+    private final Client.ClientPeer client;
+    private final long delayMillis;
+    private final int maxBatch;
+
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final Set<String> removed = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler;
+    private boolean scheduled;
+
+    public UpdateBatcher(NapsterService napster, Client.ClientPeer client, long delayMillis, int maxBatch) {
+        this.napster = napster;
+        this.client = client;
+        this.delayMillis = delayMillis;
+        this.maxBatch = maxBatch;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "update-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Coloca um arquivo na fila de UPDATE.
+     */
+    public void add(String filename) {
+        boolean full;
+        synchronized (this) {
+            this.pending.add(filename);
+            full = this.schedule();
+        }
+
+        if (full) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Coloca um arquivo na fila de REMOVE, tirando-o da fila de UPDATE se ele ainda não foi enviado.
+     */
+    public void remove(String filename) {
+        boolean full;
+        synchronized (this) {
+            this.pending.remove(filename);
+            this.removed.add(filename);
+            full = this.schedule();
+        }
+
+        if (full) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Agenda o envio das filas, se ainda não foi agendado.
+     *
+     * @return true se as filas já estão cheias e devem ser enviadas agora.
+     */
+    private boolean schedule() {
+        boolean full = this.pending.size() + this.removed.size() >= this.maxBatch;
+        if (!full && !this.scheduled) {
+            this.scheduled = true;
+            this.scheduler.schedule(this::flush, this.delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return full;
+    }
+
+    /**
+     * Envia todos os REMOVEs e UPDATEs pendentes agora.
+     */
+    public void flush() {
+        String[] filenames;
+        String[] removals;
+        synchronized (this) {
+            this.scheduled = false;
+            if (this.pending.isEmpty() && this.removed.isEmpty()) {
+                return;
+            }
+            filenames = this.pending.toArray(new String[this.pending.size()]);
+            removals = this.removed.toArray(new String[this.removed.size()]);
+            this.pending.clear();
+            this.removed.clear();
+        }
+
+        try {
+            if (removals.length > 0) {
+                NapsterMessage message = this.napster.removeBatch(removals, this.client.getIp(), this.client.getPort());
+                if (!message.getMessage().equals("REMOVE_OK")) {
+                    Log.warn("Error: {}", message.getArgs()[0]);
+                }
+            }
+            if (filenames.length == 0) {
+                return;
+            }
+
+            String[] hashes = this.client.getContentHashes(filenames);
+            NapsterMessage message = this.napster.updateBatch(filenames, hashes, this.client.getIp(), this.client.getPort());
+            if (!message.getMessage().equals("UPDATE_OK")) {
+                Log.warn("Error: {}", message.getArgs()[0]);
+            }
+        } catch (RemoteException e) {
+            Log.warn("Error: {}", e.getMessage());
+        }
+    }
+}
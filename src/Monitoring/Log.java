@@ -0,0 +1,172 @@
+package Monitoring;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log assíncrono com níveis.
+ *
+ * Quem loga só coloca a mensagem e os argumentos numa fila limitada; a
+ * formatação e a escrita no console são feitas por uma thread própria, então
+ * uma thread de RMI ou de transferência nunca espera pelo console. Se a
+ * fila encher, a mensagem é descartada e contada em napster_log_dropped_total.
+ *
+ * A mensagem usa {} para os argumentos, como "Peer {} baixou {}". Se o último
+ * argumento é uma exceção sem {} correspondente, ela é impressa no fim.
+ *
+ * Propriedades:
+ * - napster.log.level: DEBUG, INFO, WARN ou ERROR (padrão INFO);
+ * - napster.log.queue: tamanho da fila (padrão 8192).
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String message;
+        final Object[] args;
+
+        Event(long time, Level level, String message, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+            this.args = args;
+        }
+    }
+
+    private static final Level THRESHOLD = Level.valueOf(System.getProperty("napster.log.level", "INFO").toUpperCase(Locale.ROOT));
+    private static final BlockingQueue<Event> QUEUE = new ArrayBlockingQueue<>(Integer.getInteger("napster.log.queue", 8192));
+    private static final LongAdder DROPPED = Metrics.counter("napster_log_dropped_total", "Mensagens de log descartadas com a fila cheia");
+    private static final Object FLUSH = new Object();
+    private static final AtomicLong QUEUED = new AtomicLong();
+    private static long written;
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public static void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    public static void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public static void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public static void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    public static void log(Level level, String message, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        if (QUEUE.offer(new Event(System.currentTimeMillis(), level, message, args))) {
+            QUEUED.incrementAndGet();
+        } else {
+            DROPPED.increment();
+        }
+    }
+
+    /**
+     * Espera até que tudo que já foi logado esteja no console, por no máximo 2 segundos.
+     */
+    public static void flush() {
+        long deadline = System.currentTimeMillis() + 2000;
+        long target = QUEUED.get();
+        synchronized (FLUSH) {
+            while (written < target && System.currentTimeMillis() < deadline) {
+                try {
+                    FLUSH.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void write() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<Event> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch);
+
+            for (Event event : batch) {
+                text.append(time.format(new Date(event.time))).append(' ').append(event.level).append(' ');
+                try {
+                    format(text, event.message, event.args);
+                } catch (RuntimeException e) {
+                    text.append(event.message).append(" (falha ao formatar: ").append(e).append(')');
+                }
+                text.append(System.lineSeparator());
+            }
+
+            // O System.out atual, que o benchmark pode ter trocado
+            PrintStream out = System.out;
+            out.print(text);
+            out.flush();
+
+            synchronized (FLUSH) {
+                written += batch.size();
+                FLUSH.notifyAll();
+            }
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+
+    private static void format(StringBuilder text, String message, Object[] args) {
+        int arg = 0;
+        int start = 0;
+        for (int i = message.indexOf("{}"); i >= 0 && arg < args.length; i = message.indexOf("{}", start)) {
+            text.append(message, start, i).append(render(args[arg++]));
+            start = i + 2;
+        }
+        text.append(message, start, message.length());
+
+        if (arg < args.length && args[args.length - 1] instanceof Throwable) {
+            text.append(": ").append(args[args.length - 1]);
+        }
+    }
+
+    private static String render(Object arg) {
+        if (arg instanceof Object[]) {
+            return Arrays.toString((Object[]) arg);
+        }
+        return String.valueOf(arg);
+    }
+}
@@ -0,0 +1,57 @@
+package Monitoring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contador com a taxa por segundo do último minuto, como média móvel
+ * exponencial atualizada a cada TICK_SECONDS.
+ *
+ * Não há thread de fundo: quem marca ou lê a taxa fecha os intervalos que já
+ * passaram.
+ */
+public class Meter {
+    private static final int TICK_SECONDS = 5;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(TICK_SECONDS);
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate;
+    private volatile boolean initialized;
+
+    public void mark(long amount) {
+        this.tickIfNecessary();
+        this.count.add(amount);
+        this.uncounted.add(amount);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return a taxa por segundo do último minuto.
+     */
+    public double getRate() {
+        this.tickIfNecessary();
+        return this.rate;
+    }
+
+    private void tickIfNecessary() {
+        long last = this.lastTick.get();
+        long now = System.nanoTime();
+        long ticks = (now - last) / TICK_NANOS;
+        if (ticks <= 0 || !this.lastTick.compareAndSet(last, last + ticks * TICK_NANOS)) {
+            return;
+        }
+
+        // O primeiro intervalo tem os bytes marcados, os seguintes ficaram vazios
+        double instant = (double) this.uncounted.sumThenReset() / TICK_SECONDS;
+        double rate = this.initialized ? this.rate + ALPHA * (instant - this.rate) : instant;
+        this.initialized = true;
+        this.rate = rate * Math.pow(1 - ALPHA, ticks - 1);
+    }
+}
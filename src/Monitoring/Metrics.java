@@ -0,0 +1,182 @@
+package Monitoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registro das métricas do processo (servidor ou peer).
+ *
+ * Cada métrica tem um nome e, opcionalmente, labels (pares nome, valor), e é
+ * criada na primeira vez que é pedida. Quem grava deve guardar a métrica
+ * num campo em vez de pedi-la a cada chamada. Gravar é um incremento num
+ * LongAdder ou num Histogram, sem lock nem alocação.
+ *
+ * As métricas são lidas pelo MetricsExporter, por JMX e em texto no formato
+ * do Prometheus. Latências são exportadas em segundos.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final class Entry {
+        final String name;
+        final String labels;
+        final String help;
+        final Object metric;
+
+        Entry(String name, String labels, String help, Object metric) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * Um valor lido, com a família (nome sem labels) e a série (nome com labels).
+     */
+    public static final class Sample {
+        public final String family;
+        public final String type;
+        public final String help;
+        public final String series;
+        public final double value;
+
+        Sample(String family, String type, String help, String series, double value) {
+            this.family = family;
+            this.type = type;
+            this.help = help;
+            this.series = series;
+            this.value = value;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> METRICS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Contador que só cresce. O nome deve terminar em _total.
+     */
+    public static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) register(name, help, labels, new LongAdder());
+    }
+
+    /**
+     * Histograma de latências, gravadas em nanossegundos.
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, labels, new Histogram());
+    }
+
+    /**
+     * Contador com taxa por segundo, exportado como <name>_total e <name>_per_second.
+     */
+    public static Meter meter(String name, String help, String... labels) {
+        return (Meter) register(name, help, labels, new Meter());
+    }
+
+    /**
+     * Valor lido na hora da exportação. Registrar de novo o mesmo nome e labels substitui o anterior.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        String rendered = labels(labels);
+        METRICS.put(name + rendered, new Entry(name, rendered, help, value));
+    }
+
+    private static Object register(String name, String help, String[] labels, Object metric) {
+        String rendered = labels(labels);
+        Object registered = METRICS.computeIfAbsent(name + rendered, key -> new Entry(name, rendered, help, metric)).metric;
+        if (registered.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException("Métrica " + name + rendered + " já registrada com outro tipo.");
+        }
+        return registered;
+    }
+
+    /**
+     * Lê todas as métricas, ordenadas pela série.
+     */
+    public static List<Sample> samples() {
+        List<Sample> samples = new ArrayList<>();
+        for (Entry entry : new TreeMap<>(METRICS).values()) {
+            Object metric = entry.metric;
+            if (metric instanceof LongAdder) {
+                samples.add(new Sample(entry.name, "counter", entry.help, entry.name + entry.labels, ((LongAdder) metric).sum()));
+            } else if (metric instanceof DoubleSupplier) {
+                samples.add(new Sample(entry.name, "gauge", entry.help, entry.name + entry.labels, ((DoubleSupplier) metric).getAsDouble()));
+            } else if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                samples.add(new Sample(entry.name + "_total", "counter", entry.help, entry.name + "_total" + entry.labels, meter.getCount()));
+                samples.add(new Sample(entry.name + "_per_second", "gauge", entry.help + " (por segundo, média do último minuto)",
+                        entry.name + "_per_second" + entry.labels, meter.getRate()));
+            } else {
+                Histogram histogram = (Histogram) metric;
+                for (double quantile : QUANTILES) {
+                    samples.add(new Sample(entry.name, "summary", entry.help,
+                            entry.name + withLabel(entry.labels, "quantile", String.valueOf(quantile)), histogram.getQuantile(quantile) / 1e9));
+                }
+                samples.add(new Sample(entry.name, "summary", entry.help, entry.name + "_sum" + entry.labels, histogram.getSum() / 1e9));
+                samples.add(new Sample(entry.name, "summary", entry.help, entry.name + "_count" + entry.labels, histogram.getCount()));
+                samples.add(new Sample(entry.name + "_max", "gauge", entry.help + " (máximo)", entry.name + "_max" + entry.labels,
+                        histogram.getMax() / 1e9));
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * As métricas no formato de texto do Prometheus (versão 0.0.4).
+     */
+    public static String scrape() {
+        Map<String, List<Sample>> families = new TreeMap<>();
+        for (Sample sample : samples()) {
+            families.computeIfAbsent(sample.family, key -> new ArrayList<>()).add(sample);
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, List<Sample>> family : families.entrySet()) {
+            Sample first = family.getValue().get(0);
+            text.append("# HELP ").append(family.getKey()).append(' ').append(first.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            text.append("# TYPE ").append(family.getKey()).append(' ').append(first.type).append('\n');
+            for (Sample sample : family.getValue()) {
+                text.append(sample.series).append(' ').append(format(sample.value)).append('\n');
+            }
+        }
+
+        return text.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * @param labels pares nome, valor
+     * @return os labels no formato {nome="valor",...}, ou "" se não há labels.
+     */
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels devem ser pares nome, valor.");
+        }
+
+        String rendered = "";
+        for (int i = 0; i < labels.length; i += 2) {
+            rendered = withLabel(rendered, labels[i], labels[i + 1]);
+        }
+        return rendered;
+    }
+
+    private static String withLabel(String rendered, String name, String value) {
+        String label = name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+        return rendered.isEmpty() ? "{" + label + "}" : rendered.substring(0, rendered.length() - 1) + "," + label + "}";
+    }
+}
@@ -0,0 +1,148 @@
+package Monitoring;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Exporta as métricas do Metrics.
+ *
+ * - JMX: o MBean napster:type=Metrics tem um atributo por série, com o nome da
+ *   série (por exemplo napster_rmi_requests_total{method="search"}), e pode ser
+ *   lido com jconsole ou qualquer cliente JMX;
+ * - HTTP: se a propriedade napster.metrics.port estiver definida, GET /metrics
+ *   nessa porta devolve as métricas no formato de texto do Prometheus.
+ */
+public final class MetricsExporter {
+    private static boolean started;
+
+    private MetricsExporter() {
+    }
+
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("napster:type=Metrics"));
+        } catch (Exception e) {
+            Log.warn("Não foi possível registrar as métricas no JMX", e);
+        }
+
+        Integer port = Integer.getInteger("napster.metrics.port");
+        if (port != null) {
+            try {
+                startHttp(port);
+                Log.info("Métricas em http://localhost:{}/metrics", port);
+            } catch (IOException e) {
+                Log.warn("Não foi possível abrir a porta {} das métricas", port, e);
+            }
+        }
+    }
+
+    private static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * MBean com as séries que existem no momento da leitura; novas séries
+     * (um peer novo, por exemplo) aparecem na próxima vez que o MBeanInfo é lido.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        private static Map<String, Metrics.Sample> read() {
+            Map<String, Metrics.Sample> samples = new LinkedHashMap<>();
+            for (Metrics.Sample sample : Metrics.samples()) {
+                samples.put(sample.series, sample);
+            }
+            return samples;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Metrics.Sample sample = read().get(attribute);
+            if (sample == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return sample.value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Metrics.Sample> samples = read();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Metrics.Sample sample = samples.get(attribute);
+                if (sample != null) {
+                    list.add(new Attribute(attribute, sample.value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("As métricas são somente leitura.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Metrics.Sample sample : read().values()) {
+                attributes.add(new MBeanAttributeInfo(sample.series, "double", sample.help + " (" + sample.type + ")", true, false, false));
+            }
+            return new MBeanInfo(MetricsExporter.class.getName(), "Métricas do Napster",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
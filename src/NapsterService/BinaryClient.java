@@ -0,0 +1,73 @@
+package NapsterService;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Cliente do BinaryProtocol, com uma conexão TCP para o servidor.
+ *
+ * As chamadas são síncronas e usam a mesma conexão, uma de cada vez; para
+ * chamadas em paralelo cada thread deve ter o seu cliente.
+ */
+public class BinaryClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    public BinaryClient(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        this.channel.socket().setTcpNoDelay(true);
+    }
+
+    public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+        return (NapsterMessage) this.call(BinaryProtocol.join(filenames, hashes, ip, port));
+    }
+
+    public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+        return (NapsterMessage) this.call(BinaryProtocol.update(filenames, hashes, ip, port));
+    }
+
+    public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws IOException {
+        return (NapsterMessage) this.call(BinaryProtocol.remove(filenames, ip, port));
+    }
+
+    public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws IOException {
+        return (SearchResult) this.call(BinaryProtocol.search(filename, offset, limit, ip, port));
+    }
+
+    /**
+     * Envia o frame da requisição e espera o frame da resposta.
+     */
+    private synchronized Object call(ByteBuffer request) throws IOException {
+        while (request.hasRemaining()) {
+            this.channel.write(request);
+        }
+
+        this.header.clear();
+        this.readFully(this.header);
+        int length = this.header.getInt(0);
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME) {
+            throw new IOException("Frame inválido: " + length + " bytes");
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(length);
+        this.readFully(response);
+        response.flip();
+        return BinaryProtocol.readResponse(response);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer) < 0) {
+                throw new EOFException("Conexão fechada pelo servidor");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,239 @@
+package NapsterService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+
+/**
+ * Protocolo binário do índice, uma alternativa ao RMI para JOIN, UPDATE,
+ * REMOVE e SEARCH, sem a serialização de objetos do Java nem a reflexão do RMI.
+ *
+ * Cada requisição e cada resposta é um frame: um int com o tamanho do
+ * conteúdo, seguido do conteúdo. As respostas voltam na ordem das
+ * requisições, então um cliente pode mandar várias sem esperar (pipelining).
+ *
+ * Requisição: um byte com a operação, o ip (UTF) e a porta (char) do peer, e
+ * os campos da operação:
+ * - JOIN, UPDATE e REMOVE: a quantidade de arquivos (int), os nomes (UTF) e,
+ *   se o boolean seguinte for true, o hash de conteúdo de cada um (UTF, ""
+ *   sem hash; o REMOVE não tem hashes);
+ * - SEARCH: o nome do arquivo (UTF), offset e limit (int), como em searchPeers.
+ *
+ * Resposta: um byte com o tipo e o conteúdo:
+ * - MESSAGE: uma NapsterMessage, com method e message (UTF), a quantidade de
+ *   argumentos (int) e cada argumento (UTF);
+ * - RESULT: um SearchResult (SearchResult.writeTo), 6 bytes por peer;
+ * - FAILURE: o erro (UTF) de uma requisição que não pôde ser executada.
+ */
+public final class BinaryProtocol {
+    public static final byte JOIN = 1;
+    public static final byte UPDATE = 2;
+    public static final byte SEARCH = 3;
+    public static final byte REMOVE = 4;
+
+    public static final byte MESSAGE = 1;
+    public static final byte RESULT = 2;
+    public static final byte FAILURE = 3;
+
+    /**
+     * Tamanho máximo do conteúdo de um frame. Um frame maior fecha a conexão.
+     */
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Buffer onde um frame é montado, com os 4 bytes do tamanho reservados no começo.
+     */
+    private static final class Frame extends ByteArrayOutputStream {
+        final DataOutputStream output = new DataOutputStream(this);
+
+        Frame(int capacity) {
+            super(capacity);
+            this.count = 4;
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.wrap(this.buf, 0, this.count);
+            buffer.putInt(0, this.count - 4);
+            return buffer;
+        }
+    }
+
+    public static ByteBuffer join(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+        return files(JOIN, filenames, hashes, ip, port);
+    }
+
+    public static ByteBuffer update(String[] filenames, String[] hashes, String ip, int port) throws IOException {
+        return files(UPDATE, filenames, hashes, ip, port);
+    }
+
+    public static ByteBuffer remove(String[] filenames, String ip, int port) throws IOException {
+        return files(REMOVE, filenames, null, ip, port);
+    }
+
+    public static ByteBuffer search(String filename, int offset, int limit, String ip, int port) throws IOException {
+        Frame frame = request(SEARCH, ip, port, 64);
+        frame.output.writeUTF(filename);
+        frame.output.writeInt(offset);
+        frame.output.writeInt(limit);
+        return frame.toBuffer();
+    }
+
+    private static ByteBuffer files(byte operation, String[] filenames, String[] hashes, String ip, int port) throws IOException {
+        Frame frame = request(operation, ip, port, 64 + filenames.length * (hashes != null ? 96 : 32));
+        frame.output.writeInt(filenames.length);
+        for (String filename : filenames) {
+            frame.output.writeUTF(filename);
+        }
+        frame.output.writeBoolean(hashes != null);
+        if (hashes != null) {
+            for (String hash : hashes) {
+                frame.output.writeUTF(hash != null ? hash : "");
+            }
+        }
+        return frame.toBuffer();
+    }
+
+    private static Frame request(byte operation, String ip, int port, int capacity) throws IOException {
+        Frame frame = new Frame(capacity);
+        frame.output.writeByte(operation);
+        frame.output.writeUTF(ip);
+        frame.output.writeChar(port);
+        return frame;
+    }
+
+    /**
+     * Executa uma requisição no serviço.
+     *
+     * @param request conteúdo do frame da requisição, num buffer com array
+     * @return o frame da resposta, com FAILURE se a requisição está mal formada ou falhou.
+     */
+    public static ByteBuffer execute(NapsterService napster, ByteBuffer request) {
+        try {
+            DataInputStream input = input(request);
+            byte operation = input.readByte();
+            String ip = input.readUTF();
+            int port = input.readChar();
+
+            switch (operation) {
+                case JOIN:
+                case UPDATE:
+                case REMOVE: {
+                    String[] filenames = new String[checkCount(input.readInt(), request)];
+                    for (int i = 0; i < filenames.length; i++) {
+                        filenames[i] = input.readUTF();
+                    }
+                    String[] hashes = null;
+                    if (input.readBoolean()) {
+                        hashes = new String[filenames.length];
+                        for (int i = 0; i < hashes.length; i++) {
+                            hashes[i] = input.readUTF();
+                        }
+                    }
+
+                    NapsterMessage message;
+                    if (operation == JOIN) {
+                        message = hashes != null ? napster.join(filenames, hashes, ip, port) : napster.join(filenames, ip, port);
+                    } else if (operation == UPDATE) {
+                        message = napster.updateBatch(filenames, hashes, ip, port);
+                    } else {
+                        message = napster.removeBatch(filenames, ip, port);
+                    }
+                    return message(message);
+                }
+                case SEARCH: {
+                    String filename = input.readUTF();
+                    int offset = input.readInt();
+                    int limit = input.readInt();
+
+                    SearchResult result = napster.searchPeers(filename, offset, limit, ip, port);
+                    Frame frame = new Frame(64 + result.size() * 6);
+                    frame.output.writeByte(RESULT);
+                    result.writeTo(frame.output);
+                    return frame.toBuffer();
+                }
+                default:
+                    return failure("Operação desconhecida: " + operation);
+            }
+        } catch (RemoteException e) {
+            return failure(e.getMessage());
+        } catch (IOException e) {
+            return failure("Requisição mal formada");
+        } catch (RuntimeException e) {
+            return failure(e.toString());
+        }
+    }
+
+    /**
+     * Lê uma resposta.
+     *
+     * @param response conteúdo do frame da resposta, num buffer com array
+     * @return a NapsterMessage ou o SearchResult da resposta.
+     * @throws IOException se a resposta é um FAILURE ou está mal formada.
+     */
+    public static Object readResponse(ByteBuffer response) throws IOException {
+        DataInputStream input = input(response);
+        byte type = input.readByte();
+        switch (type) {
+            case MESSAGE: {
+                String method = input.readUTF();
+                String message = input.readUTF();
+                String[] args = new String[checkCount(input.readInt(), response)];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = input.readUTF();
+                }
+                return new NapsterMessage(method, message, args);
+            }
+            case RESULT:
+                return SearchResult.readFrom(input);
+            case FAILURE:
+                throw new IOException(input.readUTF());
+            default:
+                throw new IOException("Resposta desconhecida: " + type);
+        }
+    }
+
+    private static ByteBuffer message(NapsterMessage message) throws IOException {
+        String[] args = message.getArgs() != null ? message.getArgs() : new String[0];
+        Frame frame = new Frame(64 + args.length * 32);
+        frame.output.writeByte(MESSAGE);
+        frame.output.writeUTF(message.getMethod());
+        frame.output.writeUTF(message.getMessage());
+        frame.output.writeInt(args.length);
+        for (String arg : args) {
+            frame.output.writeUTF(arg != null ? arg : "");
+        }
+        return frame.toBuffer();
+    }
+
+    private static ByteBuffer failure(String error) {
+        try {
+            Frame frame = new Frame(64);
+            frame.output.writeByte(FAILURE);
+            frame.output.writeUTF(String.valueOf(error));
+            return frame.toBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DataInputStream input(ByteBuffer buffer) {
+        return new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+    }
+
+    /**
+     * Cada item de uma lista ocupa pelo menos 2 bytes, então uma quantidade maior que o frame é inválida.
+     */
+    private static int checkCount(int count, ByteBuffer frame) throws IOException {
+        if (count < 0 || count > frame.remaining() / 2) {
+            throw new IOException("Quantidade inválida: " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,168 @@
+package NapsterService;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Dicionário de termos (nomes de arquivo ou hashes de conteúdo) do índice.
+ *
+ * Cada termo distinto é guardado uma vez só, com um id inteiro, e a lista de
+ * peers que o possuem é um int[] com os ids dos peers (posting list). Os
+ * peers guardam só os ids dos termos, então cada par (arquivo, peer) custa
+ * alguns bytes em vez de uma String e um nó de mapa.
+ *
+ * A posting list é copiada a cada alteração (copy-on-write) dentro do compute
+ * do termo, e a leitura não usa lock. Um termo sem peers sai do dicionário.
+ */
+final class Dictionary {
+    static final int[] EMPTY = new int[0];
+
+    private static final class Term {
+        final int id;
+        final String value;
+        volatile int[] postings = EMPTY;
+
+        Term(int id, String value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Term> terms = new ConcurrentHashMap<>();
+    private final IdTable<Term> ids = new IdTable<>();
+
+    /**
+     * Avisados dentro do lock do termo quando ele entra ou sai do dicionário; podem ser null.
+     */
+    private final Consumer<String> onCreate;
+    private final Consumer<String> onDelete;
+
+    Dictionary(Consumer<String> onCreate, Consumer<String> onDelete) {
+        this.onCreate = onCreate;
+        this.onDelete = onDelete;
+    }
+
+    /**
+     * @return o id do termo, ou -1 se ele não está no dicionário.
+     */
+    int id(String value) {
+        Term term = this.terms.get(value);
+        return term != null ? term.id : -1;
+    }
+
+    /**
+     * @return o termo com o id, ou null se o id nunca foi usado.
+     */
+    String value(int id) {
+        Term term = this.ids.get(id);
+        return term != null ? term.value : null;
+    }
+
+    /**
+     * Retorna os ids dos peers que possuem o termo, sem usar lock. O array não deve ser alterado.
+     */
+    int[] postings(String value) {
+        Term term = this.terms.get(value);
+        return term != null ? term.postings : EMPTY;
+    }
+
+    /**
+     * Adiciona um peer à posting list do termo, criando o termo se preciso.
+     *
+     * @return o id do termo.
+     */
+    int add(String value, int peerId) {
+        return this.terms.compute(value, (key, term) -> {
+            if (term == null) {
+                term = this.create(key);
+            }
+
+            int[] postings = term.postings;
+            if (indexOf(postings, peerId) < 0) {
+                postings = Arrays.copyOf(postings, postings.length + 1);
+                postings[postings.length - 1] = peerId;
+                term.postings = postings;
+            }
+            return term;
+        }).id;
+    }
+
+    /**
+     * Tira um peer da posting list do termo, removendo o termo se ele ficou sem peers.
+     */
+    void remove(int id, int peerId) {
+        Term current = this.ids.get(id);
+        if (current == null) {
+            return;
+        }
+
+        this.terms.computeIfPresent(current.value, (key, term) -> {
+            int[] postings = term.postings;
+            int index = indexOf(postings, peerId);
+            if (term != current || index < 0) {
+                return term;
+            }
+
+            if (postings.length == 1) {
+                term.postings = EMPTY;
+                this.ids.remove(term.id);
+                if (this.onDelete != null) {
+                    this.onDelete.accept(key);
+                }
+                return null;
+            }
+
+            int[] copy = new int[postings.length - 1];
+            System.arraycopy(postings, 0, copy, 0, index);
+            System.arraycopy(postings, index + 1, copy, index, copy.length - index);
+            term.postings = copy;
+            return term;
+        });
+    }
+
+    /**
+     * Cria o termo sem peers, usado na recuperação junto com setPostings. Não
+     * deve ser chamado com o índice em uso.
+     *
+     * @return o id do termo.
+     */
+    int intern(String value) {
+        return this.terms.computeIfAbsent(value, this::create).id;
+    }
+
+    void setPostings(int id, int[] postings) {
+        this.ids.get(id).postings = postings;
+    }
+
+    /**
+     * @return a quantidade de termos no dicionário.
+     */
+    int size() {
+        return this.terms.size();
+    }
+
+    /**
+     * @return o maior id já usado mais um.
+     */
+    int capacity() {
+        return this.ids.capacity();
+    }
+
+    private Term create(String value) {
+        Term term = this.ids.add(id -> new Term(id, value));
+        if (this.onCreate != null) {
+            this.onCreate.accept(value);
+        }
+        return term;
+    }
+
+    private static int indexOf(int[] postings, int peerId) {
+        for (int i = 0; i < postings.length; i++) {
+            if (postings[i] == peerId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
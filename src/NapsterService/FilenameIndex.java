@@ -0,0 +1,275 @@
+package NapsterService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.ToIntFunction;
+
+/**
+ * Índice dos nomes de arquivo para buscas que não são pelo nome exato.
+ *
+ * - Prefixo: os nomes ficam ordenados num ConcurrentSkipListSet, então a busca
+ *   é um subSet a partir do prefixo.
+ * - Substring: cada nome é quebrado em trigramas (pedaços de 3 caracteres), e
+ *   só os nomes do trigrama menos frequente da consulta são conferidos.
+ * - Aproximada: nomes que compartilham trigramas suficientes com a consulta,
+ *   pontuados pelo coeficiente de Dice.
+ *
+ * A comparação ignora maiúsculas e minúsculas. Cada busca olha no máximo
+ * MAX_CANDIDATES nomes, para que o tempo de resposta seja limitado mesmo com
+ * milhões de nomes, e o resultado é paginado.
+ */
+public class FilenameIndex {
+    public enum Mode {
+        AUTO,
+        PREFIX,
+        SUBSTRING,
+        FUZZY
+    }
+
+    public static final int MAX_LIMIT = 100;
+    private static final int MAX_CANDIDATES = 2000;
+    private static final double MIN_SIMILARITY = 0.4;
+
+    private static final int EXACT_SCORE = 1000;
+    private static final int PREFIX_SCORE = 500;
+    private static final int TOKEN_SCORE = 300;
+    private static final int SUBSTRING_SCORE = 200;
+    private static final int FUZZY_SCORE = 100;
+
+    /**
+     * Separa o nome normalizado do nome original nas entradas de sorted.
+     */
+    private static final char SEPARATOR = '\0';
+
+    /**
+     * Entradas "<nome normalizado>\0<nome original>", em ordem.
+     */
+    private final ConcurrentSkipListSet<String> sorted = new ConcurrentSkipListSet<>();
+
+    /**
+     * Trigrama do nome normalizado para os nomes originais que o contêm.
+     */
+    private final ConcurrentHashMap<String, Set<String>> trigrams = new ConcurrentHashMap<>();
+
+    /**
+     * Adiciona um nome. Deve ser chamado quando o primeiro peer passa a ter o arquivo.
+     */
+    public void add(String filename) {
+        String normalized = normalize(filename);
+        this.sorted.add(normalized + SEPARATOR + filename);
+
+        for (String trigram : trigramsOf(normalized)) {
+            this.trigrams.compute(trigram, (key, names) -> {
+                if (names == null) {
+                    names = ConcurrentHashMap.newKeySet();
+                }
+                names.add(filename);
+                return names;
+            });
+        }
+    }
+
+    /**
+     * Remove um nome. Deve ser chamado quando o último peer deixa de ter o arquivo.
+     */
+    public void remove(String filename) {
+        String normalized = normalize(filename);
+        this.sorted.remove(normalized + SEPARATOR + filename);
+
+        for (String trigram : trigramsOf(normalized)) {
+            this.trigrams.computeIfPresent(trigram, (key, names) -> {
+                names.remove(filename);
+                return names.isEmpty() ? null : names;
+            });
+        }
+    }
+
+    /**
+     * Busca nomes de arquivo pela consulta.
+     *
+     * No modo AUTO o resultado junta as buscas por prefixo e por substring, e
+     * só usa a busca aproximada se elas não encheram a página.
+     *
+     * @param popularity quantidade de peers de cada arquivo, usada para desempatar
+     * @return os nomes em ordem de relevância, no máximo limit a partir de offset.
+     */
+    public List<String> find(String query, Mode mode, int offset, int limit, ToIntFunction<String> popularity) {
+        String normalized = normalize(query.trim());
+        limit = limit <= 0 ? MAX_LIMIT : Math.min(limit, MAX_LIMIT);
+        offset = Math.max(0, offset);
+
+        HashMap<String, Integer> scores = new HashMap<>();
+        if (mode == Mode.AUTO || mode == Mode.PREFIX) {
+            this.findPrefix(normalized, scores);
+        }
+        if (mode == Mode.AUTO || mode == Mode.SUBSTRING) {
+            this.findSubstring(normalized, scores);
+        }
+        if (mode == Mode.FUZZY || (mode == Mode.AUTO && scores.size() < offset + limit)) {
+            this.findFuzzy(normalized, scores);
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        Comparator<Map.Entry<String, Integer>> order = Comparator.<Map.Entry<String, Integer>>comparingInt(Map.Entry::getValue).reversed();
+        order = order.thenComparing(Comparator.comparingInt((Map.Entry<String, Integer> entry) -> popularity.applyAsInt(entry.getKey())).reversed());
+        order = order.thenComparingInt(entry -> entry.getKey().length());
+        order = order.thenComparing(Map.Entry::getKey);
+        ranked.sort(order);
+
+        if (offset >= ranked.size()) {
+            return Collections.emptyList();
+        }
+        List<String> page = new ArrayList<>(limit);
+        for (Map.Entry<String, Integer> entry : ranked.subList(offset, Math.min(ranked.size(), offset + limit))) {
+            page.add(entry.getKey());
+        }
+
+        return page;
+    }
+
+    /**
+     * Relevância de um nome para a consulta, a mesma que o find dá ao nome,
+     * calculada sem o índice. Usada para juntar os resultados de vários shards.
+     *
+     * @return a pontuação, ou 0 se o nome não seria encontrado.
+     */
+    public static int score(String query, String filename) {
+        String normalized = normalize(query.trim());
+        String name = normalize(filename);
+        if (name.equals(normalized)) {
+            return EXACT_SCORE;
+        }
+        if (name.startsWith(normalized)) {
+            return PREFIX_SCORE;
+        }
+
+        Set<String> queryTrigrams = trigramsOf(normalized);
+        int position = queryTrigrams.isEmpty() ? -1 : name.indexOf(normalized);
+        if (position != -1) {
+            boolean token = position == 0 || !Character.isLetterOrDigit(name.charAt(position - 1));
+            return token ? TOKEN_SCORE : SUBSTRING_SCORE;
+        }
+        if (queryTrigrams.isEmpty()) {
+            return 0;
+        }
+
+        Set<String> nameTrigrams = trigramsOf(name);
+        int shared = 0;
+        for (String trigram : queryTrigrams) {
+            if (nameTrigrams.contains(trigram)) {
+                shared++;
+            }
+        }
+        double similarity = 2.0 * shared / (queryTrigrams.size() + nameTrigrams.size());
+
+        return similarity >= MIN_SIMILARITY ? (int) (FUZZY_SCORE * similarity) : 0;
+    }
+
+    public int size() {
+        return this.sorted.size();
+    }
+
+    private void findPrefix(String prefix, HashMap<String, Integer> scores) {
+        for (String entry : this.sorted.subSet(prefix, prefix + Character.MAX_VALUE)) {
+            if (scores.size() >= MAX_CANDIDATES) {
+                break;
+            }
+
+            int separator = entry.indexOf(SEPARATOR);
+            int score = separator == prefix.length() ? EXACT_SCORE : PREFIX_SCORE;
+            scores.merge(entry.substring(separator + 1), score, Math::max);
+        }
+    }
+
+    private void findSubstring(String query, HashMap<String, Integer> scores) {
+        Set<String> candidates = this.smallestPosting(query);
+        if (candidates == null) {
+            return;
+        }
+
+        int checked = 0;
+        for (String filename : candidates) {
+            if (checked++ >= MAX_CANDIDATES) {
+                break;
+            }
+
+            String normalized = normalize(filename);
+            int position = normalized.indexOf(query);
+            if (position == -1) {
+                continue;
+            }
+
+            // Ocorrências no começo de uma palavra do nome valem mais
+            boolean token = position == 0 || !Character.isLetterOrDigit(normalized.charAt(position - 1));
+            scores.merge(filename, token ? TOKEN_SCORE : SUBSTRING_SCORE, Math::max);
+        }
+    }
+
+    private void findFuzzy(String query, HashMap<String, Integer> scores) {
+        Set<String> queryTrigrams = trigramsOf(query);
+        if (queryTrigrams.isEmpty()) {
+            return;
+        }
+
+        // Conta quantos trigramas da consulta cada nome possui, ignorando os trigramas comuns demais
+        HashMap<String, Integer> shared = new HashMap<>();
+        for (String trigram : queryTrigrams) {
+            Set<String> names = this.trigrams.get(trigram);
+            if (names == null || names.size() > MAX_CANDIDATES) {
+                continue;
+            }
+            for (String filename : names) {
+                shared.merge(filename, 1, Integer::sum);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+            int nameTrigrams = trigramsOf(normalize(entry.getKey())).size();
+            double similarity = 2.0 * entry.getValue() / (queryTrigrams.size() + nameTrigrams);
+            if (similarity >= MIN_SIMILARITY) {
+                scores.merge(entry.getKey(), (int) (FUZZY_SCORE * similarity), Math::max);
+            }
+        }
+    }
+
+    /**
+     * Retorna os nomes do trigrama menos frequente da consulta, ou null se
+     * a consulta é curta demais ou algum trigrama não existe.
+     */
+    private Set<String> smallestPosting(String query) {
+        Set<String> smallest = null;
+        for (String trigram : trigramsOf(query)) {
+            Set<String> names = this.trigrams.get(trigram);
+            if (names == null) {
+                return null;
+            }
+            if (smallest == null || names.size() < smallest.size()) {
+                smallest = names;
+            }
+        }
+
+        return smallest;
+    }
+
+    private static Set<String> trigramsOf(String normalized) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            result.add(normalized.substring(i, i + 3));
+        }
+
+        return result;
+    }
+
+    private static String normalize(String filename) {
+        return filename.toLowerCase(Locale.ROOT);
+    }
+}
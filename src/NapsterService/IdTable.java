@@ -0,0 +1,92 @@
+package NapsterService;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Tabela de objetos por id inteiro, com ids pequenos e densos.
+ *
+ * O índice guarda ids (int) em vez de referências, e esta tabela traduz o id
+ * de volta. A leitura não usa lock. Um id liberado só é reutilizado depois de
+ * REUSE_DELAY_NANOS, e o objeto continua no seu slot até lá, então quem leu
+ * uma lista de ids pouco antes da remoção ainda encontra o objeto certo.
+ */
+final class IdTable<T> {
+    private static final long REUSE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile Object[] slots = new Object[64];
+
+    /**
+     * Próximo id nunca usado.
+     */
+    private int next;
+
+    /**
+     * Fila circular dos ids liberados, com o instante (nanoTime) da liberação.
+     */
+    private int[] freed = new int[64];
+    private long[] freedAt = new long[64];
+    private int freedHead;
+    private int freedCount;
+
+    /**
+     * Cria um objeto com um id novo e o publica na tabela.
+     */
+    synchronized T add(IntFunction<T> factory) {
+        int id;
+        if (this.freedCount > 0 && System.nanoTime() - this.freedAt[this.freedHead] >= REUSE_DELAY_NANOS) {
+            id = this.freed[this.freedHead];
+            this.freedHead = (this.freedHead + 1) % this.freed.length;
+            this.freedCount--;
+        } else {
+            id = this.next++;
+        }
+
+        T value = factory.apply(id);
+        Object[] slots = this.slots;
+        if (id >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, id + 1));
+        }
+        slots[id] = value;
+        // A escrita volátil publica o slot para quem lê sem lock
+        this.slots = slots;
+
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int id) {
+        Object[] slots = this.slots;
+        return id >= 0 && id < slots.length ? (T) slots[id] : null;
+    }
+
+    /**
+     * Libera o id para ser reutilizado depois de REUSE_DELAY_NANOS.
+     */
+    synchronized void remove(int id) {
+        if (this.freedCount == this.freed.length) {
+            int[] freed = new int[this.freed.length * 2];
+            long[] freedAt = new long[freed.length];
+            for (int i = 0; i < this.freedCount; i++) {
+                freed[i] = this.freed[(this.freedHead + i) % this.freed.length];
+                freedAt[i] = this.freedAt[(this.freedHead + i) % this.freed.length];
+            }
+            this.freed = freed;
+            this.freedAt = freedAt;
+            this.freedHead = 0;
+        }
+
+        int tail = (this.freedHead + this.freedCount) % this.freed.length;
+        this.freed[tail] = id;
+        this.freedAt[tail] = System.nanoTime();
+        this.freedCount++;
+    }
+
+    /**
+     * @return quantos ids já foram usados, ou seja, o tamanho que um array indexado por id precisa ter.
+     */
+    synchronized int capacity() {
+        return this.next;
+    }
+}
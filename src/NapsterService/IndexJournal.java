@@ -0,0 +1,471 @@
+package NapsterService;
+
+import Monitoring.Log;
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistência do índice do Servidor Napster.
+ *
+ * Toda alteração do índice (JOIN, UPDATE, REMOVE, LEAVE) é gravada num log append-only
+ * (napster.log), e de tempos em tempos o índice inteiro é gravado num
+ * snapshot binário compacto (napster.snapshot), o que permite apagar o log.
+ * Ao reiniciar, o snapshot é lido com mmap e depois o log é reaplicado.
+ *
+ * Cada registro do log é [tamanho][crc32][payload], então um registro
+ * cortado no fim do arquivo (queda no meio da escrita) é detectado e
+ * ignorado. O log vai para o sistema operacional a cada 100 ms e só passa por
+ * fsync quando um snapshot é feito.
+ *
+ * Os hashes de conteúdo dos arquivos vão no fim dos registros de JOIN e
+ * UPDATE, então os logs gravados antes deles continuam sendo lidos.
+ *
+ * Reaplicar JOIN, UPDATE, REMOVE e LEAVE é idempotente, por isso não há problema se um
+ * registro já estiver no snapshot.
+ */
+public class IndexJournal implements NapsterIndex.Listener {
+    private static final int SNAPSHOT_MAGIC = 0x4e415053;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    static final byte JOIN = 1;
+    static final byte UPDATE = 2;
+    static final byte LEAVE = 3;
+    static final byte REMOVE = 4;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final NapsterIndex index;
+    private final File logFile;
+    private final File oldLogFile;
+    private final File snapshotFile;
+
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOutput = new DataOutputStream(this.record);
+    private final CRC32 crc = new CRC32();
+
+    private FileOutputStream logStream;
+    private DataOutputStream log;
+    private long records;
+    private long bytes;
+    private long recordsSinceSnapshot;
+    private final long startNanos = System.nanoTime();
+
+    private final ScheduledExecutorService scheduler;
+
+    private IndexJournal(File directory, NapsterIndex index) {
+        this.index = index;
+        this.logFile = new File(directory, "napster.log");
+        this.oldLogFile = new File(directory, "napster.log.old");
+        this.snapshotFile = new File(directory, "napster.snapshot");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Recupera o índice a partir do diretório e começa a gravar as alterações dele.
+     *
+     * @param snapshotIntervalSeconds intervalo entre os snapshots
+     */
+    public static IndexJournal open(File directory, NapsterIndex index, long snapshotIntervalSeconds) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório " + directory);
+        }
+
+        IndexJournal journal = new IndexJournal(directory, index);
+        journal.recover();
+        journal.openLog();
+        index.addListener(journal);
+
+        journal.scheduler.scheduleWithFixedDelay(journal::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        journal.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                journal.snapshot();
+            } catch (IOException e) {
+                Log.warn("Falha ao gravar o snapshot: {}", e.getMessage());
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+
+        return journal;
+    }
+
+    @Override
+    public void onJoin(NapsterPeer peer) {
+        this.append(JOIN, peer, peer.getFilenames());
+    }
+
+    @Override
+    public void onUpdate(NapsterPeer peer, List<String> filenames) {
+        this.append(UPDATE, peer, filenames.toArray(new String[filenames.size()]));
+    }
+
+    @Override
+    public void onRemove(NapsterPeer peer, List<String> filenames) {
+        this.append(REMOVE, peer, filenames.toArray(new String[filenames.size()]));
+    }
+
+    @Override
+    public void onLeave(NapsterPeer peer) {
+        this.append(LEAVE, peer, new String[0]);
+    }
+
+    private synchronized void append(byte type, NapsterPeer peer, String[] filenames) {
+        try {
+            this.record.reset();
+            writeRecord(this.recordOutput, type, peer, filenames);
+
+            byte[] payload = this.record.toByteArray();
+            this.crc.reset();
+            this.crc.update(payload, 0, payload.length);
+
+            this.log.writeInt(payload.length);
+            this.log.writeInt((int) this.crc.getValue());
+            this.log.write(payload);
+
+            this.records++;
+            this.recordsSinceSnapshot++;
+            this.bytes += payload.length + 8;
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar no journal: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Escreve o payload de um registro: tipo, ip, porta, os nomes dos arquivos
+     * e depois o hash de cada um ("" se o arquivo não tem hash).
+     *
+     * O mesmo formato é usado pelo IndexReplicator para enviar as alterações às réplicas.
+     */
+    static void writeRecord(DataOutputStream output, byte type, NapsterPeer peer, String[] filenames) throws IOException {
+        output.writeByte(type);
+        output.writeUTF(peer.getIp());
+        output.writeInt(peer.getPort());
+        output.writeInt(filenames.length);
+        for (String filename : filenames) {
+            output.writeUTF(filename);
+        }
+        for (String filename : filenames) {
+            String contentHash = peer.getContentHash(filename);
+            output.writeUTF(contentHash != null ? contentHash : "");
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            this.log.flush();
+        } catch (IOException e) {
+            Log.warn("Falha ao gravar no journal: {}", e.getMessage());
+        }
+    }
+
+    private void openLog() throws IOException {
+        this.logStream = new FileOutputStream(this.logFile, true);
+        this.log = new DataOutputStream(new BufferedOutputStream(this.logStream, 64 * 1024));
+    }
+
+    /**
+     * Grava um snapshot do índice e descarta o log que ele substitui.
+     *
+     * O log atual é renomeado para napster.log.old e um log novo é aberto,
+     * assim as alterações continuam enquanto o snapshot é gravado. Se o
+     * servidor cair no meio, a recuperação lê o snapshot anterior e os dois logs.
+     */
+    public void snapshot() throws IOException {
+        long logRecords;
+        synchronized (this) {
+            if (this.recordsSinceSnapshot == 0) {
+                return;
+            }
+            logRecords = this.recordsSinceSnapshot;
+            this.log.flush();
+            this.logStream.getFD().sync();
+            this.log.close();
+            Files.move(this.logFile.toPath(), this.oldLogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.openLog();
+            this.recordsSinceSnapshot = 0;
+        }
+
+        long start = System.nanoTime();
+        int peers = this.writeSnapshot();
+        Files.deleteIfExists(this.oldLogFile.toPath());
+
+        Log.info("Snapshot gravado: {} peers em {} ms, {} registros do log compactados. {}", peers,
+                (System.nanoTime() - start) / 1_000_000, logRecords, this.stats());
+    }
+
+    /**
+     * Estatísticas de escrita do log desde que o servidor iniciou.
+     */
+    public synchronized String stats() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - this.startNanos) / 1e9);
+        return "Journal: " + this.records + " registros, " + (this.bytes / 1024) + " KB ("
+                + String.format("%.1f", this.records / seconds) + " registros/s).";
+    }
+
+    /**
+     * Grava o snapshot num arquivo temporário e o renomeia por cima do anterior.
+     *
+     * Formato: magic, versão, dicionário de nomes de arquivo, dicionário de
+     * hashes de conteúdo e depois cada peer com ip, porta e, para cada arquivo,
+     * o id do nome e o id do hash (-1 se o arquivo não tem hash).
+     */
+    private int writeSnapshot() throws IOException {
+        List<NapsterPeer> peers = new ArrayList<>();
+        this.index.forEachPeer(peers::add);
+
+        List<String[]> peerFiles = new ArrayList<>(peers.size());
+        HashMap<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        HashMap<String, Integer> hashIds = new HashMap<>();
+        List<String> hashDictionary = new ArrayList<>();
+        for (NapsterPeer peer : peers) {
+            String[] filenames = peer.getFilenames();
+            peerFiles.add(filenames);
+            for (String filename : filenames) {
+                if (!ids.containsKey(filename)) {
+                    ids.put(filename, dictionary.size());
+                    dictionary.add(filename);
+                }
+                String contentHash = peer.getContentHash(filename);
+                if (contentHash != null && !hashIds.containsKey(contentHash)) {
+                    hashIds.put(contentHash, hashDictionary.size());
+                    hashDictionary.add(contentHash);
+                }
+            }
+        }
+
+        File tmp = new File(this.snapshotFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 256 * 1024))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+
+            output.writeInt(dictionary.size());
+            for (String filename : dictionary) {
+                writeString(output, filename);
+            }
+
+            output.writeInt(hashDictionary.size());
+            for (String contentHash : hashDictionary) {
+                writeString(output, contentHash);
+            }
+
+            output.writeInt(peers.size());
+            for (int i = 0; i < peers.size(); i++) {
+                writeString(output, peers.get(i).getIp());
+                output.writeInt(peers.get(i).getPort());
+                String[] filenames = peerFiles.get(i);
+                output.writeInt(filenames.length);
+                for (String filename : filenames) {
+                    String contentHash = peers.get(i).getContentHash(filename);
+                    output.writeInt(ids.get(filename));
+                    output.writeInt(contentHash != null ? hashIds.get(contentHash) : -1);
+                }
+            }
+
+            output.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return peers.size();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Reconstrói o índice a partir do snapshot e dos logs, e imprime o tempo gasto.
+     *
+     * Se algum registro do log foi reaplicado, grava um snapshot novo antes de
+     * aceitar alterações, para que o próximo reinício não precise reaplicá-lo.
+     */
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        int snapshotPeers = 0;
+        if (this.snapshotFile.exists()) {
+            snapshotPeers = this.readSnapshot();
+        }
+        long snapshotMillis = (System.nanoTime() - start) / 1_000_000;
+
+        long replayed = 0;
+        if (this.oldLogFile.exists()) {
+            replayed += this.replay(this.oldLogFile);
+        }
+        if (this.logFile.exists()) {
+            replayed += this.replay(this.logFile);
+        }
+        long totalMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Log.info("Índice recuperado em {} ms: {} peers do snapshot em {} ms e {} registros do log em {} ms ({} peers, {} arquivos).",
+                totalMillis, snapshotPeers, snapshotMillis, replayed, totalMillis - snapshotMillis, this.index.peerCount(), this.index.fileCount());
+
+        if (replayed > 0) {
+            this.writeSnapshot();
+            Files.deleteIfExists(this.logFile.toPath());
+            Files.deleteIfExists(this.oldLogFile.toPath());
+        }
+    }
+
+    /**
+     * Lê o snapshot mapeado em memória, sem cópias intermediárias de stream.
+     */
+    private int readSnapshot() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.snapshotFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot maior que 2 GB não é suportado.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int version = buffer.getInt() == SNAPSHOT_MAGIC ? buffer.getInt() : -1;
+            if (version != 1 && version != SNAPSHOT_VERSION) {
+                throw new IOException("Snapshot inválido: " + this.snapshotFile);
+            }
+
+            String[] dictionary = new String[buffer.getInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(buffer);
+            }
+
+            // A versão 1 não tem hashes de conteúdo
+            String[] hashDictionary = new String[version == 1 ? 0 : buffer.getInt()];
+            for (int i = 0; i < hashDictionary.length; i++) {
+                hashDictionary[i] = readString(buffer);
+            }
+
+            int count = buffer.getInt();
+            List<NapsterIndex.PeerRecord> peers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String ip = readString(buffer);
+                int port = buffer.getInt();
+                String[] filenames = new String[buffer.getInt()];
+                String[] hashes = new String[filenames.length];
+                for (int j = 0; j < filenames.length; j++) {
+                    filenames[j] = dictionary[buffer.getInt()];
+                    if (version != 1) {
+                        int hashId = buffer.getInt();
+                        hashes[j] = hashId == -1 ? null : hashDictionary[hashId];
+                    }
+                }
+                peers.add(new NapsterIndex.PeerRecord(ip, port, filenames, hashes));
+            }
+            this.index.restore(peers);
+
+            return count;
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reaplica os registros de um log, parando no primeiro registro cortado ou corrompido.
+     */
+    private long replay(File file) throws IOException {
+        long count = 0;
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024))) {
+            while (true) {
+                byte[] payload;
+                int expected;
+                try {
+                    int length = input.readInt();
+                    if (length < 0 || length > MAX_RECORD) {
+                        Log.warn("Registro inválido no fim de {}, ignorando o resto.", file);
+                        break;
+                    }
+                    payload = new byte[length];
+                    expected = input.readInt();
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != expected) {
+                    Log.warn("Registro corrompido no fim de {}, ignorando o resto.", file);
+                    break;
+                }
+
+                apply(this.index, new DataInputStream(new ByteArrayInputStream(payload)));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Aplica um registro no índice.
+     */
+    static void apply(NapsterIndex index, DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        String ip = record.readUTF();
+        int port = record.readInt();
+        String[] filenames = new String[record.readInt()];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = record.readUTF();
+        }
+
+        // Registros gravados antes dos hashes de conteúdo terminam aqui
+        String[] hashes = null;
+        if (record.available() > 0) {
+            hashes = new String[filenames.length];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = record.readUTF();
+            }
+        }
+
+        switch (type) {
+            case JOIN:
+                index.join(ip, port, filenames, hashes);
+                break;
+            case UPDATE:
+                index.update(ip, port, filenames, hashes);
+                break;
+            case REMOVE:
+                index.remove(ip, port, filenames);
+                break;
+            case LEAVE:
+                index.leave(ip, port);
+                break;
+            default:
+                throw new IOException("Tipo de registro desconhecido: " + type);
+        }
+    }
+}
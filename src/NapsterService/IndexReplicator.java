@@ -0,0 +1,174 @@
+package NapsterService;
+
+import Monitoring.Log;
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Envia as alterações do índice do primário de um shard para as suas réplicas de leitura.
+ *
+ * Cada alteração vira um registro no formato do IndexJournal e entra na fila de
+ * cada réplica. Uma thread por réplica envia a fila em lotes de até MAX_BATCH
+ * registros, na ordem, então as alterações de um peer chegam na réplica na
+ * mesma ordem em que foram aplicadas no primário. A replicação é assíncrona:
+ * a réplica pode ficar um pouco atrás do primário.
+ *
+ * Se uma réplica não responde, ou a fila dela passa de MAX_QUEUE registros, a
+ * fila é descartada e, quando a réplica voltar, ela recebe o índice inteiro
+ * (reset) antes das próximas alterações.
+ */
+public class IndexReplicator implements NapsterIndex.Listener {
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_QUEUE = 100_000;
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * Uma réplica e a fila de registros que ainda não foram enviados para ela.
+     */
+    private class Replica implements Runnable {
+        private final String host;
+        private final int port;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+        /**
+         * Enquanto for true as alterações não entram na fila, já que a réplica vai receber o índice inteiro.
+         */
+        private volatile boolean needsReset = true;
+        private boolean down;
+
+        Replica(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void offer(byte[] record) {
+            if (this.needsReset) {
+                return;
+            }
+            if (this.queue.size() >= MAX_QUEUE) {
+                this.needsReset = true;
+                return;
+            }
+            this.queue.add(record);
+        }
+
+        @Override
+        public void run() {
+            ReplicaService service = null;
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+
+            while (true) {
+                try {
+                    if (this.needsReset) {
+                        // As alterações feitas a partir daqui entram na fila e são aplicadas depois do reset
+                        this.queue.clear();
+                        this.needsReset = false;
+                        byte[][] records = IndexReplicator.this.snapshot();
+
+                        service = (ReplicaService) LocateRegistry.getRegistry(this.host, this.port)
+                                .lookup("rmi://" + this.host + "/napster-replica");
+                        service.reset(records);
+                        Log.info("Réplica {}:{} sincronizada com {} peers.", this.host, this.port, records.length);
+                        this.down = false;
+                    }
+
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, MAX_BATCH - 1);
+                    service.apply(batch.toArray(new byte[batch.size()][]));
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    if (!this.down) {
+                        Log.warn("Réplica {}:{} fora do ar: {}", this.host, this.port, e.getMessage());
+                        this.down = true;
+                    }
+                    this.needsReset = true;
+                    batch.clear();
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private final NapsterIndex index;
+    private final List<Replica> replicas = new ArrayList<>();
+
+    /**
+     * @param replicas endereços dos registros RMI das réplicas, no formato <host>:<porta>
+     */
+    public IndexReplicator(NapsterIndex index, List<String> replicas) {
+        this.index = index;
+        for (String address : replicas) {
+            int separator = address.lastIndexOf(':');
+            Replica replica = new Replica(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+            this.replicas.add(replica);
+
+            Thread thread = new Thread(replica, "index-replicator-" + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        index.addListener(this);
+    }
+
+    @Override
+    public void onJoin(NapsterPeer peer) {
+        this.offer(encode(IndexJournal.JOIN, peer, peer.getFilenames()));
+    }
+
+    @Override
+    public void onUpdate(NapsterPeer peer, List<String> filenames) {
+        this.offer(encode(IndexJournal.UPDATE, peer, filenames.toArray(new String[filenames.size()])));
+    }
+
+    @Override
+    public void onRemove(NapsterPeer peer, List<String> filenames) {
+        this.offer(encode(IndexJournal.REMOVE, peer, filenames.toArray(new String[filenames.size()])));
+    }
+
+    @Override
+    public void onLeave(NapsterPeer peer) {
+        this.offer(encode(IndexJournal.LEAVE, peer, new String[0]));
+    }
+
+    private void offer(byte[] record) {
+        for (Replica replica : this.replicas) {
+            replica.offer(record);
+        }
+    }
+
+    /**
+     * Um registro JOIN para cada peer do índice.
+     */
+    private byte[][] snapshot() {
+        List<byte[]> records = new ArrayList<>();
+        this.index.forEachPeer(peer -> records.add(encode(IndexJournal.JOIN, peer, peer.getFilenames())));
+
+        return records.toArray(new byte[records.size()][]);
+    }
+
+    private static byte[] encode(byte type, NapsterPeer peer, String[] filenames) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            IndexJournal.writeRecord(new DataOutputStream(record), type, peer, filenames);
+        } catch (IOException e) {
+            // ByteArrayOutputStream não lança IOException
+            throw new UncheckedIOException(e);
+        }
+
+        return record.toByteArray();
+    }
+}
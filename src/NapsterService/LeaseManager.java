@@ -0,0 +1,153 @@
+package NapsterService;
+
+import Monitoring.Log;
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controla os leases dos peers com uma timer wheel.
+ *
+ * A roda tem um slot por segundo, e cada peer fica no slot do segundo em
+ * que o seu lease vence. O heartbeat só atualiza o vencimento do peer, sem
+ * mexer na roda. A cada tick somente os peers do slot atual são olhados: os
+ * que renovaram o lease voltam para o slot do novo vencimento, e os demais
+ * são removidos do índice. Assim o custo por tick não depende da quantidade
+ * total de peers.
+ */
+public class LeaseManager implements NapsterIndex.Listener {
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 512;
+
+    private final NapsterIndex index;
+    private final long leaseMillis;
+
+    private final List<NapsterPeer>[] wheel;
+    private volatile long currentTick;
+    private final AtomicLong expired = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LeaseManager(NapsterIndex index, long leaseMillis) {
+        this.index = index;
+        this.leaseMillis = leaseMillis;
+        this.wheel = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel[i] = new ArrayList<>();
+        }
+        this.currentTick = System.currentTimeMillis() / TICK_MILLIS;
+
+        index.addListener(this);
+
+        // Peers recuperados do disco ganham um lease novo para ter tempo de enviar heartbeat
+        long expiry = System.currentTimeMillis() + leaseMillis;
+        index.forEachPeer(peer -> {
+            peer.renewLease(expiry);
+            this.schedule(peer);
+        });
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLeaseSeconds() {
+        return this.leaseMillis / 1000;
+    }
+
+    public long getExpiredCount() {
+        return this.expired.get();
+    }
+
+    /**
+     * Renova o lease de um peer registrado.
+     *
+     * @return false se o peer não está registrado.
+     */
+    public boolean renew(String ip, int port) {
+        NapsterPeer peer = this.index.getPeer(ip, port);
+        if (peer == null) {
+            return false;
+        }
+
+        peer.renewLease(System.currentTimeMillis() + this.leaseMillis);
+        return true;
+    }
+
+    @Override
+    public void onJoin(NapsterPeer peer) {
+        peer.renewLease(System.currentTimeMillis() + this.leaseMillis);
+        this.schedule(peer);
+    }
+
+    @Override
+    public void onUpdate(NapsterPeer peer, List<String> filenames) {
+    }
+
+    @Override
+    public void onRemove(NapsterPeer peer, List<String> filenames) {
+    }
+
+    @Override
+    public void onLeave(NapsterPeer peer) {
+        // O peer continua no slot e é descartado quando o slot for processado
+    }
+
+    /**
+     * Coloca o peer no slot do seu vencimento, ou no próximo tick se ele já venceu.
+     *
+     * Vencimentos além de uma volta da roda caem num slot anterior, onde o peer
+     * é só reagendado.
+     */
+    private void schedule(NapsterPeer peer) {
+        long tick = Math.max(peer.getLeaseExpiry() / TICK_MILLIS, this.currentTick + 1);
+        List<NapsterPeer> slot = this.wheel[(int) (tick % WHEEL_SIZE)];
+        synchronized (slot) {
+            slot.add(peer);
+        }
+    }
+
+    /**
+     * Processa os slots de todos os ticks que já passaram.
+     */
+    private void advance() {
+        long target = System.currentTimeMillis() / TICK_MILLIS;
+
+        while (this.currentTick < target) {
+            this.currentTick++;
+
+            List<NapsterPeer> slot = this.wheel[(int) (this.currentTick % WHEEL_SIZE)];
+            List<NapsterPeer> due;
+            synchronized (slot) {
+                due = new ArrayList<>(slot);
+                slot.clear();
+            }
+
+            long now = System.currentTimeMillis();
+            for (NapsterPeer peer : due) {
+                if (this.index.getPeer(peer.getIp(), peer.getPort()) != peer) {
+                    // O peer saiu ou fez JOIN de novo, o registro novo tem o seu próprio slot
+                    continue;
+                }
+
+                if (peer.getLeaseExpiry() > now) {
+                    this.schedule(peer);
+                } else if (this.index.expire(peer, now)) {
+                    this.expired.incrementAndGet();
+                    Log.info("Peer {}:{} removido por falta de heartbeat", peer.getIp(), peer.getPort());
+                } else {
+                    this.schedule(peer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package NapsterService;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cliente de um índice dividido em shards, que implementa o NapsterService
+ * escolhendo o servidor de cada chamada.
+ *
+ * Cada nome de arquivo pertence ao shard shardOf(nome), e cada shard tem um
+ * servidor primário e zero ou mais réplicas de leitura (IndexReplicator):
+ * - SEARCH, nas suas variações, vai para o shard do arquivo, alternando entre
+ *   o primário e as réplicas. Se um servidor não responde, tenta o próximo;
+ * - UPDATE vai para o primário do shard do arquivo;
+ * - SEARCH, UPDATE e REMOVE em lote são divididos por shard e enviados em paralelo;
+ * - JOIN vai para todos os primários ao mesmo tempo (fan-out), cada um com os
+ *   arquivos do seu shard. HEARTBEAT, LEAVE e REPORT também vão para todos,
+ *   já que cada shard tem o seu próprio registro do peer;
+ * - FIND vai para todos os shards, e os resultados são juntados pela
+ *   relevância (FilenameIndex.score).
+ *
+ * A configuração vem da propriedade napster.servers: os shards separados por
+ * vírgula e, em cada shard, o primário seguido das réplicas separados por '|'.
+ * Por exemplo, dois shards, o primeiro com uma réplica:
+ * 127.0.0.1:1099|127.0.0.1:1101,127.0.0.1:1100
+ *
+ * O hash de conteúdo é resolvido dentro do shard do nome, então arquivos com o
+ * mesmo conteúdo e nomes de shards diferentes não aparecem um na busca do outro.
+ */
+public class NapsterCluster implements NapsterService {
+    /**
+     * Chamada feita a um shard dentro de um fan-out.
+     */
+    private interface ShardCall<T> {
+        T call(int shard) throws RemoteException;
+    }
+
+    /**
+     * Chamada feita a um servidor de um shard.
+     */
+    private interface ServerCall<T> {
+        T call(NapsterService server) throws RemoteException;
+    }
+
+    /**
+     * O primário de um shard e as suas réplicas.
+     */
+    private static class Shard {
+        private final NapsterService primary;
+        private final NapsterService[] servers;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Shard(NapsterService[] servers) {
+            this.primary = servers[0];
+            this.servers = servers;
+        }
+
+        /**
+         * Faz uma leitura num dos servidores do shard, alternando entre eles.
+         */
+        <T> T read(ServerCall<T> call) throws RemoteException {
+            int start = Math.floorMod(this.next.getAndIncrement(), this.servers.length);
+            RemoteException last = null;
+            for (int i = 0; i < this.servers.length; i++) {
+                try {
+                    return call.call(this.servers[(start + i) % this.servers.length]);
+                } catch (RemoteException e) {
+                    last = e;
+                }
+            }
+
+            throw last;
+        }
+    }
+
+    private final Shard[] shards;
+    private final ExecutorService executor;
+
+    private NapsterCluster(Shard[] shards) {
+        this.shards = shards;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "napster-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Conecta nos servidores da configuração. Com um único servidor, retorna o próprio stub dele.
+     *
+     * @param servers shards separados por vírgula, e em cada um os servidores <host>:<porta> separados por '|'
+     */
+    public static NapsterService connect(String servers) throws RemoteException, NotBoundException {
+        String[] shardList = servers.split(",");
+        Shard[] shards = new Shard[shardList.length];
+        for (int i = 0; i < shardList.length; i++) {
+            String[] addresses = shardList[i].trim().split("\\|");
+            NapsterService[] stubs = new NapsterService[addresses.length];
+            for (int j = 0; j < addresses.length; j++) {
+                stubs[j] = lookup(addresses[j].trim());
+            }
+            shards[i] = new Shard(stubs);
+        }
+
+        if (shards.length == 1 && shards[0].servers.length == 1) {
+            return shards[0].primary;
+        }
+
+        return new NapsterCluster(shards);
+    }
+
+    private static NapsterService lookup(String address) throws RemoteException, NotBoundException {
+        int separator = address.lastIndexOf(':');
+        String host = address.substring(0, separator);
+        int port = Integer.parseInt(address.substring(separator + 1));
+
+        return (NapsterService) LocateRegistry.getRegistry(host, port).lookup("rmi://" + host + "/napster");
+    }
+
+    /**
+     * Shard de um nome de arquivo. String.hashCode é o mesmo em todas as JVMs.
+     */
+    public static int shardOf(String filename, int shards) {
+        int hash = filename.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards);
+    }
+
+    public int shardCount() {
+        return this.shards.length;
+    }
+
+    private Shard shard(String filename) {
+        return this.shards[shardOf(filename, this.shards.length)];
+    }
+
+    /**
+     * Posições de filenames que pertencem a cada shard.
+     */
+    private List<List<Integer>> group(String[] filenames) {
+        List<List<Integer>> groups = new ArrayList<>(this.shards.length);
+        for (int i = 0; i < this.shards.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (int i = 0; i < filenames.length; i++) {
+            groups.get(shardOf(filenames[i], this.shards.length)).add(i);
+        }
+
+        return groups;
+    }
+
+    private static String[] pick(String[] values, List<Integer> positions) {
+        if (values == null) {
+            return null;
+        }
+
+        String[] picked = new String[positions.size()];
+        for (int i = 0; i < picked.length; i++) {
+            picked[i] = values[positions.get(i)];
+        }
+
+        return picked;
+    }
+
+    /**
+     * Faz a mesma chamada em todos os shards ao mesmo tempo e espera todas as respostas.
+     *
+     * @return a resposta de cada shard, na ordem dos shards.
+     */
+    private <T> List<T> fanOut(ShardCall<T> call) throws RemoteException {
+        List<Future<T>> futures = new ArrayList<>(this.shards.length);
+        for (int i = 0; i < this.shards.length; i++) {
+            int shard = i;
+            futures.add(this.executor.submit(() -> call.call(shard)));
+        }
+
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Falha ao consultar os shards", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Consulta aos shards interrompida", e);
+        }
+
+        return results;
+    }
+
+    /**
+     * Junta as respostas de um fan-out: a primeira que não for <method>_OK, ou
+     * a primeira resposta com o menor lease no argumento leaseArg.
+     */
+    private static NapsterMessage firstErrorOrMinLease(List<NapsterMessage> responses, String method, int leaseArg) {
+        NapsterMessage best = null;
+        for (NapsterMessage response : responses) {
+            if (!response.getMessage().equals(method + "_OK")) {
+                return response;
+            }
+            if (best == null || (response.getArgs().length > leaseArg && best.getArgs().length > leaseArg
+                    && Long.parseLong(response.getArgs()[leaseArg]) < Long.parseLong(best.getArgs()[leaseArg]))) {
+                best = response;
+            }
+        }
+
+        return best;
+    }
+
+    public NapsterMessage search(String filename, String ip, int port) throws RemoteException {
+        return this.shard(filename).read(server -> server.search(filename, ip, port));
+    }
+
+    public NapsterMessage join(String[] filenames, String ip, int port) throws RemoteException {
+        return this.join(filenames, null, ip, port);
+    }
+
+    public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws RemoteException {
+        if (hashes != null && hashes.length != filenames.length) {
+            return new NapsterMessage("JOIN", "JOIN_ERROR", new String[] { "Invalid hashes" } );
+        }
+
+        // O peer é registrado em todos os shards, mesmo nos que não têm nenhum arquivo dele, para receber os heartbeats
+        List<List<Integer>> groups = this.group(filenames);
+        List<NapsterMessage> responses = this.fanOut(shard -> {
+            String[] shardFilenames = pick(filenames, groups.get(shard));
+            NapsterService primary = this.shards[shard].primary;
+            return hashes == null ? primary.join(shardFilenames, ip, port)
+                    : primary.join(shardFilenames, pick(hashes, groups.get(shard)), ip, port);
+        });
+
+        return firstErrorOrMinLease(responses, "JOIN", 1);
+    }
+
+    public NapsterMessage update(String filename, String ip, int port) throws RemoteException {
+        return this.shard(filename).primary.update(filename, ip, port);
+    }
+
+    public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws RemoteException {
+        return this.shard(filename).read(server -> server.searchPeers(filename, offset, limit, ip, port));
+    }
+
+    public SearchResult[] searchBatch(String[] filenames, int limit, String ip, int port) throws RemoteException {
+        List<List<Integer>> groups = this.group(filenames);
+        List<SearchResult[]> responses = this.fanOut(shard -> groups.get(shard).isEmpty() ? new SearchResult[0]
+                : this.shards[shard].read(server -> server.searchBatch(pick(filenames, groups.get(shard)), limit, ip, port)));
+
+        SearchResult[] results = new SearchResult[filenames.length];
+        for (int shard = 0; shard < this.shards.length; shard++) {
+            List<Integer> positions = groups.get(shard);
+            for (int i = 0; i < positions.size(); i++) {
+                results[positions.get(i)] = responses.get(shard)[i];
+            }
+        }
+
+        return results;
+    }
+
+    public NapsterMessage updateBatch(String[] filenames, String ip, int port) throws RemoteException {
+        return this.updateBatch(filenames, null, ip, port);
+    }
+
+    public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws RemoteException {
+        if (hashes != null && hashes.length != filenames.length) {
+            return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Invalid hashes" } );
+        }
+        // Sem arquivos nenhum shard seria chamado: o primeiro diz se o peer está registrado, já que ele está em todos
+        if (filenames.length == 0) {
+            return this.shards[0].primary.updateBatch(filenames, ip, port);
+        }
+
+        List<List<Integer>> groups = this.group(filenames);
+        List<NapsterMessage> responses = this.fanOut(shard -> {
+            if (groups.get(shard).isEmpty()) {
+                return new NapsterMessage("UPDATE", "UPDATE_OK", new String[0]);
+            }
+            String[] shardFilenames = pick(filenames, groups.get(shard));
+            NapsterService primary = this.shards[shard].primary;
+            return hashes == null ? primary.updateBatch(shardFilenames, ip, port)
+                    : primary.updateBatch(shardFilenames, pick(hashes, groups.get(shard)), ip, port);
+        });
+
+        String[] args = new String[filenames.length];
+        for (int shard = 0; shard < this.shards.length; shard++) {
+            NapsterMessage response = responses.get(shard);
+            if (!response.getMessage().equals("UPDATE_OK")) {
+                return response;
+            }
+            List<Integer> positions = groups.get(shard);
+            for (int i = 0; i < positions.size(); i++) {
+                args[positions.get(i)] = response.getArgs()[i];
+            }
+        }
+
+        return new NapsterMessage("UPDATE", "UPDATE_OK", args);
+    }
+
+    public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws RemoteException {
+        if (filenames.length == 0) {
+            return this.shards[0].primary.removeBatch(filenames, ip, port);
+        }
+
+        List<List<Integer>> groups = this.group(filenames);
+        List<NapsterMessage> responses = this.fanOut(shard -> groups.get(shard).isEmpty() ? new NapsterMessage("REMOVE", "REMOVE_OK", new String[0])
+                : this.shards[shard].primary.removeBatch(pick(filenames, groups.get(shard)), ip, port));
+
+        String[] args = new String[filenames.length];
+        for (int shard = 0; shard < this.shards.length; shard++) {
+            NapsterMessage response = responses.get(shard);
+            if (!response.getMessage().equals("REMOVE_OK")) {
+                return response;
+            }
+            List<Integer> positions = groups.get(shard);
+            for (int i = 0; i < positions.size(); i++) {
+                args[positions.get(i)] = response.getArgs()[i];
+            }
+        }
+
+        return new NapsterMessage("REMOVE", "REMOVE_OK", args);
+    }
+
+    public SearchResult searchContent(String filename, int offset, int limit, String ip, int port) throws RemoteException {
+        return this.shard(filename).read(server -> server.searchContent(filename, offset, limit, ip, port));
+    }
+
+    /**
+     * O enxame de um conteúdo fica no primário do shard do hash, como se o hash fosse um nome de arquivo.
+     */
+    public SearchResult swarm(String contentHash, int limit, String ip, int port) throws RemoteException {
+        return this.shard(contentHash).primary.swarm(contentHash, limit, ip, port);
+    }
+
+    public NapsterMessage leaveSwarm(String contentHash, String ip, int port) throws RemoteException {
+        return this.shard(contentHash).primary.leaveSwarm(contentHash, ip, port);
+    }
+
+    public NapsterMessage heartbeat(String ip, int port) throws RemoteException {
+        return firstErrorOrMinLease(this.fanOut(shard -> this.shards[shard].primary.heartbeat(ip, port)), "HEARTBEAT", 0);
+    }
+
+    public NapsterMessage heartbeat(String ip, int port, int activeUploads) throws RemoteException {
+        return firstErrorOrMinLease(this.fanOut(shard -> this.shards[shard].primary.heartbeat(ip, port, activeUploads)), "HEARTBEAT", 0);
+    }
+
+    public NapsterMessage report(String[] peers, long[] bytes, long[] millis, boolean[] failed, String ip, int port) throws RemoteException {
+        List<NapsterMessage> responses = this.fanOut(shard -> this.shards[shard].primary.report(peers, bytes, millis, failed, ip, port));
+
+        int updated = 0;
+        for (NapsterMessage response : responses) {
+            if (!response.getMessage().equals("REPORT_OK")) {
+                return response;
+            }
+            updated += Integer.parseInt(response.getArgs()[0]);
+        }
+
+        return new NapsterMessage("REPORT", "REPORT_OK", new String[] { String.valueOf(updated) } );
+    }
+
+    /**
+     * LEAVE em todos os shards. Basta um shard conhecer o peer para a resposta ser LEAVE_OK.
+     */
+    public NapsterMessage leave(String ip, int port) throws RemoteException {
+        List<NapsterMessage> responses = this.fanOut(shard -> this.shards[shard].primary.leave(ip, port));
+        for (NapsterMessage response : responses) {
+            if (response.getMessage().equals("LEAVE_OK")) {
+                return response;
+            }
+        }
+
+        return responses.get(0);
+    }
+
+    /**
+     * FIND em todos os shards. Cada shard retorna os seus primeiros offset + limit
+     * nomes, já ordenados, e as listas são intercaladas pela relevância.
+     */
+    public NapsterMessage find(String query, String mode, int offset, int limit, String ip, int port) throws RemoteException {
+        int pageLimit = limit <= 0 ? FilenameIndex.MAX_LIMIT : Math.min(limit, FilenameIndex.MAX_LIMIT);
+        int shardLimit = Math.min(FilenameIndex.MAX_LIMIT, Math.max(0, offset) + pageLimit);
+        List<NapsterMessage> responses = this.fanOut(shard -> this.shards[shard].read(server -> server.find(query, mode, 0, shardLimit, ip, port)));
+
+        int[] heads = new int[responses.size()];
+        List<String> merged = new ArrayList<>();
+        while (true) {
+            int best = -1;
+            int bestScore = -1;
+            for (int shard = 0; shard < responses.size(); shard++) {
+                NapsterMessage response = responses.get(shard);
+                if (!response.getMessage().equals("FIND_OK")) {
+                    return response;
+                }
+                if (heads[shard] < response.getArgs().length) {
+                    int score = FilenameIndex.score(query, response.getArgs()[heads[shard]]);
+                    if (score > bestScore) {
+                        best = shard;
+                        bestScore = score;
+                    }
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            merged.add(responses.get(best).getArgs()[heads[best]++]);
+        }
+
+        List<String> page = merged.subList(Math.min(merged.size(), Math.max(0, offset)), Math.min(merged.size(), Math.max(0, offset) + pageLimit));
+        return new NapsterMessage("FIND", "FIND_OK", page.toArray(new String[page.size()]));
+    }
+}
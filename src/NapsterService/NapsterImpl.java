@@ -1,23 +1,66 @@
 package NapsterService;
 
+import Monitoring.Histogram;
+import Monitoring.Log;
+import Monitoring.Metrics;
+
+import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NapsterImpl extends UnicastRemoteObject implements NapsterService {
     /**
      * Classe para representar um peer registrado no Servidor Napster.
      */
     public static class NapsterPeer {
-        private String ip;
-        private int port;
-        private ArrayList<String> filenames;
-
-        public NapsterPeer(String ip, int port, String[] filenames) {
+        static final int NO_HASH = -1;
+        static final long[] EMPTY_FILES = new long[0];
+
+        private final String ip;
+        private final int port;
+
+        /**
+         * Id do peer nas posting lists do índice.
+         */
+        private final int id;
+        private final NapsterIndex index;
+
+        /**
+         * Arquivos do peer, cada um com o id do nome nos 32 bits altos e o id do
+         * hash de conteúdo (NO_HASH se não tem) nos 32 bits baixos, ordenados
+         * pelo id do nome. Só é trocado dentro do lock do peer no índice.
+         */
+        private volatile long[] files = EMPTY_FILES;
+
+        /**
+         * IPv4 empacotado num int, usado no SearchResult. Só vale se ipv4 for true.
+         */
+        private final int address;
+        private final boolean ipv4;
+
+        /**
+         * Instante (currentTimeMillis) em que o lease do peer vence, renovado a cada heartbeat.
+         */
+        private volatile long leaseExpiry;
+
+        /**
+         * Sinais de carga usados para ordenar os peers no SEARCH (PeerRanking).
+         * Não são gravados no journal: depois de um restart eles recomeçam do zero.
+         */
+        private volatile int activeUploads;
+        private double throughput;
+        private double failures;
+        private long failuresUpdated;
+
+        NapsterPeer(NapsterIndex index, int id, String ip, int port) {
+            this.index = index;
+            this.id = id;
             this.ip = ip;
             this.port = port;
-            this.filenames = new ArrayList<>(Arrays.asList(filenames));
+            long address = SearchResult.parseIpv4(ip);
+            this.ipv4 = address != -1L;
+            this.address = (int) address;
         }
 
         public String getIp() {
@@ -28,46 +71,271 @@ public class NapsterImpl extends UnicastRemoteObject implements NapsterService {
             return this.port;
         }
 
+        public int getAddress() {
+            return this.address;
+        }
+
+        public boolean isIpv4() {
+            return this.ipv4;
+        }
+
+        public long getLeaseExpiry() {
+            return this.leaseExpiry;
+        }
+
+        public void renewLease(long leaseExpiry) {
+            this.leaseExpiry = leaseExpiry;
+        }
+
+        /**
+         * @return a quantidade de uploads em andamento informada no último heartbeat.
+         */
+        public int getActiveUploads() {
+            return this.activeUploads;
+        }
+
+        public void setActiveUploads(int activeUploads) {
+            this.activeUploads = Math.max(0, activeUploads);
+        }
+
+        /**
+         * @return a média móvel da velocidade de upload informada por quem baixou do peer, em bytes/s, ou 0 se ninguém informou.
+         */
+        public synchronized double getThroughput() {
+            return this.throughput;
+        }
+
+        /**
+         * Registra um download feito deste peer, informado por quem baixou.
+         */
+        public synchronized void recordTransfer(long bytes, long millis) {
+            if (bytes <= 0 || millis <= 0) {
+                return;
+            }
+
+            double sample = bytes * 1000.0 / millis;
+            this.throughput = this.throughput == 0 ? sample : this.throughput + PeerRanking.THROUGHPUT_ALPHA * (sample - this.throughput);
+        }
+
+        /**
+         * Registra uma falha informada por quem tentou baixar do peer.
+         */
+        public synchronized void recordFailure(long now) {
+            this.failures = this.getFailures(now) + 1;
+            this.failuresUpdated = now;
+        }
+
+        /**
+         * @return a quantidade de falhas recentes, que cai pela metade a cada PeerRanking.FAILURE_HALF_LIFE_MILLIS.
+         */
+        public synchronized double getFailures(long now) {
+            if (this.failures == 0) {
+                return 0;
+            }
+
+            return this.failures * Math.pow(0.5, (double) (now - this.failuresUpdated) / PeerRanking.FAILURE_HALF_LIFE_MILLIS);
+        }
+
         public String[] getFilenames() {
-            return this.filenames.toArray(new String[this.filenames.size()]);
+            long[] files = this.files;
+            String[] filenames = new String[files.length];
+            for (int i = 0; i < files.length; i++) {
+                filenames[i] = this.index.filename(fileId(files[i]));
+            }
+            return filenames;
+        }
+
+        public int getFileCount() {
+            return this.files.length;
         }
 
         public boolean hasFile(String filename) {
-            for (String file : this.filenames) {
-                if (file.equals(filename)) {
-                    return true;
-                }
+            return indexOf(this.files, this.index.filenameId(filename)) >= 0;
+        }
+
+        /**
+         * @return o hash de conteúdo do arquivo, ou null se o peer não o publicou.
+         */
+        public String getContentHash(String filename) {
+            long[] files = this.files;
+            int index = indexOf(files, this.index.filenameId(filename));
+            if (index < 0 || hashId(files[index]) == NO_HASH) {
+                return null;
             }
+            return this.index.contentHash(hashId(files[index]));
+        }
+
+        int getId() {
+            return this.id;
+        }
+
+        long[] getFiles() {
+            return this.files;
+        }
+
+        void setFiles(long[] files) {
+            this.files = files;
+        }
 
-            return false;
+        static long entry(int fileId, int hashId) {
+            return (long) fileId << 32 | (hashId & 0xFFFFFFFFL);
+        }
+
+        static int fileId(long entry) {
+            return (int) (entry >>> 32);
+        }
+
+        static int hashId(long entry) {
+            return (int) entry;
+        }
+
+        /**
+         * Busca binária pelo id do nome.
+         *
+         * @return a posição do arquivo em files, ou -1 se ele não está lá.
+         */
+        static int indexOf(long[] files, int fileId) {
+            int low = 0;
+            int high = files.length - 1;
+            while (fileId >= 0 && low <= high) {
+                int middle = (low + high) >>> 1;
+                int current = fileId(files[middle]);
+                if (current < fileId) {
+                    low = middle + 1;
+                } else if (current > fileId) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
         }
+    }
 
-        public void addFile(String filename) {
-            this.filenames.add(filename);
+    /**
+     * Latência, quantidade de chamadas e de erros de um método RMI. As
+     * sobrecargas de um método (join com e sem hashes, por exemplo) somam
+     * nas mesmas métricas.
+     */
+    private static class MethodMetrics {
+        final Histogram latency;
+        final LongAdder requests;
+        final LongAdder errors;
+
+        MethodMetrics(String method) {
+            this.latency = Metrics.histogram("napster_rmi_request_seconds", "Latência das requisições RMI", "method", method);
+            this.requests = Metrics.counter("napster_rmi_requests_total", "Requisições RMI recebidas", "method", method);
+            this.errors = Metrics.counter("napster_rmi_errors_total", "Requisições RMI com resposta _ERROR ou exceção", "method", method);
         }
     }
 
+    private interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private static final MethodMetrics SEARCH = new MethodMetrics("search");
+    private static final MethodMetrics SEARCH_PEERS = new MethodMetrics("searchPeers");
+    private static final MethodMetrics SEARCH_BATCH = new MethodMetrics("searchBatch");
+    private static final MethodMetrics SEARCH_CONTENT = new MethodMetrics("searchContent");
+    private static final MethodMetrics JOIN = new MethodMetrics("join");
+    private static final MethodMetrics UPDATE = new MethodMetrics("update");
+    private static final MethodMetrics REMOVE = new MethodMetrics("remove");
+    private static final MethodMetrics HEARTBEAT = new MethodMetrics("heartbeat");
+    private static final MethodMetrics REPORT = new MethodMetrics("report");
+    private static final MethodMetrics LEAVE = new MethodMetrics("leave");
+    private static final MethodMetrics FIND = new MethodMetrics("find");
+    private static final MethodMetrics SWARM = new MethodMetrics("swarm");
+
     private static final long serialVersionUID = 1L;
 
     /**
-     * HashMap para armazenar os peers registrados no Servidor Napster.
-     *
-     * A chave é composta por <ip>:<port>.
+     * Índice concorrente com os peers registrados e os arquivos de cada um.
      */
-    private HashMap<String, NapsterPeer> peers;
+    private final NapsterIndex index;
 
     /**
-     * HashMap para a busca de arquivos, retornando uma lista de peers que possuem.
-     *
-     * A chave é o nome do arquivo.
+     * Remove os peers que pararam de enviar heartbeat. É null nas réplicas,
+     * que só removem peers quando o primário remove.
+     */
+    private final LeaseManager leases;
+
+    /**
+     * true numa réplica de leitura, que recusa as alterações vindas dos peers.
+     */
+    private final boolean replica;
+
+    /**
+     * Ordem dos peers nas respostas do SEARCH.
      */
-    private HashMap<String, ArrayList<NapsterPeer>> fileToPeers;
+    private final PeerRanking ranking;
+
+    /**
+     * O que as buscas calculam para cada nome de arquivo, invalidado pelo índice.
+     */
+    private final SearchCache cache;
+
+    /**
+     * Peers baixando cada conteúdo, que já podem enviar os chunks que têm. É null nas réplicas.
+     */
+    private final SwarmTracker swarms;
 
     public NapsterImpl() throws java.rmi.RemoteException {
+        this(new NapsterIndex());
+    }
+
+    /**
+     * Cria o serviço em cima de um índice já existente (recuperado do journal, por exemplo).
+     */
+    public NapsterImpl(NapsterIndex index) throws java.rmi.RemoteException {
+        this(index, false);
+    }
+
+    /**
+     * @param replica true para uma réplica de leitura, cujo índice só é alterado pelo primário (ReplicaImpl)
+     */
+    public NapsterImpl(NapsterIndex index, boolean replica) throws java.rmi.RemoteException {
         super();
 
-        this.peers = new HashMap<>();
-        this.fileToPeers = new HashMap<>();
+        this.index = index;
+        this.replica = replica;
+        this.leases = replica ? null : new LeaseManager(index, Long.getLong("napster.lease.seconds", 60) * 1000);
+        this.ranking = PeerRanking.fromProperties();
+        this.cache = SearchCache.fromProperties();
+        index.addChangeListener(this.cache);
+        this.swarms = replica ? null : SwarmTracker.fromProperties();
+        if (this.swarms != null) {
+            index.addListener(this.swarms);
+        }
+
+        Metrics.gauge("napster_index_peers", "Peers registrados no índice", index::peerCount);
+        Metrics.gauge("napster_index_files", "Nomes de arquivo distintos no índice", index::fileCount);
+        Metrics.gauge("napster_index_contents", "Hashes de conteúdo distintos no índice", index::contentCount);
+    }
+
+    /**
+     * Executa uma requisição gravando a latência e contando os erros.
+     */
+    private <T> T timed(MethodMetrics metrics, RemoteCall<T> call) throws RemoteException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = result instanceof NapsterMessage && ((NapsterMessage) result).getMessage().endsWith("_ERROR");
+            return result;
+        } finally {
+            metrics.latency.record(System.nanoTime() - start);
+            metrics.requests.increment();
+            if (failed) {
+                metrics.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Resposta das réplicas para as requisições que alteram o índice.
+     */
+    private static NapsterMessage readOnly(String method) {
+        return new NapsterMessage(method, method + "_ERROR", new String[] { "Read-only replica" } );
     }
 
     /**
@@ -75,23 +343,127 @@ public class NapsterImpl extends UnicastRemoteObject implements NapsterService {
      *
      * @param ip   IP do peer
      * @param port Porta do peer
-     * @return retorna SEARCH_OK com uma lista de peers que possuem o arquivo buscado como o primeiro argumento.
+     * @return retorna SEARCH_OK com uma lista de peers que possuem o arquivo buscado como o primeiro argumento, na ordem do PeerRanking.
      */
     public NapsterMessage search(String filename, String ip, int port) throws java.rmi.RemoteException {
-        System.out.println("Peer " + ip + ":" + port + " solicitou o arquivo " + filename);
+        return this.timed(SEARCH, () -> {
+            Log.debug("Peer {}:{} solicitou o arquivo {}", ip, port, filename);
+
+            // Na ordem de chegada o texto só muda quando os peers do arquivo mudam, então vem do cache
+            String peers = this.ranking.getMode() == PeerRanking.Mode.INSERTION ? this.cache.peers(filename, this::peersString) : this.peersString(filename);
+
+            return new NapsterMessage("SEARCH", "SEARCH_OK", new String[] {peers});
+        });
+    }
+
+    /**
+     * Os peers que possuem o arquivo, um <ip>:<porta> por linha, na ordem do PeerRanking.
+     */
+    private String peersString(String filename) {
+        List<NapsterPeer> peers = this.ranking.order(this.index.getPeers(filename), 0);
+        StringBuilder peersString = new StringBuilder();
+
+        for (NapsterPeer peer : peers) {
+            peersString.append(peer.getIp()).append(':').append(peer.getPort()).append('\n');
+        }
+
+        return peersString.toString();
+    }
+
+    /**
+     * Versão tipada da requisição SEARCH, com paginação.
+     *
+     * @param offset posição do primeiro peer retornado
+     * @param limit  quantidade máxima de peers retornados, ou 0 para todos
+     * @return os peers que possuem o arquivo, sem nenhuma String por peer quando o ip é IPv4.
+     */
+    public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(SEARCH_PEERS, () -> {
+            Log.debug("Peer {}:{} solicitou o arquivo {}", ip, port, filename);
+
+            return this.page(filename, this.index.getPeers(filename), offset, limit);
+        });
+    }
+
+    /**
+     * SEARCH de vários arquivos numa única chamada RMI.
+     *
+     * @param limit quantidade máxima de peers por arquivo, ou 0 para todos
+     * @return um SearchResult por arquivo, na mesma ordem de filenames.
+     */
+    public SearchResult[] searchBatch(String[] filenames, int limit, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(SEARCH_BATCH, () -> {
+            Log.debug("Peer {}:{} solicitou {} arquivos", ip, port, filenames.length);
+
+            SearchResult[] results = new SearchResult[filenames.length];
+            for (int i = 0; i < filenames.length; i++) {
+                results[i] = this.contentResult(filenames[i], 0, limit);
+            }
+
+            return results;
+        });
+    }
 
-        if (!this.fileToPeers.containsKey(filename)) {
-            return new NapsterMessage("SEARCH", "SEARCH_OK", new String[] {""});
+    /**
+     * SEARCH pelo conteúdo do arquivo.
+     *
+     * Descobre o hash de conteúdo do nome buscado e retorna todos os peers que
+     * possuem esse conteúdo, mesmo com outro nome. O hash vai no resultado para
+     * que o download seja validado. Se ninguém publicou o hash do arquivo, o
+     * resultado é o mesmo de searchPeers, sem hash.
+     */
+    public SearchResult searchContent(String filename, int offset, int limit, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(SEARCH_CONTENT, () -> {
+            Log.debug("Peer {}:{} solicitou o arquivo {}", ip, port, filename);
+
+            return this.contentResult(filename, offset, limit);
+        });
+    }
+
+    private SearchResult contentResult(String filename, int offset, int limit) {
+        String contentHash = this.cache.contentHash(filename, this.index::resolveContent);
+        if (contentHash == null) {
+            return this.page(filename, this.index.getPeers(filename), offset, limit);
         }
 
-        ArrayList<NapsterPeer> peers = this.fileToPeers.get(filename);
-        String peersString = "";
+        SearchResult result = this.page(filename, this.index.getPeersByContent(contentHash), offset, limit);
+        result.setContentHash(contentHash);
+        return result;
+    }
+
+    /**
+     * Ordena os peers pelo PeerRanking e monta a página pedida.
+     */
+    private SearchResult page(String filename, List<NapsterPeer> peers, int offset, int limit) {
+        int total = peers.size();
+        int count = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, offset) + limit) : 0;
+
+        return toSearchResult(filename, this.ranking.order(peers, count), total, offset, limit);
+    }
 
-        for (int i = 0; i < peers.size(); i++) {
-            peersString += peers.get(i).getIp() + ":" + peers.get(i).getPort() + "\n";
+    /**
+     * Monta uma página do SearchResult percorrendo o snapshot da lista uma vez.
+     *
+     * @param total quantidade de peers que possuem o arquivo, que pode ser maior que a lista recebida
+     */
+    static SearchResult toSearchResult(String filename, List<NapsterPeer> peers, int total, int offset, int limit) {
+        offset = Math.max(0, offset);
+        int capacity = Math.max(0, Math.min(limit > 0 ? limit : Integer.MAX_VALUE, total - offset));
+        SearchResult result = new SearchResult(filename, total, offset, capacity);
+
+        int position = 0;
+        int end = limit > 0 ? offset + limit : Integer.MAX_VALUE;
+        for (NapsterPeer peer : peers) {
+            if (position >= end) {
+                break;
+            }
+            if (position++ < offset) {
+                continue;
+            }
+            result.add(peer.getAddress(), peer.isIpv4() ? null : peer.getIp(), peer.getPort());
         }
 
-        return new NapsterMessage("SEARCH", "SEARCH_OK", new String[] {peersString});
+        return result;
     }
 
     /**
@@ -100,27 +472,45 @@ public class NapsterImpl extends UnicastRemoteObject implements NapsterService {
      * @param filenames Lista de arquivos que o peer possui
      * @param ip        IP do peer
      * @param port      Porta do peer
-     * @return retorna JOIN_OK caso o peer tenha sido registrado corretamente.
+     * @return retorna JOIN_OK caso o peer tenha sido registrado corretamente, com a duração do lease em segundos no segundo argumento.
      */
     public NapsterMessage join(String[] filenames, String ip, int port) throws java.rmi.RemoteException {
-        NapsterPeer peer = new NapsterPeer(ip, port, filenames);
+        return this.timed(JOIN, () -> {
+            if (this.replica) {
+                return readOnly("JOIN");
+            }
 
-        for (String filename : filenames) {
-            // Se o arquivo não existe ainda, cria uma nova lista
-            if (!this.fileToPeers.containsKey(filename)) {
-                this.fileToPeers.put(filename, new ArrayList<NapsterPeer>());
+            // Registra o peer e o adiciona na lista de cada arquivo que ele possui
+            this.index.join(ip, port, filenames);
+
+            Log.info("Peer {}:{} adicionado com arquivos {}", ip, port, filenames);
+
+            return new NapsterMessage("JOIN", "JOIN_OK", new String[] { "New peer registred!", String.valueOf(this.leases.getLeaseSeconds()) } );
+        });
+    }
+
+    /**
+     * JOIN publicando o hash de conteúdo de cada arquivo.
+     *
+     * @param hashes Hash de conteúdo de cada arquivo, na mesma ordem de filenames ("" ou null para arquivos sem hash), ou null para nenhum hash
+     * @return a mesma resposta de join.
+     */
+    public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(JOIN, () -> {
+            if (this.replica) {
+                return readOnly("JOIN");
             }
 
-            // Adiciona o peer na lista de peers que possuem o arquivo
-            this.fileToPeers.get(filename).add(peer);
-        }
+            if (hashes != null && hashes.length != filenames.length) {
+                return new NapsterMessage("JOIN", "JOIN_ERROR", new String[] { "Invalid hashes" } );
+            }
 
-        // Adiciona o peer no HashMap de peers
-        this.peers.put(ip + ":" + port, peer);
+            this.index.join(ip, port, filenames, hashes);
 
-        System.out.println("Peer " + ip + ":" + port + " adicionado com arquivos " + Arrays.toString(filenames));
+            Log.info("Peer {}:{} adicionado com arquivos {}", ip, port, filenames);
 
-        return new NapsterMessage("JOIN", "JOIN_OK", new String[] { "New peer registred!" } );
+            return new NapsterMessage("JOIN", "JOIN_OK", new String[] { "New peer registred!", String.valueOf(this.leases.getLeaseSeconds()) } );
+        });
     }
 
     /**
@@ -132,23 +522,276 @@ public class NapsterImpl extends UnicastRemoteObject implements NapsterService {
      * @return retorna UPDATE_OK caso o peer tenha sido atualizado corretamente.
      */
     public NapsterMessage update(String filename, String ip, int port) throws java.rmi.RemoteException {
-        if (!this.peers.containsKey(ip + ":" + port)) {
-            return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Peer not found" } );
-        }
+        return this.timed(UPDATE, () -> {
+            if (this.replica) {
+                return readOnly("UPDATE");
+            }
+
+            switch (this.index.update(ip, port, filename)) {
+                case NOT_FOUND:
+                    return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Peer not found" } );
+                case DUPLICATE:
+                    return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Peer already has file" } );
+                default:
+                    break;
+            }
 
-        NapsterPeer peer = this.peers.get(ip + ":" + port);
+            return new NapsterMessage("UPDATE", "UPDATE_OK", new String[] { "" } );
+        });
+    }
 
-        if (peer.hasFile(filename)) {
-            return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Peer already has file" } );
+    /**
+     * UPDATE de vários arquivos numa única chamada RMI.
+     *
+     * @param filenames Nomes dos arquivos que o peer deseja adicionar
+     * @return retorna UPDATE_OK com o resultado de cada arquivo ("" ou o erro) nos argumentos, na mesma ordem de filenames.
+     */
+    public NapsterMessage updateBatch(String[] filenames, String ip, int port) throws java.rmi.RemoteException {
+        return this.updateBatch(filenames, null, ip, port);
+    }
+
+    /**
+     * UPDATE de vários arquivos publicando o hash de conteúdo de cada um.
+     *
+     * @param hashes Hash de conteúdo de cada arquivo, na mesma ordem de filenames ("" ou null para arquivos sem hash)
+     * @return a mesma resposta de updateBatch.
+     */
+    public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(UPDATE, () -> {
+            if (this.replica) {
+                return readOnly("UPDATE");
+            }
+
+            if (hashes != null && hashes.length != filenames.length) {
+                return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Invalid hashes" } );
+            }
+
+            NapsterIndex.UpdateResult[] results = this.index.update(ip, port, filenames, hashes);
+            if (this.notFound(results, ip, port)) {
+                return new NapsterMessage("UPDATE", "UPDATE_ERROR", new String[] { "Peer not found" } );
+            }
+
+            String[] args = new String[results.length];
+            for (int i = 0; i < results.length; i++) {
+                args[i] = results[i] == NapsterIndex.UpdateResult.DUPLICATE ? "Peer already has file" : "";
+            }
+
+            return new NapsterMessage("UPDATE", "UPDATE_OK", args);
+        });
+    }
+
+    /**
+     * REMOVE de vários arquivos numa única chamada RMI, para os arquivos que o peer apagou ou alterou.
+     *
+     * @param filenames Nomes dos arquivos que o peer não compartilha mais
+     * @return retorna REMOVE_OK com o resultado de cada arquivo ("" ou o erro) nos argumentos, na mesma ordem de filenames.
+     */
+    public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(REMOVE, () -> {
+            if (this.replica) {
+                return readOnly("REMOVE");
+            }
+
+            NapsterIndex.UpdateResult[] results = this.index.remove(ip, port, filenames);
+            if (this.notFound(results, ip, port)) {
+                return new NapsterMessage("REMOVE", "REMOVE_ERROR", new String[] { "Peer not found" } );
+            }
+
+            String[] args = new String[results.length];
+            for (int i = 0; i < results.length; i++) {
+                args[i] = results[i] == NapsterIndex.UpdateResult.MISSING ? "Peer does not have file" : "";
+            }
+
+            return new NapsterMessage("REMOVE", "REMOVE_OK", args);
+        });
+    }
+
+    /**
+     * @return true se o peer não está registrado, também num lote sem nenhum arquivo.
+     */
+    private boolean notFound(NapsterIndex.UpdateResult[] results, String ip, int port) {
+        return results.length > 0 ? results[0] == NapsterIndex.UpdateResult.NOT_FOUND : this.index.getPeer(ip, port) == null;
+    }
+
+    /**
+     * Renova o lease do peer. Sem heartbeats o peer é removido quando o lease vence.
+     *
+     * @return retorna HEARTBEAT_OK com a duração do lease em segundos, ou HEARTBEAT_ERROR se o peer precisa fazer JOIN de novo.
+     */
+    public NapsterMessage heartbeat(String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(HEARTBEAT, () -> this.renew(ip, port));
+    }
+
+    /**
+     * Heartbeat informando também quantos uploads o peer está atendendo, usado para ordenar os peers no SEARCH.
+     *
+     * @return a mesma resposta de heartbeat.
+     */
+    public NapsterMessage heartbeat(String ip, int port, int activeUploads) throws java.rmi.RemoteException {
+        return this.timed(HEARTBEAT, () -> {
+            if (this.replica) {
+                return readOnly("HEARTBEAT");
+            }
+
+            NapsterPeer peer = this.index.getPeer(ip, port);
+            if (peer != null) {
+                peer.setActiveUploads(activeUploads);
+            }
+
+            return this.renew(ip, port);
+        });
+    }
+
+    private NapsterMessage renew(String ip, int port) {
+        if (this.replica) {
+            return readOnly("HEARTBEAT");
         }
 
-        if (!this.fileToPeers.containsKey(filename)) {
-            this.fileToPeers.put(filename, new ArrayList<NapsterPeer>());
+        if (!this.leases.renew(ip, port)) {
+            return new NapsterMessage("HEARTBEAT", "HEARTBEAT_ERROR", new String[] { "Peer not found" } );
         }
 
-        this.fileToPeers.get(filename).add(this.peers.get(ip + ":" + port));
+        return new NapsterMessage("HEARTBEAT", "HEARTBEAT_OK", new String[] { String.valueOf(this.leases.getLeaseSeconds()) } );
+    }
+
+    /**
+     * Recebe o resultado dos downloads que um peer fez de outros peers.
+     *
+     * @param peers  peers de quem o arquivo foi baixado, no formato <ip>:<port>
+     * @param bytes  bytes recebidos de cada peer
+     * @param millis tempo gasto recebendo de cada peer
+     * @param failed true para os peers que falharam ou enviaram dados inválidos
+     * @return retorna REPORT_OK com a quantidade de peers atualizados, ou REPORT_ERROR se falta algum array ou eles não têm o mesmo tamanho.
+     */
+    public NapsterMessage report(String[] peers, long[] bytes, long[] millis, boolean[] failed, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(REPORT, () -> {
+            if (this.replica) {
+                return readOnly("REPORT");
+            }
+
+            if (peers == null || bytes == null || millis == null || failed == null
+                    || bytes.length != peers.length || millis.length != peers.length || failed.length != peers.length) {
+                return new NapsterMessage("REPORT", "REPORT_ERROR", new String[] { "Invalid report" } );
+            }
+
+            long now = System.currentTimeMillis();
+            int updated = 0;
+            for (int i = 0; i < peers.length; i++) {
+                int separator = peers[i] != null ? peers[i].lastIndexOf(':') : -1;
+                if (separator == -1 || peers[i].equals(NapsterIndex.key(ip, port))) {
+                    continue;
+                }
+
+                NapsterPeer peer;
+                try {
+                    peer = this.index.getPeer(peers[i].substring(0, separator), Integer.parseInt(peers[i].substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (peer == null) {
+                    continue;
+                }
+
+                if (failed[i]) {
+                    peer.recordFailure(now);
+                } else {
+                    peer.recordTransfer(bytes[i], millis[i]);
+                }
+                updated++;
+            }
+
+            return new NapsterMessage("REPORT", "REPORT_OK", new String[] { String.valueOf(updated) } );
+        });
+    }
+
+    /**
+     * Seria a representação da requisição LEAVE.
+     *
+     * @return retorna LEAVE_OK caso o peer tenha sido removido de todas as listas de arquivos.
+     */
+    public NapsterMessage leave(String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(LEAVE, () -> {
+            if (this.replica) {
+                return readOnly("LEAVE");
+            }
+
+            if (this.index.leave(ip, port) == null) {
+                return new NapsterMessage("LEAVE", "LEAVE_ERROR", new String[] { "Peer not found" } );
+            }
+
+            Log.info("Peer {}:{} saiu", ip, port);
+
+            return new NapsterMessage("LEAVE", "LEAVE_OK", new String[] { "" } );
+        });
+    }
+
+    /**
+     * Coloca o peer no enxame do conteúdo: ele está baixando o arquivo e já
+     * envia os chunks que tem para os outros membros. O peer deve repetir a
+     * chamada a cada poucos segundos, antes de napster.swarm.ttl (padrão 30
+     * segundos), para continuar no enxame.
+     *
+     * @param contentHash hash de conteúdo do arquivo baixado
+     * @param limit       quantidade máxima de membros retornados, ou 0 para todos
+     * @return até limit outros membros do enxame, em ordem aleatória; vazio numa réplica.
+     */
+    public SearchResult swarm(String contentHash, int limit, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(SWARM, () -> {
+            if (this.replica) {
+                return new SearchResult(contentHash, 0, 0, 0);
+            }
+
+            return this.swarms.announce(contentHash, limit, ip, port);
+        });
+    }
+
+    /**
+     * Tira o peer do enxame do conteúdo, quando o download terminou ou falhou.
+     *
+     * @return retorna LEAVE_SWARM_OK, ou LEAVE_SWARM_ERROR se o peer não estava no enxame.
+     */
+    public NapsterMessage leaveSwarm(String contentHash, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(SWARM, () -> {
+            if (this.replica) {
+                return readOnly("LEAVE_SWARM");
+            }
+
+            if (!this.swarms.leave(contentHash, ip, port)) {
+                return new NapsterMessage("LEAVE_SWARM", "LEAVE_SWARM_ERROR", new String[] { "Peer not in swarm" } );
+            }
+
+            return new NapsterMessage("LEAVE_SWARM", "LEAVE_SWARM_OK", new String[] { "" } );
+        });
+    }
+
+    /**
+     * Busca nomes de arquivo que não precisam ser exatos.
+     *
+     * @param query  texto buscado
+     * @param mode   AUTO, PREFIX, SUBSTRING ou FUZZY
+     * @param offset posição do primeiro nome retornado
+     * @param limit  quantidade máxima de nomes retornados (no máximo FilenameIndex.MAX_LIMIT)
+     * @return retorna FIND_OK com os nomes em ordem de relevância como argumentos, ou FIND_ERROR sem query ou com um mode inválido.
+     */
+    public NapsterMessage find(String query, String mode, int offset, int limit, String ip, int port) throws java.rmi.RemoteException {
+        return this.timed(FIND, () -> {
+            if (query == null) {
+                return new NapsterMessage("FIND", "FIND_ERROR", new String[] { "Invalid query" } );
+            }
+            if (mode == null) {
+                return new NapsterMessage("FIND", "FIND_ERROR", new String[] { "Invalid mode" } );
+            }
+
+            FilenameIndex.Mode findMode;
+            try {
+                findMode = FilenameIndex.Mode.valueOf(mode.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return new NapsterMessage("FIND", "FIND_ERROR", new String[] { "Invalid mode" } );
+            }
 
+            List<String> filenames = this.index.find(query, findMode, offset, limit);
 
-        return new NapsterMessage("UPDATE", "UPDATE_OK", new String[] { "" } );
+            return new NapsterMessage("FIND", "FIND_OK", filenames.toArray(new String[filenames.size()]));
+        });
     }
 }
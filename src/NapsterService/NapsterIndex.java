@@ -0,0 +1,701 @@
+package NapsterService;
+
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Índice concorrente de arquivos do Servidor Napster.
+ *
+ * Os nomes de arquivo e os hashes de conteúdo ficam em dicionários
+ * (Dictionary), que guardam cada termo uma vez só, com um id inteiro e um int[]
+ * com os ids dos peers que o possuem. Cada peer guarda os seus arquivos num
+ * long[] de ids ordenado (NapsterPeer), então um par (arquivo, peer) custa 8
+ * bytes no peer e 4 bytes em cada posting list, e hasFile é uma busca binária.
+ *
+ * As chamadas RMI chegam em várias threads ao mesmo tempo, então o índice é
+ * dividido em duas camadas de lock:
+ * - as escritas de um mesmo peer (JOIN/UPDATE/REMOVE/LEAVE) são serializadas pelo bin do
+ *   ConcurrentHashMap de peers, ou seja, peers diferentes não disputam lock;
+ * - cada posting list é copiada e trocada dentro do compute do seu termo no dicionário.
+ *
+ * Assim a busca (SEARCH) nunca usa lock: ela lê um int[] que não muda mais.
+ * A ordem de lock é sempre peers -> termos.
+ */
+public class NapsterIndex {
+    /**
+     * Peers registrados, a chave é composta por <ip>:<port>.
+     */
+    private final ConcurrentHashMap<String, NapsterPeer> peers;
+
+    /**
+     * Peers pelo id usado nas posting lists.
+     */
+    private final IdTable<NapsterPeer> peerIds;
+
+    /**
+     * Nomes de arquivo, cada um com os peers que o possuem.
+     */
+    private final Dictionary fileToPeers;
+
+    /**
+     * Hashes de conteúdo, cada um com os peers que possuem o conteúdo com qualquer nome.
+     */
+    private final Dictionary contentToPeers;
+
+    /**
+     * Nomes dos arquivos com pelo menos um peer, para buscas por prefixo, substring e aproximadas.
+     */
+    private final FilenameIndex filenames;
+
+    /**
+     * Interessados nas alterações do índice (journal, por exemplo).
+     */
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+    /**
+     * Interessados em saber quais nomes de arquivo mudaram (cache de buscas, por exemplo).
+     */
+    private final CopyOnWriteArrayList<ChangeListener> changeListeners;
+
+    public NapsterIndex() {
+        this.peers = new ConcurrentHashMap<>();
+        this.peerIds = new IdTable<>();
+        this.filenames = new FilenameIndex();
+        this.fileToPeers = new Dictionary(this.filenames::add, this.filenames::remove);
+        this.contentToPeers = new Dictionary(null, null);
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.changeListeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Interface para ser avisado das alterações do índice.
+     *
+     * Os métodos são chamados dentro do lock do peer, logo depois da
+     * alteração, então as alterações de um mesmo peer chegam na ordem em que
+     * foram aplicadas. Eles não devem chamar o índice de volta.
+     */
+    public interface Listener {
+        void onJoin(NapsterPeer peer);
+
+        void onUpdate(NapsterPeer peer, List<String> filenames);
+
+        void onRemove(NapsterPeer peer, List<String> filenames);
+
+        void onLeave(NapsterPeer peer);
+    }
+
+    /**
+     * Interface para ser avisado de quais nomes de arquivo mudaram.
+     *
+     * Diferente do Listener, o aviso vem depois que a alteração do peer foi
+     * aplicada por inteiro (posting lists e arquivos do peer), e também quando
+     * um peer sai ou expira, com os nomes que ele tinha. Quem lê o índice
+     * depois do aviso já vê o nome alterado.
+     */
+    public interface ChangeListener {
+        /**
+         * A lista de peers do nome mudou, ou o hash de conteúdo de um desses peers.
+         */
+        void onFileChanged(String filename);
+
+        /**
+         * O índice inteiro foi recarregado (restore).
+         */
+        void onReset();
+    }
+
+    /**
+     * Um peer lido do disco, para a recuperação (restore).
+     */
+    public static class PeerRecord {
+        private final String ip;
+        private final int port;
+        private final String[] filenames;
+        private final String[] hashes;
+
+        /**
+         * @param hashes hash de cada arquivo, na mesma ordem de filenames; pode ser null, assim como cada hash
+         */
+        public PeerRecord(String ip, int port, String[] filenames, String[] hashes) {
+            this.ip = ip;
+            this.port = port;
+            this.filenames = filenames;
+            this.hashes = hashes;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        this.changeListeners.add(listener);
+    }
+
+    public static String key(String ip, int port) {
+        return ip + ":" + port;
+    }
+
+    /**
+     * Registra um peer com os seus arquivos.
+     *
+     * Caso o peer já estivesse registrado, o registro antigo é substituído e
+     * removido das listas de todos os arquivos que ele possuía.
+     */
+    public NapsterPeer join(String ip, int port, String[] filenames) {
+        return this.join(ip, port, filenames, null);
+    }
+
+    /**
+     * Registra um peer com os seus arquivos e o hash de conteúdo de cada um.
+     *
+     * @param hashes hash de cada arquivo, na mesma ordem de filenames; pode ser null, assim como cada hash
+     */
+    public NapsterPeer join(String ip, int port, String[] filenames, String[] hashes) {
+        return this.peers.compute(key(ip, port), (key, previous) -> {
+            if (previous != null) {
+                this.release(previous);
+            }
+
+            NapsterPeer peer = this.peerIds.add(id -> new NapsterPeer(this, id, ip, port));
+            Map<String, String> files = distinct(filenames, hashes);
+            long[] entries = new long[files.size()];
+            int count = 0;
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                entries[count++] = this.addToFile(file.getKey(), file.getValue(), peer.getId());
+            }
+            Arrays.sort(entries);
+            peer.setFiles(entries);
+            this.changed(entries);
+
+            for (Listener listener : this.listeners) {
+                listener.onJoin(peer);
+            }
+
+            return peer;
+        });
+    }
+
+    /**
+     * Carrega vários peers de uma vez num índice vazio, usado na recuperação.
+     *
+     * Conta quantos peers cada termo tem e monta cada posting list uma vez só,
+     * em vez de copiá-la a cada peer adicionado. Não deve ser chamado com o
+     * índice em uso, e não avisa os listeners.
+     */
+    public void restore(List<PeerRecord> records) {
+        List<NapsterPeer> restored = new ArrayList<>(records.size());
+        for (PeerRecord record : records) {
+            NapsterPeer peer = this.peerIds.add(id -> new NapsterPeer(this, id, record.ip, record.port));
+            Map<String, String> files = distinct(record.filenames, record.hashes);
+            long[] entries = new long[files.size()];
+            int count = 0;
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                int hashId = file.getValue() != null ? this.contentToPeers.intern(file.getValue()) : NapsterPeer.NO_HASH;
+                entries[count++] = NapsterPeer.entry(this.fileToPeers.intern(file.getKey()), hashId);
+            }
+            Arrays.sort(entries);
+            peer.setFiles(entries);
+
+            this.peers.put(key(record.ip, record.port), peer);
+            restored.add(peer);
+        }
+
+        int[] fileCounts = new int[this.fileToPeers.capacity()];
+        int[] contentCounts = new int[this.contentToPeers.capacity()];
+        List<int[]> peerHashes = new ArrayList<>(restored.size());
+        for (NapsterPeer peer : restored) {
+            for (long entry : peer.getFiles()) {
+                fileCounts[NapsterPeer.fileId(entry)]++;
+            }
+            int[] hashIds = distinctHashes(peer.getFiles());
+            for (int hashId : hashIds) {
+                contentCounts[hashId]++;
+            }
+            peerHashes.add(hashIds);
+        }
+
+        int[][] filePostings = new int[fileCounts.length][];
+        int[][] contentPostings = new int[contentCounts.length][];
+        for (int i = 0; i < restored.size(); i++) {
+            int peerId = restored.get(i).getId();
+            for (long entry : restored.get(i).getFiles()) {
+                append(filePostings, fileCounts, NapsterPeer.fileId(entry), peerId);
+            }
+            for (int hashId : peerHashes.get(i)) {
+                append(contentPostings, contentCounts, hashId, peerId);
+            }
+        }
+
+        for (int id = 0; id < filePostings.length; id++) {
+            if (filePostings[id] != null) {
+                this.fileToPeers.setPostings(id, filePostings[id]);
+            }
+        }
+        for (int id = 0; id < contentPostings.length; id++) {
+            if (contentPostings[id] != null) {
+                this.contentToPeers.setPostings(id, contentPostings[id]);
+            }
+        }
+
+        for (ChangeListener listener : this.changeListeners) {
+            listener.onReset();
+        }
+    }
+
+    /**
+     * Adiciona um arquivo a um peer já registrado.
+     *
+     * @return NOT_FOUND se o peer não está registrado, DUPLICATE se ele já possui o arquivo e OK caso contrário.
+     */
+    public UpdateResult update(String ip, int port, String filename) {
+        return this.update(ip, port, new String[] { filename })[0];
+    }
+
+    /**
+     * Adiciona vários arquivos a um peer já registrado, pegando o lock do peer uma vez só.
+     *
+     * @return o resultado de cada arquivo, na mesma ordem de filenames.
+     */
+    public UpdateResult[] update(String ip, int port, String[] filenames) {
+        return this.update(ip, port, filenames, null);
+    }
+
+    /**
+     * Adiciona vários arquivos, com o hash de conteúdo de cada um, a um peer já registrado.
+     *
+     * Os arquivos novos são ordenados e intercalados com os do peer, então o
+     * custo é proporcional aos arquivos do peer por chamada, e não por arquivo.
+     *
+     * @param hashes hash de cada arquivo, na mesma ordem de filenames; pode ser null, assim como cada hash
+     * @return o resultado de cada arquivo, na mesma ordem de filenames.
+     */
+    public UpdateResult[] update(String ip, int port, String[] filenames, String[] hashes) {
+        UpdateResult[] results = new UpdateResult[filenames.length];
+        Arrays.fill(results, UpdateResult.NOT_FOUND);
+
+        this.peers.computeIfPresent(key(ip, port), (key, peer) -> {
+            long[] files = peer.getFiles();
+            long[] entries = new long[filenames.length];
+            List<String> added = new ArrayList<>(filenames.length);
+            Set<String> batch = new HashSet<>();
+            for (int i = 0; i < filenames.length; i++) {
+                if (NapsterPeer.indexOf(files, this.fileToPeers.id(filenames[i])) >= 0 || !batch.add(filenames[i])) {
+                    results[i] = UpdateResult.DUPLICATE;
+                    continue;
+                }
+
+                entries[added.size()] = this.addToFile(filenames[i], hash(hashes, i), peer.getId());
+                results[i] = UpdateResult.OK;
+                added.add(filenames[i]);
+            }
+
+            if (!added.isEmpty()) {
+                peer.setFiles(merge(files, entries, added.size()));
+                this.changed(added);
+                for (Listener listener : this.listeners) {
+                    listener.onUpdate(peer, added);
+                }
+            }
+            return peer;
+        });
+
+        return results;
+    }
+
+    /**
+     * Remove vários arquivos de um peer já registrado, pegando o lock do peer uma vez só.
+     *
+     * O peer só sai da lista de um conteúdo se nenhum outro arquivo dele tem o mesmo hash.
+     *
+     * @return o resultado de cada arquivo, na mesma ordem de filenames: NOT_FOUND
+     * se o peer não está registrado, MISSING se ele não possui o arquivo e OK caso contrário.
+     */
+    public UpdateResult[] remove(String ip, int port, String[] filenames) {
+        UpdateResult[] results = new UpdateResult[filenames.length];
+        Arrays.fill(results, UpdateResult.NOT_FOUND);
+
+        this.peers.computeIfPresent(key(ip, port), (key, peer) -> {
+            long[] files = peer.getFiles();
+            boolean[] gone = new boolean[files.length];
+            List<String> removed = new ArrayList<>(filenames.length);
+            for (int i = 0; i < filenames.length; i++) {
+                int index = NapsterPeer.indexOf(files, this.fileToPeers.id(filenames[i]));
+                if (index < 0 || gone[index]) {
+                    results[i] = UpdateResult.MISSING;
+                    continue;
+                }
+
+                gone[index] = true;
+                results[i] = UpdateResult.OK;
+                removed.add(filenames[i]);
+            }
+
+            if (removed.isEmpty()) {
+                return peer;
+            }
+
+            long[] remaining = new long[files.length - removed.size()];
+            Set<Integer> removedHashes = new HashSet<>();
+            int count = 0;
+            for (int i = 0; i < files.length; i++) {
+                if (!gone[i]) {
+                    remaining[count++] = files[i];
+                    continue;
+                }
+
+                this.fileToPeers.remove(NapsterPeer.fileId(files[i]), peer.getId());
+                if (NapsterPeer.hashId(files[i]) != NapsterPeer.NO_HASH) {
+                    removedHashes.add(NapsterPeer.hashId(files[i]));
+                }
+            }
+
+            // Os hashes que continuam em outros arquivos do peer são conferidos uma vez só, e não a cada arquivo
+            if (!removedHashes.isEmpty()) {
+                for (long entry : remaining) {
+                    removedHashes.remove(NapsterPeer.hashId(entry));
+                }
+                for (int hashId : removedHashes) {
+                    this.contentToPeers.remove(hashId, peer.getId());
+                }
+            }
+            peer.setFiles(remaining);
+            this.changed(removed);
+
+            for (Listener listener : this.listeners) {
+                listener.onRemove(peer, removed);
+            }
+            return peer;
+        });
+
+        return results;
+    }
+
+    /**
+     * Remove um peer do índice (LEAVE).
+     *
+     * O custo é proporcional à quantidade de arquivos do peer, já que só as
+     * listas dos arquivos dele são alteradas.
+     *
+     * @return o peer removido, ou null se ele não estava registrado.
+     */
+    public NapsterPeer leave(String ip, int port) {
+        NapsterPeer[] removed = { null };
+
+        this.peers.computeIfPresent(key(ip, port), (key, peer) -> {
+            this.remove(peer);
+            removed[0] = peer;
+            return null;
+        });
+
+        return removed[0];
+    }
+
+    /**
+     * Remove um peer cujo lease venceu.
+     *
+     * A verificação é feita dentro do lock do peer, então um heartbeat ou um
+     * novo JOIN que chegou depois do peer ser escolhido para expirar o mantém.
+     *
+     * @return true se o peer foi removido.
+     */
+    public boolean expire(NapsterPeer peer, long now) {
+        boolean[] removed = { false };
+
+        this.peers.computeIfPresent(key(peer.getIp(), peer.getPort()), (key, current) -> {
+            if (current != peer || current.getLeaseExpiry() > now) {
+                return current;
+            }
+
+            this.remove(current);
+            removed[0] = true;
+            return null;
+        });
+
+        return removed[0];
+    }
+
+    public NapsterPeer getPeer(String ip, int port) {
+        return this.peers.get(key(ip, port));
+    }
+
+    /**
+     * Retorna os peers que possuem o arquivo, sem usar lock.
+     *
+     * A lista retornada é uma visão da posting list no momento da chamada e
+     * não pode ser alterada.
+     */
+    public List<NapsterPeer> getPeers(String filename) {
+        return this.peerList(this.fileToPeers.postings(filename));
+    }
+
+    /**
+     * Retorna os peers que possuem o conteúdo, com qualquer nome, sem usar lock.
+     *
+     * As mesmas regras de getPeers valem para a lista retornada.
+     */
+    public List<NapsterPeer> getPeersByContent(String contentHash) {
+        return this.peerList(this.contentToPeers.postings(contentHash));
+    }
+
+    /**
+     * Descobre o hash de conteúdo de um nome de arquivo.
+     *
+     * Peers diferentes podem ter conteúdos diferentes com o mesmo nome, então
+     * o hash publicado pela maior quantidade de peers é o escolhido.
+     *
+     * @return o hash, ou null se nenhum peer publicou o hash desse arquivo.
+     */
+    public String resolveContent(String filename) {
+        int fileId = this.fileToPeers.id(filename);
+        HashMap<Integer, Integer> counts = new HashMap<>();
+        int best = NapsterPeer.NO_HASH;
+        int bestCount = 0;
+        for (NapsterPeer peer : this.getPeers(filename)) {
+            long[] files = peer.getFiles();
+            int index = NapsterPeer.indexOf(files, fileId);
+            if (index < 0 || NapsterPeer.hashId(files[index]) == NapsterPeer.NO_HASH) {
+                continue;
+            }
+
+            int count = counts.merge(NapsterPeer.hashId(files[index]), 1, Integer::sum);
+            if (count > bestCount) {
+                best = NapsterPeer.hashId(files[index]);
+                bestCount = count;
+            }
+        }
+
+        return best != NapsterPeer.NO_HASH ? this.contentToPeers.value(best) : null;
+    }
+
+    /**
+     * Percorre os peers registrados. A iteração não usa lock e pode ou não
+     * ver as alterações feitas enquanto ela acontece.
+     */
+    public void forEachPeer(Consumer<NapsterPeer> action) {
+        this.peers.values().forEach(action);
+    }
+
+    /**
+     * Busca nomes de arquivo por prefixo, substring ou aproximação, ordenados
+     * por relevância e depois pela quantidade de peers.
+     */
+    public List<String> find(String query, FilenameIndex.Mode mode, int offset, int limit) {
+        return this.filenames.find(query, mode, offset, limit, filename -> this.fileToPeers.postings(filename).length);
+    }
+
+    public int peerCount() {
+        return this.peers.size();
+    }
+
+    public int fileCount() {
+        return this.fileToPeers.size();
+    }
+
+    /**
+     * @return a quantidade de hashes de conteúdo distintos publicados.
+     */
+    public int contentCount() {
+        return this.contentToPeers.size();
+    }
+
+    int filenameId(String filename) {
+        return this.fileToPeers.id(filename);
+    }
+
+    String filename(int fileId) {
+        return this.fileToPeers.value(fileId);
+    }
+
+    String contentHash(int hashId) {
+        return this.contentToPeers.value(hashId);
+    }
+
+    /**
+     * Adiciona o peer às posting lists do nome e do conteúdo.
+     *
+     * @return a entrada do arquivo para o long[] do peer.
+     */
+    private long addToFile(String filename, String contentHash, int peerId) {
+        int fileId = this.fileToPeers.add(filename, peerId);
+        // O peer pode ter o mesmo conteúdo com mais de um nome, e a posting list não repete peers
+        int hashId = contentHash != null ? this.contentToPeers.add(contentHash, peerId) : NapsterPeer.NO_HASH;
+
+        return NapsterPeer.entry(fileId, hashId);
+    }
+
+    private void remove(NapsterPeer peer) {
+        this.release(peer);
+
+        for (Listener listener : this.listeners) {
+            listener.onLeave(peer);
+        }
+    }
+
+    /**
+     * Tira o peer das posting lists e libera o id dele. Os arquivos do peer
+     * são esquecidos, já que os ids dos nomes podem ser reutilizados.
+     */
+    private void release(NapsterPeer peer) {
+        long[] files = peer.getFiles();
+        for (long entry : files) {
+            this.fileToPeers.remove(NapsterPeer.fileId(entry), peer.getId());
+        }
+        for (int hashId : distinctHashes(files)) {
+            this.contentToPeers.remove(hashId, peer.getId());
+        }
+        peer.setFiles(NapsterPeer.EMPTY_FILES);
+        this.peerIds.remove(peer.getId());
+        this.changed(files);
+    }
+
+    /**
+     * Avisa os ChangeListeners dos nomes dos arquivos.
+     */
+    private void changed(long[] files) {
+        if (this.changeListeners.isEmpty()) {
+            return;
+        }
+
+        // O id de um nome que ficou sem peers ainda não foi reutilizado, então ainda traduz para o nome
+        List<String> filenames = new ArrayList<>(files.length);
+        for (long entry : files) {
+            filenames.add(this.filename(NapsterPeer.fileId(entry)));
+        }
+        this.changed(filenames);
+    }
+
+    private void changed(List<String> filenames) {
+        for (ChangeListener listener : this.changeListeners) {
+            for (String filename : filenames) {
+                listener.onFileChanged(filename);
+            }
+        }
+    }
+
+    private List<NapsterPeer> peerList(int[] postings) {
+        if (postings.length == 0) {
+            return Collections.emptyList();
+        }
+
+        return new PeerList(postings);
+    }
+
+    /**
+     * Os peers de uma posting list, traduzidos pelo id só quando lidos.
+     */
+    private final class PeerList extends AbstractList<NapsterPeer> implements RandomAccess {
+        private final int[] postings;
+
+        PeerList(int[] postings) {
+            this.postings = postings;
+        }
+
+        @Override
+        public NapsterPeer get(int index) {
+            return NapsterIndex.this.peerIds.get(this.postings[index]);
+        }
+
+        @Override
+        public int size() {
+            return this.postings.length;
+        }
+    }
+
+    /**
+     * Tira os nomes repetidos de um JOIN. Se o nome aparece mais de uma vez,
+     * fica o último hash informado.
+     *
+     * @return o hash de cada nome, ou null se o arquivo não tem hash.
+     */
+    private static Map<String, String> distinct(String[] filenames, String[] hashes) {
+        Map<String, String> files = new HashMap<>(filenames.length * 4 / 3 + 1);
+        for (int i = 0; i < filenames.length; i++) {
+            String contentHash = hash(hashes, i);
+            if (contentHash != null || !files.containsKey(filenames[i])) {
+                files.put(filenames[i], contentHash);
+            }
+        }
+
+        return files;
+    }
+
+    private static String hash(String[] hashes, int i) {
+        if (hashes == null || hashes[i] == null || hashes[i].isEmpty()) {
+            return null;
+        }
+
+        return hashes[i];
+    }
+
+    /**
+     * @return os ids de hash distintos dos arquivos, sem NO_HASH.
+     */
+    private static int[] distinctHashes(long[] files) {
+        int[] hashIds = new int[files.length];
+        int count = 0;
+        for (long entry : files) {
+            if (NapsterPeer.hashId(entry) != NapsterPeer.NO_HASH) {
+                hashIds[count++] = NapsterPeer.hashId(entry);
+            }
+        }
+        Arrays.sort(hashIds, 0, count);
+
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || hashIds[unique - 1] != hashIds[i]) {
+                hashIds[unique++] = hashIds[i];
+            }
+        }
+
+        return Arrays.copyOf(hashIds, unique);
+    }
+
+    /**
+     * Intercala os arquivos novos, ainda fora de ordem, com os arquivos ordenados do peer.
+     */
+    private static long[] merge(long[] files, long[] added, int count) {
+        Arrays.sort(added, 0, count);
+
+        long[] merged = new long[files.length + count];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            merged[k] = j == count || (i < files.length && files[i] < added[j]) ? files[i++] : added[j++];
+        }
+
+        return merged;
+    }
+
+    /**
+     * Acrescenta um peer à posting list de um termo durante a recuperação, que
+     * é criada com o tamanho contado antes.
+     */
+    private static void append(int[][] postings, int[] counts, int id, int peerId) {
+        if (postings[id] == null) {
+            postings[id] = new int[counts[id]];
+            counts[id] = 0;
+        }
+        postings[id][counts[id]++] = peerId;
+    }
+
+    public enum UpdateResult {
+        OK,
+        NOT_FOUND,
+        DUPLICATE,
+        MISSING
+    }
+}
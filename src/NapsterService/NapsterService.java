@@ -5,5 +5,19 @@ import java.rmi.Remote;
 public interface NapsterService extends Remote {
     public NapsterMessage search(String filename, String ip, int port) throws java.rmi.RemoteException;
     public NapsterMessage join(String[] filenames, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage join(String[] filenames, String[] hashes, String ip, int port) throws java.rmi.RemoteException;
     public NapsterMessage update(String filename, String ip, int port) throws java.rmi.RemoteException;
+    public SearchResult searchPeers(String filename, int offset, int limit, String ip, int port) throws java.rmi.RemoteException;
+    public SearchResult[] searchBatch(String[] filenames, int limit, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage updateBatch(String[] filenames, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage updateBatch(String[] filenames, String[] hashes, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage removeBatch(String[] filenames, String ip, int port) throws java.rmi.RemoteException;
+    public SearchResult searchContent(String filename, int offset, int limit, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage heartbeat(String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage heartbeat(String ip, int port, int activeUploads) throws java.rmi.RemoteException;
+    public NapsterMessage report(String[] peers, long[] bytes, long[] millis, boolean[] failed, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage leave(String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage find(String query, String mode, int offset, int limit, String ip, int port) throws java.rmi.RemoteException;
+    public SearchResult swarm(String contentHash, int limit, String ip, int port) throws java.rmi.RemoteException;
+    public NapsterMessage leaveSwarm(String contentHash, String ip, int port) throws java.rmi.RemoteException;
 }
@@ -0,0 +1,162 @@
+package NapsterService;
+
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ordena os peers de um SEARCH pela carga de cada um.
+ *
+ * Na ordem de chegada todos os clientes escolhem os mesmos primeiros peers da
+ * lista, os mais antigos, enquanto os outros ficam parados. Cada peer ganha um
+ * peso:
+ *
+ *   peso = velocidade / (1 + uploads ativos) * 0.5 ^ falhas recentes
+ *
+ * - velocidade: média móvel informada por quem baixou do peer (REPORT). Peers
+ *   sem essa informação recebem a média dos outros peers da lista, para que
+ *   também sejam escolhidos e medidos;
+ * - uploads ativos: informados pelo próprio peer a cada heartbeat;
+ * - falhas: informadas por quem tentou baixar do peer, e esquecidas aos poucos
+ *   (caem pela metade a cada FAILURE_HALF_LIFE_MILLIS).
+ *
+ * Há três modos, da propriedade napster.ranking:
+ * - WEIGHTED (padrão): sorteio ponderado, cada posição é sorteada com
+ *   probabilidade proporcional ao peso. O melhor peer recebe mais clientes,
+ *   mas não todos, então a carga se espalha;
+ * - RANKED: ordem decrescente de peso, a mesma para todas as buscas;
+ * - INSERTION: ordem de chegada, como antes.
+ *
+ * No modo WEIGHTED cada busca sorteia uma ordem nova, então páginas de buscas
+ * diferentes podem repetir peers.
+ */
+public class PeerRanking {
+    public enum Mode {
+        WEIGHTED,
+        RANKED,
+        INSERTION
+    }
+
+    /**
+     * Peso da velocidade mais recente na média móvel.
+     */
+    static final double THROUGHPUT_ALPHA = 0.3;
+
+    static final long FAILURE_HALF_LIFE_MILLIS = 5 * 60 * 1000;
+
+    private static final double MIN_WEIGHT = 1e-12;
+
+    private final Mode mode;
+
+    public PeerRanking(Mode mode) {
+        this.mode = mode;
+    }
+
+    public static PeerRanking fromProperties() {
+        return new PeerRanking(Mode.valueOf(System.getProperty("napster.ranking", "WEIGHTED").toUpperCase()));
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Ordena os peers e retorna os count primeiros.
+     *
+     * Quando só uma página pequena é pedida, os peers são escolhidos com um
+     * heap de count posições, sem ordenar a lista inteira.
+     *
+     * @param count quantidade de peers necessários (offset + limit da página), ou 0 para todos
+     * @return os peers ordenados. A lista recebida não é alterada.
+     */
+    public List<NapsterPeer> order(List<NapsterPeer> peers, int count) {
+        if (this.mode == Mode.INSERTION) {
+            return peers;
+        }
+
+        // Copia para um array: a lista é uma visão da posting list (int[] do Dictionary) que traduz o id do peer a cada get
+        NapsterPeer[] snapshot = peers.toArray(new NapsterPeer[0]);
+        int n = snapshot.length;
+        if (n <= 1) {
+            return Arrays.asList(snapshot);
+        }
+
+        long now = System.currentTimeMillis();
+        double defaultThroughput = averageThroughput(snapshot);
+
+        // Sorteio ponderado: a chave de cada peer é uma exponencial de taxa igual ao peso, e a menor chave vem primeiro
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] keys = new double[n];
+        for (int i = 0; i < n; i++) {
+            double weight = weight(snapshot[i], defaultThroughput, now);
+            keys[i] = this.mode == Mode.RANKED ? -weight : -Math.log(1 - random.nextDouble()) / weight;
+        }
+
+        Comparator<Integer> byKey = (a, b) -> Double.compare(keys[a], keys[b]);
+        List<NapsterPeer> ordered;
+        if (count > 0 && count < n) {
+            PriorityQueue<Integer> best = new PriorityQueue<>(count, byKey.reversed());
+            for (int i = 0; i < n; i++) {
+                if (best.size() < count) {
+                    best.add(i);
+                } else if (keys[i] < keys[best.peek()]) {
+                    best.poll();
+                    best.add(i);
+                }
+            }
+
+            Integer[] indexes = best.toArray(new Integer[best.size()]);
+            Arrays.sort(indexes, byKey);
+            ordered = new ArrayList<>(indexes.length);
+            for (int i : indexes) {
+                ordered.add(snapshot[i]);
+            }
+        } else {
+            Integer[] indexes = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                indexes[i] = i;
+            }
+            Arrays.sort(indexes, byKey);
+            ordered = new ArrayList<>(n);
+            for (int i : indexes) {
+                ordered.add(snapshot[i]);
+            }
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Peso do peer, sempre maior que zero.
+     *
+     * @param defaultThroughput velocidade usada quando o peer ainda não foi medido
+     */
+    static double weight(NapsterPeer peer, double defaultThroughput, long now) {
+        double throughput = peer.getThroughput() > 0 ? peer.getThroughput() : defaultThroughput;
+        double weight = throughput / (1 + peer.getActiveUploads()) * Math.pow(0.5, peer.getFailures(now));
+
+        return Math.max(MIN_WEIGHT, weight);
+    }
+
+    /**
+     * Média das velocidades conhecidas, ou 1 se nenhum peer foi medido (todos com o mesmo peso).
+     */
+    private static double averageThroughput(NapsterPeer[] peers) {
+        double sum = 0;
+        int known = 0;
+        for (NapsterPeer peer : peers) {
+            double throughput = peer.getThroughput();
+            if (throughput > 0) {
+                sum += throughput;
+                known++;
+            }
+        }
+
+        return known > 0 ? sum / known : 1;
+    }
+}
@@ -0,0 +1,55 @@
+package NapsterService;
+
+import Monitoring.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lado da réplica: aplica no índice local as alterações enviadas pelo primário.
+ *
+ * O índice da réplica só muda por aqui. O NapsterImpl da réplica responde as
+ * buscas e recusa JOIN, UPDATE e LEAVE dos peers.
+ */
+public class ReplicaImpl extends UnicastRemoteObject implements ReplicaService {
+    private static final long serialVersionUID = 1L;
+
+    private final NapsterIndex index;
+    private long applied;
+
+    public ReplicaImpl(NapsterIndex index) throws RemoteException {
+        super();
+
+        this.index = index;
+    }
+
+    @Override
+    public synchronized void apply(byte[][] records) throws RemoteException {
+        for (byte[] record : records) {
+            try {
+                IndexJournal.apply(this.index, new DataInputStream(new ByteArrayInputStream(record)));
+            } catch (IOException e) {
+                throw new RemoteException("Registro inválido", e);
+            }
+        }
+        this.applied += records.length;
+    }
+
+    @Override
+    public synchronized void reset(byte[][] records) throws RemoteException {
+        List<NapsterImpl.NapsterPeer> peers = new ArrayList<>();
+        this.index.forEachPeer(peers::add);
+        for (NapsterImpl.NapsterPeer peer : peers) {
+            this.index.leave(peer.getIp(), peer.getPort());
+        }
+
+        this.apply(records);
+        Log.info("Réplica sincronizada com o primário: {} peers, {} arquivos ({} registros aplicados).", this.index.peerCount(),
+                this.index.fileCount(), this.applied);
+    }
+}
@@ -0,0 +1,20 @@
+package NapsterService;
+
+import java.rmi.Remote;
+
+/**
+ * Interface usada pelo servidor primário de um shard para manter as suas réplicas de leitura.
+ *
+ * Cada registro tem o mesmo formato dos registros do IndexJournal.
+ */
+public interface ReplicaService extends Remote {
+    /**
+     * Aplica as alterações do primário, na ordem em que aconteceram.
+     */
+    public void apply(byte[][] records) throws java.rmi.RemoteException;
+
+    /**
+     * Descarta o índice da réplica e carrega o índice completo do primário.
+     */
+    public void reset(byte[][] records) throws java.rmi.RemoteException;
+}
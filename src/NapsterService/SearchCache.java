@@ -0,0 +1,151 @@
+package NapsterService;
+
+import Monitoring.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache LRU do que as buscas calculam a partir do índice para um nome de
+ * arquivo: o hash de conteúdo escolhido por maioria (resolveContent) e, no
+ * modo INSERTION do PeerRanking, a lista de peers já em texto do SEARCH.
+ * Nos modos WEIGHTED e RANKED a ordem dos peers muda sem o índice mudar, então
+ * o texto não é guardado: com o napster.ranking padrão (WEIGHTED) o cache só
+ * guarda o hash de conteúdo usado por searchContent e searchBatch.
+ *
+ * Cada alteração do índice remove só os nomes de arquivo alterados
+ * (NapsterIndex.ChangeListener). A entrada de um nome entra no cache vazia, e
+ * cada valor é calculado na primeira busca que precisa dele. Um valor
+ * calculado enquanto o nome era alterado vai para uma entrada que o aviso da
+ * alteração já tirou do cache, então nenhuma busca seguinte o vê.
+ *
+ * O tamanho vem da propriedade napster.search.cache.size (padrão 10000
+ * nomes, 0 desliga o cache). Acertos, erros, remoções por falta de espaço e
+ * invalidações são exportados nas métricas napster_search_cache_*.
+ */
+final class SearchCache implements NapsterIndex.ChangeListener {
+    private static final class Cached {
+        volatile boolean resolved;
+        volatile String contentHash;
+        volatile String peers;
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Cached> entries;
+
+    private final LongAdder hits = Metrics.counter("napster_search_cache_requests_total", "Buscas atendidas pelo cache", "cache", "server", "result", "hit");
+    private final LongAdder misses = Metrics.counter("napster_search_cache_requests_total", "Buscas atendidas pelo cache", "cache", "server", "result", "miss");
+    private final LongAdder evictions = Metrics.counter("napster_search_cache_evictions_total", "Entradas removidas por falta de espaço", "cache", "server");
+    private final LongAdder invalidations = Metrics.counter("napster_search_cache_invalidations_total", "Entradas removidas por alterações no índice", "cache", "server");
+
+    SearchCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (this.size() <= SearchCache.this.capacity) {
+                    return false;
+                }
+                SearchCache.this.evictions.increment();
+                return true;
+            }
+        };
+
+        Metrics.gauge("napster_search_cache_size", "Entradas no cache de buscas", this::size, "cache", "server");
+        Metrics.gauge("napster_search_cache_hit_ratio", "Fração das buscas atendidas pelo cache desde o início", this::hitRatio, "cache", "server");
+    }
+
+    static SearchCache fromProperties() {
+        return new SearchCache(Integer.getInteger("napster.search.cache.size", 10000));
+    }
+
+    /**
+     * @param resolve calcula o hash de conteúdo do nome, se ele não está no cache
+     * @return o hash de conteúdo do nome, ou null se nenhum peer publicou.
+     */
+    String contentHash(String filename, Function<String, String> resolve) {
+        Cached entry = this.entry(filename);
+        if (entry == null) {
+            return resolve.apply(filename);
+        }
+        if (entry.resolved) {
+            this.hits.increment();
+            return entry.contentHash;
+        }
+
+        this.misses.increment();
+        String contentHash = resolve.apply(filename);
+        entry.contentHash = contentHash;
+        entry.resolved = true;
+        return contentHash;
+    }
+
+    /**
+     * @param render monta o texto, se ele não está no cache
+     * @return os peers do nome no formato da resposta do SEARCH.
+     */
+    String peers(String filename, Function<String, String> render) {
+        Cached entry = this.entry(filename);
+        if (entry == null) {
+            return render.apply(filename);
+        }
+
+        String peers = entry.peers;
+        if (peers != null) {
+            this.hits.increment();
+            return peers;
+        }
+
+        this.misses.increment();
+        peers = render.apply(filename);
+        entry.peers = peers;
+        return peers;
+    }
+
+    /**
+     * @return a entrada do nome, criada vazia se ela não está no cache, ou null se o cache está desligado.
+     */
+    private Cached entry(String filename) {
+        if (this.capacity == 0) {
+            return null;
+        }
+
+        synchronized (this.entries) {
+            return this.entries.computeIfAbsent(filename, key -> new Cached());
+        }
+    }
+
+    @Override
+    public void onFileChanged(String filename) {
+        synchronized (this.entries) {
+            if (this.entries.remove(filename) != null) {
+                this.invalidations.increment();
+            }
+        }
+    }
+
+    @Override
+    public void onReset() {
+        synchronized (this.entries) {
+            this.invalidations.add(this.entries.size());
+            this.entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return acertos / (acertos + erros) desde o início, ou 0 se não houve buscas.
+     */
+    double hitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+        return total > 0 ? (double) hits / total : 0;
+    }
+}
@@ -0,0 +1,240 @@
+package NapsterService;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Classe para representar a resposta tipada de um SEARCH.
+ *
+ * Cada peer é guardado como um IPv4 empacotado num int e a porta num char,
+ * sem Strings, e é serializado com 6 bytes. Peers registrados com um ip que
+ * não é um IPv4 (um hostname, por exemplo) vão no array hosts, que só é
+ * criado quando existe algum.
+ *
+ * A resposta pode ser paginada: total é a quantidade de peers que possuem o
+ * arquivo e offset é a posição do primeiro peer desta página.
+ *
+ * Além da serialização do RMI, writeTo e readFrom gravam a mesma página no
+ * formato do BinaryProtocol, sem os cabeçalhos de classe do Java.
+ */
+public class SearchResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String filename;
+    private int total;
+    private int offset;
+
+    /**
+     * Hash de conteúdo do arquivo, quando a busca foi pelo conteúdo. Os peers
+     * podem ter o arquivo com outro nome.
+     */
+    private String contentHash;
+    private transient int size;
+    private transient int[] addresses;
+    private transient char[] ports;
+    private transient String[] hosts;
+
+    public SearchResult(String filename, int total, int offset, int capacity) {
+        this.filename = filename;
+        this.total = total;
+        this.offset = offset;
+        this.addresses = new int[capacity];
+        this.ports = new char[capacity];
+    }
+
+    /**
+     * Adiciona um peer na página.
+     *
+     * @param address IPv4 empacotado, ignorado se host não for null
+     * @param host    ip do peer quando ele não é um IPv4, senão null
+     */
+    public void add(int address, String host, int port) {
+        if (this.size == this.addresses.length) {
+            int capacity = Math.max(4, this.size * 2);
+            this.addresses = Arrays.copyOf(this.addresses, capacity);
+            this.ports = Arrays.copyOf(this.ports, capacity);
+            if (this.hosts != null) {
+                this.hosts = Arrays.copyOf(this.hosts, capacity);
+            }
+        }
+
+        if (host != null) {
+            if (this.hosts == null) {
+                this.hosts = new String[this.addresses.length];
+            }
+            this.hosts[this.size] = host;
+        }
+        this.addresses[this.size] = address;
+        this.ports[this.size] = (char) port;
+        this.size++;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public int getTotal() {
+        return this.total;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return o hash de conteúdo do arquivo, ou null se a busca foi só pelo nome.
+     */
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Quantidade de peers nesta página.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public String getIp(int i) {
+        if (this.hosts != null && this.hosts[i] != null) {
+            return this.hosts[i];
+        }
+
+        return formatIpv4(this.addresses[i]);
+    }
+
+    public int getPort(int i) {
+        return this.ports[i];
+    }
+
+    public boolean hasMore() {
+        return this.offset + this.size < this.total;
+    }
+
+    public List<InetSocketAddress> toAddresses() {
+        List<InetSocketAddress> list = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            list.add(new InetSocketAddress(this.getIp(i), this.getPort(i)));
+        }
+
+        return list;
+    }
+
+    /**
+     * Converte um ip no formato a.b.c.d para um int, sem consultar DNS.
+     *
+     * @return o IPv4 empacotado, ou -1L se o texto não for um IPv4.
+     */
+    public static long parseIpv4(String ip) {
+        long address = 0;
+        int octets = 0;
+        int value = -1;
+
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || value > 255 || ++octets > 4) {
+                    return -1L;
+                }
+                address = (address << 8) | value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1L;
+                }
+            } else {
+                return -1L;
+            }
+        }
+
+        return octets == 4 ? address : -1L;
+    }
+
+    public static String formatIpv4(int address) {
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+    /**
+     * Grava a página no formato do BinaryProtocol.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        output.writeUTF(this.filename);
+        output.writeInt(this.total);
+        output.writeInt(this.offset);
+        output.writeUTF(this.contentHash != null ? this.contentHash : "");
+        output.writeInt(this.size);
+        output.writeBoolean(this.hosts != null);
+        for (int i = 0; i < this.size; i++) {
+            output.writeInt(this.addresses[i]);
+            output.writeChar(this.ports[i]);
+            if (this.hosts != null) {
+                output.writeUTF(this.hosts[i] != null ? this.hosts[i] : "");
+            }
+        }
+    }
+
+    /**
+     * Lê uma página gravada por writeTo.
+     */
+    static SearchResult readFrom(DataInput input) throws IOException {
+        String filename = input.readUTF();
+        int total = input.readInt();
+        int offset = input.readInt();
+        String contentHash = input.readUTF();
+        int size = input.readInt();
+        boolean hasHosts = input.readBoolean();
+
+        // A capacidade cresce no add, então um size inválido só falha quando os dados acabam
+        SearchResult result = new SearchResult(filename, total, offset, Math.min(size, 1024));
+        result.contentHash = contentHash.isEmpty() ? null : contentHash;
+        for (int i = 0; i < size; i++) {
+            int address = input.readInt();
+            int port = input.readChar();
+            String host = hasHosts ? input.readUTF() : "";
+            result.add(address, host.isEmpty() ? null : host, port);
+        }
+        return result;
+    }
+
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeInt(this.size);
+        output.writeBoolean(this.hosts != null);
+        for (int i = 0; i < this.size; i++) {
+            output.writeInt(this.addresses[i]);
+            output.writeChar(this.ports[i]);
+            if (this.hosts != null) {
+                output.writeObject(this.hosts[i]);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        this.size = input.readInt();
+        boolean hasHosts = input.readBoolean();
+        this.addresses = new int[this.size];
+        this.ports = new char[this.size];
+        this.hosts = hasHosts ? new String[this.size] : null;
+        for (int i = 0; i < this.size; i++) {
+            this.addresses[i] = input.readInt();
+            this.ports[i] = input.readChar();
+            if (hasHosts) {
+                this.hosts[i] = (String) input.readObject();
+            }
+        }
+    }
+}
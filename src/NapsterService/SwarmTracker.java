@@ -0,0 +1,170 @@
+package NapsterService;
+
+import Monitoring.Metrics;
+import NapsterService.NapsterImpl.NapsterPeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peers que estão baixando cada conteúdo (enxames), para que eles troquem os
+ * chunks que já têm antes de terminar o download.
+ *
+ * O servidor só guarda quem está em cada enxame; quais chunks cada peer tem
+ * os próprios peers informam uns aos outros (requisição HAVE). Cada membro
+ * precisa se anunciar de novo antes de ttl, senão sai do enxame, e também sai
+ * quando deixa o índice (LEAVE ou lease vencido). Nada disso vai para o
+ * journal nem para as réplicas: depois de uma queda os peers se anunciam de
+ * novo.
+ *
+ * Cada enxame é alterado dentro do compute da sua chave, sem lock global, e
+ * um índice reverso guarda os enxames de cada peer, então a saída de um peer
+ * só percorre os enxames em que ele está.
+ */
+class SwarmTracker implements NapsterIndex.Listener {
+    private static final class Member {
+        final String ip;
+        final int port;
+        volatile long expiresAt;
+
+        Member(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Map<String, Member>> swarms = new ConcurrentHashMap<>();
+
+    /**
+     * Enxames de cada peer, para que a saída dele só altere os enxames em que ele está.
+     */
+    private final Map<String, Set<String>> peerSwarms = new ConcurrentHashMap<>();
+
+    SwarmTracker(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+
+        Metrics.gauge("napster_swarms", "Conteúdos com peers baixando em enxame", this.swarms::size);
+        Metrics.gauge("napster_swarm_members", "Peers baixando em enxame, somando todos os conteúdos", this::memberCount);
+    }
+
+    static SwarmTracker fromProperties() {
+        return new SwarmTracker(Long.getLong("napster.swarm.ttl", 30) * 1000);
+    }
+
+    /**
+     * Coloca o peer no enxame do conteúdo, ou renova o prazo dele.
+     *
+     * @return até limit outros membros do enxame, em ordem aleatória.
+     */
+    SearchResult announce(String contentHash, int limit, String ip, int port) {
+        long now = System.currentTimeMillis();
+        String key = NapsterIndex.key(ip, port);
+
+        this.peerSwarms.compute(key, (k, hashes) -> {
+            Set<String> joined = hashes != null ? hashes : ConcurrentHashMap.newKeySet();
+            joined.add(contentHash);
+            return joined;
+        });
+
+        // Só o enxame do conteúdo fica travado, e os membros vencidos saem dele
+        List<Member> others = new ArrayList<>();
+        List<String> expired = new ArrayList<>();
+        this.swarms.compute(contentHash, (hash, current) -> {
+            Map<String, Member> members = current != null ? current : new ConcurrentHashMap<>();
+            members.computeIfAbsent(key, k -> new Member(ip, port)).expiresAt = now + this.ttlMillis;
+
+            for (Iterator<Map.Entry<String, Member>> it = members.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Member> member = it.next();
+                if (member.getValue().expiresAt < now) {
+                    it.remove();
+                    expired.add(member.getKey());
+                } else if (!member.getKey().equals(key)) {
+                    others.add(member.getValue());
+                }
+            }
+            return members;
+        });
+        for (String member : expired) {
+            this.forget(member, contentHash);
+        }
+
+        // Cada membro recebe uma parte diferente do enxame, para os chunks se espalharem
+        Collections.shuffle(others);
+        int size = limit > 0 ? Math.min(limit, others.size()) : others.size();
+        SearchResult result = new SearchResult(contentHash, others.size(), 0, size);
+        result.setContentHash(contentHash);
+        for (Member member : others.subList(0, size)) {
+            long address = SearchResult.parseIpv4(member.ip);
+            result.add((int) address, address < 0 ? member.ip : null, member.port);
+        }
+        return result;
+    }
+
+    /**
+     * Tira o peer do enxame do conteúdo.
+     *
+     * @return false se ele não estava no enxame.
+     */
+    boolean leave(String contentHash, String ip, int port) {
+        String key = NapsterIndex.key(ip, port);
+        boolean removed = this.removeMember(contentHash, key);
+        this.forget(key, contentHash);
+        return removed;
+    }
+
+    /**
+     * Tira o peer do enxame, e o enxame do servidor se ele ficou vazio.
+     */
+    private boolean removeMember(String contentHash, String key) {
+        boolean[] removed = { false };
+        this.swarms.computeIfPresent(contentHash, (hash, members) -> {
+            removed[0] = members.remove(key) != null;
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    private void forget(String key, String contentHash) {
+        this.peerSwarms.computeIfPresent(key, (k, hashes) -> {
+            hashes.remove(contentHash);
+            return hashes.isEmpty() ? null : hashes;
+        });
+    }
+
+    int memberCount() {
+        int count = 0;
+        for (Map<String, Member> members : this.swarms.values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void onJoin(NapsterPeer peer) {
+    }
+
+    @Override
+    public void onUpdate(NapsterPeer peer, List<String> filenames) {
+    }
+
+    @Override
+    public void onRemove(NapsterPeer peer, List<String> filenames) {
+    }
+
+    @Override
+    public void onLeave(NapsterPeer peer) {
+        String key = NapsterIndex.key(peer.getIp(), peer.getPort());
+        Set<String> hashes = this.peerSwarms.remove(key);
+        if (hashes != null) {
+            for (String contentHash : hashes) {
+                this.removeMember(contentHash, key);
+            }
+        }
+    }
+}
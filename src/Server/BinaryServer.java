@@ -0,0 +1,248 @@
+package Server;
+
+import Monitoring.Log;
+import Monitoring.Metrics;
+import NapsterService.BinaryProtocol;
+import NapsterService.NapsterService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Front-end NIO do índice com o BinaryProtocol, ao lado do RMI.
+ *
+ * Uma thread aceita as conexões e as divide entre threads de reactor, cada
+ * uma com o seu Selector. O reactor lê os frames de cada conexão, executa as
+ * requisições no NapsterService na própria thread (são operações em memória,
+ * de microssegundos) e escreve as respostas na ordem. Se o socket não aceita
+ * a resposta inteira, o resto fica na fila da conexão e ela para de ser lida
+ * até a fila esvaziar.
+ *
+ * As requisições passam pelos mesmos métodos do RMI, então aparecem nas
+ * mesmas métricas napster_rmi_* de latência e erros.
+ */
+public class BinaryServer {
+    private static final int READ_BUFFER = 8 * 1024;
+
+    private final NapsterService napster;
+    private final int port;
+    private final Reactor[] reactors;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder invalidFrames = Metrics.counter("napster_binary_invalid_frames_total", "Conexões fechadas por um frame inválido");
+
+    /**
+     * @param threads quantidade de reactors
+     */
+    public BinaryServer(NapsterService napster, int port, int threads) {
+        this.napster = napster;
+        this.port = port;
+        this.reactors = new Reactor[Math.max(1, threads)];
+
+        Metrics.gauge("napster_binary_connections", "Conexões abertas no protocolo binário", this.connections::get);
+    }
+
+    /**
+     * Cria o servidor da porta napster.binary.port, com napster.binary.threads
+     * reactors (padrão: a quantidade de processadores).
+     *
+     * @return o servidor, ou null se a porta não foi configurada.
+     */
+    public static BinaryServer fromProperties(NapsterService napster) {
+        Integer port = Integer.getInteger("napster.binary.port");
+        if (port == null) {
+            return null;
+        }
+
+        return new BinaryServer(napster, port, Integer.getInteger("napster.binary.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(this.port));
+
+        for (int i = 0; i < this.reactors.length; i++) {
+            this.reactors[i] = new Reactor();
+            Thread thread = new Thread(this.reactors[i], "napster-binary-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(() -> this.acceptLoop(server), "napster-binary-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Protocolo binário na porta {} ({} reactors).", this.port, this.reactors.length);
+    }
+
+    /**
+     * Aceita conexões bloqueando e as distribui entre os reactors em rodízio.
+     */
+    private void acceptLoop(ServerSocketChannel server) {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                this.connections.incrementAndGet();
+                this.reactors[next].add(channel);
+                next = (next + 1) % this.reactors.length;
+            } catch (IOException e) {
+                Log.warn("Erro ao aceitar conexão no protocolo binário: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Estado de uma conexão: os bytes lidos que ainda não formam um frame e as
+     * respostas que o socket ainda não aceitou.
+     */
+    private static final class Connection {
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER);
+        final Queue<ByteBuffer> output = new ArrayDeque<>();
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            this.added.add(channel);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = this.added.poll()) != null) {
+                        channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        this.handle(key);
+                    }
+                } catch (IOException e) {
+                    Log.error("Erro no reactor do protocolo binário: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isWritable() && this.flush(channel, connection)) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (key.isValid() && key.isReadable() && !this.read(key, channel, connection)) {
+                    this.close(key);
+                }
+            } catch (IOException e) {
+                this.close(key);
+            }
+        }
+
+        /**
+         * Lê o que chegou e executa os frames completos.
+         *
+         * @return false se a conexão foi fechada pelo cliente ou mandou um frame inválido.
+         */
+        private boolean read(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            if (channel.read(connection.input) < 0) {
+                return false;
+            }
+
+            ByteBuffer input = connection.input;
+            input.flip();
+            while (input.remaining() >= 4) {
+                int length = input.getInt(input.position());
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME) {
+                    BinaryServer.this.invalidFrames.increment();
+                    Log.warn("Frame inválido de {}: {} bytes", channel.getRemoteAddress(), length);
+                    return false;
+                }
+                if (input.remaining() < 4 + length) {
+                    break;
+                }
+
+                ByteBuffer request = input.duplicate();
+                request.position(input.position() + 4).limit(input.position() + 4 + length);
+                input.position(input.position() + 4 + length);
+                this.write(key, channel, connection, BinaryProtocol.execute(BinaryServer.this.napster, request.slice()));
+            }
+
+            // Um frame maior que o buffer precisa de um buffer do tamanho dele
+            if (input.remaining() >= 4 && 4 + input.getInt(input.position()) > input.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(4 + input.getInt(input.position()));
+                larger.put(input);
+                connection.input = larger;
+            } else if (!input.hasRemaining() && input.capacity() > READ_BUFFER) {
+                connection.input = ByteBuffer.allocate(READ_BUFFER);
+            } else {
+                input.compact();
+            }
+            return true;
+        }
+
+        /**
+         * Escreve a resposta, ou a coloca na fila se ainda há respostas anteriores ou o socket está cheio.
+         */
+        private void write(SelectionKey key, SocketChannel channel, Connection connection, ByteBuffer response) throws IOException {
+            if (connection.output.isEmpty()) {
+                channel.write(response);
+                if (!response.hasRemaining()) {
+                    return;
+                }
+            }
+
+            connection.output.add(response);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * @return true se todas as respostas da fila foram escritas.
+         */
+        private boolean flush(SocketChannel channel, Connection connection) throws IOException {
+            ByteBuffer response;
+            while ((response = connection.output.peek()) != null) {
+                channel.write(response);
+                if (response.hasRemaining()) {
+                    return false;
+                }
+                connection.output.poll();
+            }
+            return true;
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // A conexão já está sendo descartada
+            }
+            BinaryServer.this.connections.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sobe um índice dividido em shards em localhost, para testes.
+ *
+ * Cada servidor é uma JVM separada (Server.Server), com o seu próprio heap,
+ * registro RMI e porta: os primários nas portas basePort até
+ * basePort + shards - 1 e as réplicas nas portas seguintes. No final imprime
+ * o valor de napster.servers que os peers devem usar. Fechar o runner
+ * (Ctrl+C) derruba todos os servidores.
+ *
+ * Uso: ClusterRunner <shards> [<réplicas por shard> [<porta inicial>]]
+ *
+ * As propriedades napster.* passadas para o runner são repassadas para os
+ * servidores, e napster.data.dir ganha um subdiretório por servidor.
+ */
+public class ClusterRunner {
+    public static void main(String[] args) throws Exception {
+        int shards;
+        int replicas = 0;
+        int basePort = 1099;
+        try {
+            shards = Integer.parseInt(args[0]);
+            if (args.length > 1) {
+                replicas = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                basePort = Integer.parseInt(args[2]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.out.println("Uso: ClusterRunner <shards> [<réplicas por shard> [<porta inicial>]]");
+            return;
+        }
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }));
+
+        StringBuilder servers = new StringBuilder();
+        for (int shard = 0; shard < shards; shard++) {
+            int primaryPort = basePort + shard;
+
+            // As réplicas sobem antes para que o primário já as encontre
+            StringBuilder replicaAddresses = new StringBuilder();
+            for (int replica = 0; replica < replicas; replica++) {
+                int replicaPort = basePort + shards + shard * replicas + replica;
+                processes.add(start(replicaPort, replicaPort - basePort, "replica", null, "shard" + shard + "-replica" + replica));
+                replicaAddresses.append(replicaAddresses.length() > 0 ? "," : "").append("127.0.0.1:").append(replicaPort);
+            }
+            processes.add(start(primaryPort, primaryPort - basePort, "primary", replicaAddresses.toString(), "shard" + shard));
+
+            servers.append(shard > 0 ? "," : "").append("127.0.0.1:").append(primaryPort);
+            if (replicaAddresses.length() > 0) {
+                servers.append('|').append(replicaAddresses.toString().replace(',', '|'));
+            }
+        }
+
+        System.out.println(processes.size() + " servidores iniciados. Use nos peers:");
+        System.out.println("-Dnapster.servers=" + servers);
+
+        for (Process process : processes) {
+            process.waitFor();
+        }
+    }
+
+    /**
+     * Inicia um servidor numa JVM nova, com o mesmo classpath, respondendo o ip e a porta no stdin.
+     *
+     * @param offset posição do servidor no cluster, somada a napster.metrics.port e napster.binary.port para que cada um tenha as suas portas
+     */
+    private static Process start(int port, int offset, String role, String replicas, String name) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String property : System.getProperties().stringPropertyNames()) {
+            if (property.startsWith("napster.") && !property.equals("napster.data.dir") && !property.equals("napster.replicas")
+                    && !property.equals("napster.role") && !property.equals("napster.metrics.port")
+                    && !property.equals("napster.binary.port")) {
+                command.add("-D" + property + "=" + System.getProperty(property));
+            }
+        }
+        if (System.getProperty("napster.data.dir") != null) {
+            command.add("-Dnapster.data.dir=" + new File(System.getProperty("napster.data.dir"), name).getPath());
+        }
+        if (Integer.getInteger("napster.metrics.port") != null) {
+            command.add("-Dnapster.metrics.port=" + (Integer.getInteger("napster.metrics.port") + offset));
+        }
+        if (Integer.getInteger("napster.binary.port") != null) {
+            command.add("-Dnapster.binary.port=" + (Integer.getInteger("napster.binary.port") + offset));
+        }
+        command.add("-Dnapster.role=" + role);
+        if (replicas != null && !replicas.isEmpty()) {
+            command.add("-Dnapster.replicas=" + replicas);
+        }
+        command.add("Server.Server");
+
+        Process process = new ProcessBuilder(command).inheritIO().redirectInput(ProcessBuilder.Redirect.PIPE).start();
+        OutputStream input = process.getOutputStream();
+        input.write(("127.0.0.1\n" + port + "\n").getBytes(StandardCharsets.UTF_8));
+        input.close();
+
+        System.out.println("Servidor " + name + " (" + role + ") na porta " + port);
+        return process;
+    }
+}
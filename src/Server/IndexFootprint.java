@@ -0,0 +1,85 @@
+package Server;
+
+import NapsterService.NapsterIndex;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Mede quanto heap o índice (NapsterIndex) usa por par (arquivo, peer).
+ *
+ * Registra <peers> peers com <arquivos por peer> arquivos cada, escolhidos
+ * entre <nomes distintos> nomes, e compara o heap usado antes e depois, com o
+ * índice ainda alcançável. Cada peer recebe cópias novas dos nomes e dos
+ * hashes, como acontece quando eles chegam pelo RMI. Rodar com um -Xmx que
+ * caiba o índice, por exemplo:
+ *
+ * java -Xmx3g -cp out Server.IndexFootprint 20000 100 200000
+ */
+public class IndexFootprint {
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int filesPerPeer = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int distinct = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+        // O conteúdo de cada nome é fixo, então todos os peers publicam o mesmo hash para ele
+        String[] names = new String[distinct];
+        String[] hashes = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            names[i] = "musica-" + i + ".mp3";
+            hashes[i] = String.format("%016x%016x%016x%016x", mix(i), mix(i + 1L), mix(i + 2L), mix(i + 3L));
+        }
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+
+        NapsterIndex index = new NapsterIndex();
+        long state = 42;
+        long pairs = 0;
+        for (int peer = 0; peer < peers; peer++) {
+            String[] filenames = new String[filesPerPeer];
+            String[] contentHashes = new String[filesPerPeer];
+            for (int j = 0; j < filesPerPeer; j++) {
+                // Distribuição enviesada: poucos nomes populares e uma cauda longa
+                state = state * 6364136223846793005L + 1442695040888963407L;
+                double u = (state >>> 11) * 0x1.0p-53;
+                int name = (int) (distinct * u * u);
+                filenames[j] = new String(names[name].toCharArray());
+                contentHashes[j] = new String(hashes[name].toCharArray());
+            }
+            pairs += index.join("10." + (peer >> 16 & 255) + "." + (peer >> 8 & 255) + "." + (peer & 255), 5000, filenames, contentHashes)
+                    .getFileCount();
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        long used = usedHeap() - before;
+
+        System.out.println(index.peerCount() + " peers, " + index.fileCount() + " nomes distintos, " + pairs + " pares (arquivo, peer)"
+                + " registrados em " + millis + " ms.");
+        System.out.println("Heap do índice: " + used / (1024 * 1024) + " MB, " + used / Math.max(1, pairs) + " bytes por par, "
+                + used / Math.max(1, index.fileCount()) + " bytes por nome distinto.");
+
+        // Mantém o índice alcançável até depois da medição
+        if (index.peerCount() < 0) {
+            System.out.println(index);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+
+        return used;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb62fe1a85ec3L;
+        return x ^ (x >>> 33);
+    }
+}
@@ -0,0 +1,205 @@
+package Server;
+
+import NapsterService.NapsterImpl.NapsterPeer;
+import NapsterService.NapsterIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Teste de carga do índice (NapsterIndex) com várias threads ao mesmo tempo.
+ *
+ * Cada uma das <threads> threads registra <peers por thread> peers próprios
+ * com JOIN, UPDATE, REMOVE, LEAVE e um novo JOIN que substitui o registro,
+ * com <arquivos por peer> arquivos escolhidos entre <nomes> nomes
+ * compartilhados, enquanto outras threads fazem SEARCH sem parar. No fim
+ * confere peerCount, fileCount, contentCount, os arquivos de cada peer e os
+ * peers de cada arquivo com o que cada thread registrou, e sai com código 1
+ * se algum registro foi perdido ou duplicado. Por exemplo:
+ *
+ * java -cp out Server.IndexStress 8 2000 20 5000
+ */
+public class IndexStress {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int peersPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int filesPerPeer = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int distinct = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+        String[] names = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            names[i] = "musica-" + i + ".mp3";
+        }
+
+        NapsterIndex index = new NapsterIndex();
+        Map<String, Set<String>> expected = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong searches = new AtomicLong();
+        List<String> errors = new ArrayList<>();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            writers.add(new Thread(() -> {
+                Random random = new Random(thread);
+                await(start);
+                for (int p = 0; p < peersPerThread; p++) {
+                    String ip = "10." + thread + "." + (p >> 8 & 255) + "." + (p & 255);
+                    int port = 6000 + (p >> 16);
+                    String key = NapsterIndex.key(ip, port);
+
+                    Set<String> files = pick(names, filesPerPeer, random);
+                    index.join(ip, port, files.toArray(new String[0]), hashes(files));
+
+                    Set<String> added = pick(names, 5, random);
+                    index.update(ip, port, added.toArray(new String[0]), hashes(added));
+                    files.addAll(added);
+
+                    String[] removed = files.stream().limit(2).toArray(String[]::new);
+                    index.remove(ip, port, removed);
+                    files.removeAll(Arrays.asList(removed));
+
+                    if (p % 4 == 0) {
+                        index.leave(ip, port);
+                        continue;
+                    }
+                    if (p % 8 == 1) {
+                        // Um novo JOIN substitui o registro anterior
+                        files = pick(names, filesPerPeer, random);
+                        index.join(ip, port, files.toArray(new String[0]), hashes(files));
+                    }
+                    expected.put(key, files);
+                }
+            }, "writer-" + t));
+        }
+
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < Math.max(1, threads / 2); t++) {
+            int thread = t;
+            readers.add(new Thread(() -> {
+                Random random = new Random(-1 - thread);
+                await(start);
+                while (writing.get()) {
+                    String name = names[random.nextInt(distinct)];
+                    List<NapsterPeer> peers = random.nextBoolean() ? index.getPeers(name) : index.getPeersByContent(hash(name));
+                    for (NapsterPeer peer : peers) {
+                        if (peer == null) {
+                            synchronized (errors) {
+                                errors.add("SEARCH " + name + " retornou um peer null");
+                            }
+                        }
+                    }
+                    searches.incrementAndGet();
+                }
+            }, "reader-" + t));
+        }
+
+        writers.forEach(Thread::start);
+        readers.forEach(Thread::start);
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long millis = (System.nanoTime() - begin) / 1_000_000;
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        // Peers de cada nome, pelo que as threads registraram
+        Map<String, Set<String>> holders = new HashMap<>();
+        for (Map.Entry<String, Set<String>> peer : expected.entrySet()) {
+            for (String name : peer.getValue()) {
+                holders.computeIfAbsent(name, n -> new HashSet<>()).add(peer.getKey());
+            }
+        }
+
+        check(errors, "peerCount", expected.size(), index.peerCount());
+        check(errors, "fileCount", holders.size(), index.fileCount());
+        check(errors, "contentCount", holders.size(), index.contentCount());
+        for (Map.Entry<String, Set<String>> peer : expected.entrySet()) {
+            String key = peer.getKey();
+            int separator = key.lastIndexOf(':');
+            NapsterPeer registered = index.getPeer(key.substring(0, separator), Integer.parseInt(key.substring(separator + 1)));
+            if (registered == null) {
+                errors.add("Peer " + key + " perdido");
+            } else if (!new HashSet<>(Arrays.asList(registered.getFilenames())).equals(peer.getValue())) {
+                errors.add("Arquivos do peer " + key + " diferentes: " + Arrays.toString(registered.getFilenames()));
+            }
+        }
+        for (Map.Entry<String, Set<String>> name : holders.entrySet()) {
+            List<NapsterPeer> byName = index.getPeers(name.getKey());
+            List<NapsterPeer> byContent = index.getPeersByContent(hash(name.getKey()));
+            if (byName.size() != name.getValue().size() || !keys(byName).equals(name.getValue())) {
+                errors.add("Peers de " + name.getKey() + ": esperados " + name.getValue().size() + ", encontrados " + byName.size());
+            }
+            if (byContent.size() != name.getValue().size() || !keys(byContent).equals(name.getValue())) {
+                errors.add("Peers do conteúdo de " + name.getKey() + ": esperados " + name.getValue().size() + ", encontrados " + byContent.size());
+            }
+        }
+
+        System.out.println(threads + " threads, " + (long) threads * peersPerThread + " peers em " + millis + " ms, " + searches.get()
+                + " buscas ao mesmo tempo. Ficaram " + index.peerCount() + " peers e " + index.fileCount() + " nomes.");
+        if (!errors.isEmpty()) {
+            for (String error : errors.subList(0, Math.min(20, errors.size()))) {
+                System.out.println("ERRO: " + error);
+            }
+            System.out.println(errors.size() + " erros.");
+            System.exit(1);
+        }
+        System.out.println("Nenhum registro perdido.");
+    }
+
+    private static Set<String> pick(String[] names, int count, Random random) {
+        Set<String> picked = new HashSet<>();
+        while (picked.size() < Math.min(count, names.length)) {
+            picked.add(names[random.nextInt(names.length)]);
+        }
+        return picked;
+    }
+
+    /**
+     * O conteúdo de cada nome é fixo, então todos os peers publicam o mesmo hash para ele.
+     */
+    private static String hash(String name) {
+        return "hash-" + name;
+    }
+
+    private static String[] hashes(Set<String> names) {
+        return names.stream().map(IndexStress::hash).toArray(String[]::new);
+    }
+
+    private static Set<String> keys(List<NapsterPeer> peers) {
+        Set<String> keys = new HashSet<>();
+        for (NapsterPeer peer : peers) {
+            keys.add(NapsterIndex.key(peer.getIp(), peer.getPort()));
+        }
+        return keys;
+    }
+
+    private static void check(List<String> errors, String name, int expected, int actual) {
+        if (expected != actual) {
+            errors.add(name + ": esperado " + expected + ", encontrado " + actual);
+        }
+    }
+
+    private static void await(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
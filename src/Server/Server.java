@@ -1,14 +1,30 @@
 package Server;
 
+import Monitoring.MetricsExporter;
 import NapsterService.NapsterService;
+import NapsterService.IndexJournal;
+import NapsterService.IndexReplicator;
 import NapsterService.NapsterImpl;
+import NapsterService.NapsterIndex;
+import NapsterService.ReplicaImpl;
 
+import java.io.File;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * Classe que representa o Servidor Napster.
+ *
+ * Num índice dividido em shards (NapsterCluster), cada servidor é o primário
+ * ou uma réplica de leitura de um shard, pela propriedade napster.role
+ * (primary ou replica). O primário envia as alterações para as réplicas da
+ * propriedade napster.replicas (<host>:<porta> separados por vírgula).
+ *
+ * Com a propriedade napster.binary.port, JOIN, UPDATE, REMOVE e SEARCH
+ * também são atendidos pelo BinaryProtocol nessa porta (BinaryServer), além
+ * do RMI.
  */
 public class Server {
     public static void main(String[] args) throws Exception {
@@ -21,17 +37,39 @@ public class Server {
         System.out.println("Digite a porta do servidor:");
         port = scanner.nextInt();
 
-        // Cria o NapsterService
-        NapsterService napster = new NapsterImpl();
+        // Se napster.data.dir estiver definido, recupera o índice do disco e grava as alterações nele
+        NapsterIndex index = new NapsterIndex();
+        String dataDir = System.getProperty("napster.data.dir");
+        if (dataDir != null) {
+            long snapshotInterval = Long.getLong("napster.snapshot.interval", 60);
+            IndexJournal.open(new File(dataDir), index, snapshotInterval);
+        }
 
-        // Cria o registro na porta
-        LocateRegistry.createRegistry(port);
+        // Cria o NapsterService, que numa réplica só responde buscas
+        boolean replica = System.getProperty("napster.role", "primary").equalsIgnoreCase("replica");
+        NapsterService napster = new NapsterImpl(index, replica);
 
-        // Pega o registro
-        Registry registry = LocateRegistry.getRegistry();
+        // Cria o registro na porta
+        Registry registry = LocateRegistry.createRegistry(port);
 
         // Vincula o NapsterService no registro
         registry.bind("rmi://" + ip + "/napster", napster);
-        System.out.println("O Servidor Napster está pronto.");
+
+        if (replica) {
+            // O primário do shard altera o índice da réplica por aqui
+            registry.bind("rmi://" + ip + "/napster-replica", new ReplicaImpl(index));
+        } else if (!System.getProperty("napster.replicas", "").isEmpty()) {
+            new IndexReplicator(index, Arrays.asList(System.getProperty("napster.replicas").split(",")));
+        }
+
+        // Com napster.binary.port, o índice também atende o BinaryProtocol, sem RMI
+        BinaryServer binary = BinaryServer.fromProperties(napster);
+        if (binary != null) {
+            binary.start();
+        }
+
+        // Métricas por JMX e, com napster.metrics.port, em http://<ip>:<porta>/metrics
+        MetricsExporter.start();
+        System.out.println("O Servidor Napster está pronto" + (replica ? " (réplica)." : "."));
     }
 }